@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, then prints entries/sec and bytes allocated per entry for each
+ * parameter combination. Takes the usual JMH command-line options, e.g. <code>-p entries=1000000 -p threads=8</code>.
+ * Every benchmark run this way needs an <code>entries</code> parameter, the number of entries one operation covers.
+ */
+public class BenchmarkMain
+{
+    public static void main( String[] args )
+            throws Exception
+    {
+        CommandLineOptions cmdOptions = new CommandLineOptions( args );
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent( cmdOptions ).addProfiler( GCProfiler.class );
+        if ( cmdOptions.getIncludes().isEmpty() )
+        {
+            options.include( FindMissingBuildsBenchmark.class.getSimpleName() );
+        }
+
+        Collection<RunResult> results = new Runner( options.build() ).run();
+
+        System.out.println();
+        System.out.printf( "%-20s %-8s %-11s %-7s %-6s %15s %15s%n", "benchmark", "entries", "duplication",
+                           "threads", "cached", "entries/sec", "bytes/entry" );
+
+        for ( RunResult result : results )
+        {
+            BenchmarkParams params = result.getParams();
+            int entries = Integer.parseInt( params.getParam( "entries" ) );
+
+            Result<?> rate = secondary( result, "entries" );
+            Result<?> alloc = secondary( result, "gc.alloc.rate.norm" );
+
+            String benchmark = params.getBenchmark();
+            System.out.printf( "%-20s %-8s %-11s %-7s %-6s %15.0f %15.1f%n",
+                               benchmark.substring( benchmark.lastIndexOf( '.' ) + 1 ), params.getParam( "entries" ),
+                               param( params, "duplication" ), param( params, "threads" ), param( params, "cached" ),
+                               rate == null ? Double.NaN : rate.getScore(),
+                               alloc == null ? Double.NaN : alloc.getScore() / entries );
+        }
+    }
+
+    private static String param( BenchmarkParams params, String name )
+    {
+        String value = params.getParam( name );
+        return value == null ? "-" : value;
+    }
+
+    private static Result<?> secondary( RunResult result, String label )
+    {
+        // older JMH versions prefix profiler results with a middle dot
+        Result<?> found = result.getSecondaryResults().get( label );
+        return found != null ? found : result.getSecondaryResults().get( "\u00b7" + label );
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.commonjava.maven.atlas.ident.util.ArtifactPathInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.StringUtils.join;
+
+/**
+ * One operation classifies every entry name of a synthetic archive the way a scan does before any lookup: skip
+ * checksums and metadata, trim the prefix directories, and parse what's left into a Maven artifact. The
+ * <code>classifier</code> benchmark uses {@link EntryClassifier} and {@link ArtifactPathParser}; <code>legacy</code>
+ * is the code they replaced (suffix checks, <code>split</code>, <code>join</code> and
+ * {@link ArtifactPathInfo#parse(String)}), kept here to compare against. Run it with
+ * <code>java -jar target/benchmarks.jar EntryClassificationBenchmark</code>.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+public class EntryClassificationBenchmark
+{
+    @Param( { "100000" } )
+    public int entries;
+
+    @Param( { "0.0" } )
+    public double duplication;
+
+    private List<String> entryNames;
+
+    private EntryClassifier classifier;
+
+    private ArtifactPathParser parser;
+
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        entryNames = SyntheticArchive.entryNames( entries, duplication );
+        classifier = new EntryClassifier( SyntheticArchive.SKIP_PARTS, new Options().getExcludes() );
+        parser = new ArtifactPathParser();
+    }
+
+    @Benchmark
+    public void classifier( FindMissingBuildsBenchmark.EntryCounter counter, Blackhole blackhole )
+    {
+        for ( String entryName : entryNames )
+        {
+            if ( classifier.isExcluded( entryName ) )
+            {
+                continue;
+            }
+
+            String path = classifier.path( entryName );
+            if ( path != null )
+            {
+                blackhole.consume( parser.parse( path ) );
+            }
+        }
+        counter.entries += entries;
+    }
+
+    @Benchmark
+    public void legacy( FindMissingBuildsBenchmark.EntryCounter counter, Blackhole blackhole )
+    {
+        for ( String entryName : entryNames )
+        {
+            if ( entryName.endsWith( ".md5" ) || entryName.endsWith( ".sha1" )
+                    || entryName.endsWith( "maven-metadata.xml" ) )
+            {
+                continue;
+            }
+
+            int nested = entryName.lastIndexOf( "!/" );
+            String name = nested < 0 ? entryName : entryName.substring( nested + 2 );
+
+            String[] parts = name.split( "/" );
+            if ( parts.length <= SyntheticArchive.SKIP_PARTS )
+            {
+                continue;
+            }
+
+            String[] realParts = new String[parts.length - SyntheticArchive.SKIP_PARTS];
+            System.arraycopy( parts, SyntheticArchive.SKIP_PARTS, realParts, 0, realParts.length );
+            blackhole.consume( ArtifactPathInfo.parse( join( realParts, "/" ) ) );
+        }
+        counter.entries += entries;
+    }
+}
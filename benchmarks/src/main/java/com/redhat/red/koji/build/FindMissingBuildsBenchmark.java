@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One operation is a full {@link BuildFinder#findMissingBuilds(java.util.List, EntryClassifier, ReportSink)} over a
+ * synthetic archive, with a fresh BuildFinder (so nothing is remembered from the last operation) and a
+ * {@link StubKojiClient}. That covers entry enumeration, path trimming, {@link ArtifactPathParser} parsing, result
+ * store and lookup cache checks, and result recording, without any network time.
+ * <br/>
+ * The <code>entries</code> counter reports throughput in entries/sec; {@link BenchmarkMain} adds allocation per entry.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+public class FindMissingBuildsBenchmark
+{
+    @Param( { "10000", "100000" } )
+    public int entries;
+
+    @Param( { "0.0", "0.5" } )
+    public double duplication;
+
+    @Param( { "1", "4" } )
+    public int threads;
+
+    /**
+     * Whether results come from a warm {@link LookupCache} instead of the stub client.
+     */
+    @Param( { "false", "true" } )
+    public boolean cached;
+
+    @Param( { "10" } )
+    public int missingPercent;
+
+    private File archive;
+
+    private File cacheDir;
+
+    private ScanMetrics metrics;
+
+    private CallPolicy policy;
+
+    private ScanPipeline pipeline;
+
+    private StubKojiClient client;
+
+    private LookupCache cache;
+
+    @Setup( Level.Trial )
+    public void setup()
+            throws Exception
+    {
+        archive = SyntheticArchive.write( entries, duplication );
+        metrics = new ScanMetrics();
+        policy = new CallPolicy( new ConcurrencyLimiter( threads, threads, 0, metrics ), metrics, 0, 0, false );
+        pipeline = new ScanPipeline( threads, threads, 1000, metrics );
+        client = new StubKojiClient( missingPercent );
+
+        if ( cached )
+        {
+            cacheDir = Files.createTempDirectory( "buildfinder-bench-cache" ).toFile();
+            cache = new LookupCache( cacheDir, 24, 24, Integer.MAX_VALUE );
+
+            // warm it up with one scan
+            scan();
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+            throws Exception
+    {
+        pipeline.close();
+        client.close();
+        archive.delete();
+        if ( cacheDir != null )
+        {
+            FileUtils.deleteDirectory( cacheDir );
+        }
+    }
+
+    @Benchmark
+    public ScanResult findMissingBuilds( EntryCounter counter )
+            throws Exception
+    {
+        ScanResult result = scan();
+        counter.entries += entries;
+        return result;
+    }
+
+    private ScanResult scan()
+            throws Exception
+    {
+        BuildFinder finder =
+                new BuildFinder( client, pipeline, metrics, policy, cache, null, null, null, null, null, null );
+        EntrySource source = new CentralDirectorySource( archive, pipeline );
+
+        // collects missing entries as the scan goes, like the default report; it's never closed, so never written
+        ReportSink report = new TextReportSink( new File( "buildfinder.out.txt" ),
+                                                Collections.singletonList( source.getName() ) );
+        EntryClassifier classifier = new EntryClassifier( SyntheticArchive.SKIP_PARTS, new Options().getExcludes() );
+        return finder.findMissingBuilds( Collections.singletonList( source ), classifier, report );
+    }
+
+    /**
+     * Counts entries scanned, so JMH reports them as a rate next to the per-operation score.
+     */
+    @State( Scope.Thread )
+    @AuxCounters( AuxCounters.Type.OPERATIONS )
+    public static class EntryCounter
+    {
+        public long entries;
+
+        @Setup( Level.Iteration )
+        public void reset()
+        {
+            entries = 0;
+        }
+    }
+}
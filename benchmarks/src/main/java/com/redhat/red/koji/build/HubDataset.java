@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.commonjava.maven.atlas.ident.ref.ProjectVersionRef;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds and archives known to the simulated hub, as the XML-RPC structs Koji returns for them. Generated for the
+ * GAVs of a {@link SyntheticArchive}: each gets a build of its own holding its POM and jar, except a fixed percentage
+ * (chosen by hash, as in {@link StubKojiClient}) which were never built in Koji. Every build but each tenth is tagged
+ * {@link #TAG}, so a scan prefetching that tag still has some entries to look up one by one.
+ */
+final class HubDataset
+{
+    private static final String CREATION_TIME = "2016-01-01 00:00:00.000000";
+
+    private static final double CREATION_TS = 1451606400.0;
+
+    static final String TAG = "synthetic-candidate";
+
+    private final Map<String, List<Map<String, Object>>> archivesByGav = new HashMap<>();
+
+    private final Map<Integer, List<Map<String, Object>>> archivesByBuild = new HashMap<>();
+
+    private final Map<Integer, Map<String, Object>> builds = new HashMap<>();
+
+    private final List<Map<String, Object>> tagged = new ArrayList<>();
+
+    private HubDataset()
+    {
+    }
+
+    static HubDataset generate( int gavCount, int missingPercent )
+    {
+        HubDataset dataset = new HubDataset();
+        int archiveId = 0;
+        for ( int i = 0; i < gavCount; i++ )
+        {
+            ProjectVersionRef gav = SyntheticArchive.gav( i );
+            if ( ( gav.toString().hashCode() & Integer.MAX_VALUE ) % 100 < missingPercent )
+            {
+                continue;
+            }
+
+            int buildId = i + 1;
+            dataset.builds.put( buildId, build( buildId, gav ) );
+            if ( buildId % 10 != 0 )
+            {
+                dataset.tagged.add( dataset.builds.get( buildId ) );
+            }
+
+            List<Map<String, Object>> archives = new ArrayList<>( 2 );
+            archives.add( archive( ++archiveId, buildId, gav, "pom" ) );
+            archives.add( archive( ++archiveId, buildId, gav, "jar" ) );
+            dataset.archivesByBuild.put( buildId, archives );
+            dataset.archivesByGav.put( key( gav.getGroupId(), gav.getArtifactId(), gav.getVersionString() ),
+                                       archives );
+        }
+
+        return dataset;
+    }
+
+    int getBuildCount()
+    {
+        return builds.size();
+    }
+
+    List<Map<String, Object>> archivesForGav( String groupId, String artifactId, String version )
+    {
+        return archivesByGav.getOrDefault( key( groupId, artifactId, version ), Collections.emptyList() );
+    }
+
+    List<Map<String, Object>> archivesForBuild( int buildId )
+    {
+        return archivesByBuild.getOrDefault( buildId, Collections.emptyList() );
+    }
+
+    Map<String, Object> getBuild( int buildId )
+    {
+        return builds.get( buildId );
+    }
+
+    /**
+     * The builds in the tag, or null if there is no such tag.
+     */
+    List<Map<String, Object>> listTagged( String tag )
+    {
+        return TAG.equals( tag ) ? tagged : null;
+    }
+
+    private static String key( String groupId, String artifactId, String version )
+    {
+        return groupId + ':' + artifactId + ':' + version;
+    }
+
+    private static Map<String, Object> build( int id, ProjectVersionRef gav )
+    {
+        String name = gav.getGroupId() + "-" + gav.getArtifactId();
+        String version = gav.getVersionString().replace( '-', '_' );
+
+        Map<String, Object> build = new LinkedHashMap<>();
+        build.put( "id", id );
+        build.put( "package_id", id );
+        build.put( "name", name );
+        build.put( "package_name", name );
+        build.put( "version", version );
+        build.put( "release", "1" );
+        build.put( "nvr", name + "-" + version + "-1" );
+        build.put( "task_id", id );
+        build.put( "state", 1 );
+        build.put( "creation_time", CREATION_TIME );
+        build.put( "creation_ts", CREATION_TS );
+        build.put( "maven_group_id", gav.getGroupId() );
+        build.put( "maven_artifact_id", gav.getArtifactId() );
+        build.put( "maven_version", gav.getVersionString() );
+        return build;
+    }
+
+    private static Map<String, Object> archive( int id, int buildId, ProjectVersionRef gav, String extension )
+    {
+        Map<String, Object> archive = new LinkedHashMap<>();
+        archive.put( "id", id );
+        archive.put( "build_id", buildId );
+        archive.put( "group_id", gav.getGroupId() );
+        archive.put( "artifact_id", gav.getArtifactId() );
+        archive.put( "version", gav.getVersionString() );
+        archive.put( "filename", gav.getArtifactId() + "-" + gav.getVersionString() + "." + extension );
+        archive.put( "type_name", extension );
+        archive.put( "type_extensions", extension );
+        archive.put( "checksum", String.format( "%032x", id ) );
+        archive.put( "checksum_type", 0 );
+        archive.put( "size", 0 );
+        return archive;
+    }
+}
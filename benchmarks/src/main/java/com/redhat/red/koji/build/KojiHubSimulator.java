@@ -0,0 +1,477 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for a Koji hub, answering the XML-RPC calls buildfinder makes: <code>getAPIVersion</code>,
+ * <code>sslLogin</code> / <code>logout</code>, <code>listArchives</code> (by Maven GAV or build),
+ * <code>getBuild</code>, and <code>multiCall</code> over any of those. Answers come from a {@link HubDataset}.
+ * <br/>
+ * Each HTTP request waits for one of a limited number of worker slots, like the hub's WSGI processes, then sleeps for
+ * a sample of the base latency plus a per-call cost for every call it carries. Each call fails with a fault at the
+ * configured error rate. Request counts and latencies (including time spent waiting for a slot) are kept per method.
+ */
+final class KojiHubSimulator
+        implements Closeable
+{
+    static final String PATH = "/kojihub";
+
+    private static final int FAULT_CODE = 1000;
+
+    private final HubDataset dataset;
+
+    private final LatencyModel latency;
+
+    private final long perCallMicros;
+
+    private final double errorRate;
+
+    private final Semaphore workers;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    private final Map<String, MethodStats> stats = new ConcurrentHashMap<>();
+
+    KojiHubSimulator( HubDataset dataset, LatencyModel latency, long perCallMicros, double errorRate,
+                      int concurrency )
+            throws IOException
+    {
+        this.dataset = dataset;
+        this.latency = latency;
+        this.perCallMicros = perCallMicros;
+        this.errorRate = errorRate;
+        this.workers = new Semaphore( concurrency, true );
+
+        executor = Executors.newCachedThreadPool( ( r ) -> {
+            Thread t = new Thread( r, "koji-hub-simulator" );
+            t.setDaemon( true );
+            return t;
+        } );
+
+        // without this, headers and body go out in separate packets and Nagle adds ~40ms to every response
+        System.setProperty( "sun.net.httpserver.nodelay", "true" );
+        server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        server.createContext( PATH, this::handle );
+        server.setExecutor( executor );
+        server.start();
+    }
+
+    String getUrl()
+    {
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Per-method statistics, by method name. Calls made inside a multiCall are counted under their own names, too, but
+     * only the multiCall request as a whole has a latency.
+     */
+    Map<String, MethodStats> getStats()
+    {
+        return new TreeMap<>( stats );
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+    private void handle( HttpExchange exchange )
+            throws IOException
+    {
+        long start = System.nanoTime();
+        String response;
+        String method = "unknown";
+        try (InputStream in = exchange.getRequestBody())
+        {
+            Element call = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( in ).getDocumentElement();
+            String methodName = text( child( call, "methodName" ) );
+            if ( methodName != null )
+            {
+                method = methodName;
+            }
+
+            List<Object> params = new ArrayList<>();
+            Element paramsElement = child( call, "params" );
+            if ( paramsElement != null )
+            {
+                for ( Element param : children( paramsElement, "param" ) )
+                {
+                    params.add( decode( child( param, "value" ) ) );
+                }
+            }
+
+            workers.acquire();
+            try
+            {
+                int calls = KojiMultiCall.MULTICALL_METHOD.equals( method ) && !params.isEmpty()
+                        && params.get( 0 ) instanceof List ? ( (List<?>) params.get( 0 ) ).size() : 1;
+                TimeUnit.MICROSECONDS.sleep( latency.sampleMillis() * 1000 + calls * perCallMicros );
+
+                response = respond( method, params );
+            }
+            finally
+            {
+                workers.release();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders( 503, -1 );
+            exchange.close();
+            return;
+        }
+        catch ( Exception e )
+        {
+            response = fault( "Bad request: " + e );
+        }
+
+        byte[] body = response.getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type", "text/xml" );
+        exchange.sendResponseHeaders( 200, body.length );
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write( body );
+        }
+
+        stats( method ).latencies.add( System.nanoTime() - start );
+    }
+
+    private String respond( String method, List<Object> params )
+    {
+        if ( KojiMultiCall.MULTICALL_METHOD.equals( method ) )
+        {
+            stats( method ).calls.incrementAndGet();
+
+            List<Object> results = new ArrayList<>();
+            for ( Object call : (List<?>) params.get( 0 ) )
+            {
+                Map<?, ?> struct = (Map<?, ?>) call;
+                try
+                {
+                    results.add( Collections.singletonList(
+                            call( (String) struct.get( "methodName" ), (List<?>) struct.get( "params" ) ) ) );
+                }
+                catch ( FaultException e )
+                {
+                    Map<String, Object> fault = new LinkedHashMap<>();
+                    fault.put( "faultCode", FAULT_CODE );
+                    fault.put( "faultString", e.getMessage() );
+                    results.add( fault );
+                }
+            }
+
+            return success( results );
+        }
+
+        try
+        {
+            return success( call( method, params ) );
+        }
+        catch ( FaultException e )
+        {
+            return fault( e.getMessage() );
+        }
+    }
+
+    private Object call( String method, List<?> params )
+            throws FaultException
+    {
+        MethodStats methodStats = stats( method );
+        methodStats.calls.incrementAndGet();
+
+        if ( errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate )
+        {
+            methodStats.faults.incrementAndGet();
+            throw new FaultException( "Simulated failure in " + method );
+        }
+
+        switch ( method )
+        {
+            case "getAPIVersion":
+                return 1;
+            case "sslLogin":
+            {
+                Map<String, Object> session = new LinkedHashMap<>();
+                session.put( "session-id", sessions.incrementAndGet() );
+                session.put( "session-key", "simulated-" + sessions.get() );
+                return session;
+            }
+            case "logout":
+                return null;
+            case "getBuild":
+            {
+                Object id = params.isEmpty() ? null : params.get( 0 );
+                return id instanceof Integer ? dataset.getBuild( (Integer) id ) : null;
+            }
+            case "listArchives":
+                return listArchives( params );
+            case "listTagged":
+            {
+                Object tag = params.isEmpty() ? null : params.get( 0 );
+                List<Map<String, Object>> tagged = tag instanceof String ? dataset.listTagged( (String) tag ) : null;
+                if ( tagged == null )
+                {
+                    methodStats.faults.incrementAndGet();
+                    throw new FaultException( "No such tag: " + tag );
+                }
+                return tagged;
+            }
+            default:
+                methodStats.faults.incrementAndGet();
+                throw new FaultException( "Unsupported method: " + method );
+        }
+    }
+
+    private List<Map<String, Object>> listArchives( List<?> params )
+    {
+        // kojiji and our multiCall both send the query as keyword arguments in a single struct
+        Map<?, ?> query = params.isEmpty() || !( params.get( 0 ) instanceof Map ) ? Collections.emptyMap()
+                : (Map<?, ?>) params.get( 0 );
+
+        Object buildId = query.get( "buildID" );
+        if ( buildId instanceof Integer )
+        {
+            return dataset.archivesForBuild( (Integer) buildId );
+        }
+
+        Object typeInfo = query.get( "typeInfo" );
+        if ( typeInfo instanceof Map )
+        {
+            Map<?, ?> gav = (Map<?, ?>) typeInfo;
+            return dataset.archivesForGav( (String) gav.get( "group_id" ), (String) gav.get( "artifact_id" ),
+                                           (String) gav.get( "version" ) );
+        }
+
+        return Collections.emptyList();
+    }
+
+    private MethodStats stats( String method )
+    {
+        return stats.computeIfAbsent( method, ( m ) -> new MethodStats() );
+    }
+
+    private static String success( Object value )
+    {
+        StringBuilder sb = new StringBuilder( "<?xml version=\"1.0\"?><methodResponse><params><param>" );
+        KojiMultiCall.renderValue( sb, value );
+        return sb.append( "</param></params></methodResponse>" ).toString();
+    }
+
+    private static String fault( String message )
+    {
+        Map<String, Object> fault = new LinkedHashMap<>();
+        fault.put( "faultCode", FAULT_CODE );
+        fault.put( "faultString", message );
+
+        StringBuilder sb = new StringBuilder( "<?xml version=\"1.0\"?><methodResponse><fault>" );
+        KojiMultiCall.renderValue( sb, fault );
+        return sb.append( "</fault></methodResponse>" ).toString();
+    }
+
+    private static Object decode( Element value )
+    {
+        Element typed = firstChild( value );
+        if ( typed == null )
+        {
+            // untyped values are strings
+            return value.getTextContent();
+        }
+
+        switch ( typed.getTagName() )
+        {
+            case "int":
+            case "i4":
+                return Integer.valueOf( text( typed ) );
+            case "i8":
+                return Long.valueOf( text( typed ) );
+            case "boolean":
+                return "1".equals( text( typed ) );
+            case "double":
+                return Double.valueOf( text( typed ) );
+            case "nil":
+                return null;
+            case "struct":
+            {
+                Map<String, Object> struct = new LinkedHashMap<>();
+                for ( Element member : children( typed, "member" ) )
+                {
+                    struct.put( text( child( member, "name" ) ), decode( child( member, "value" ) ) );
+                }
+                return struct;
+            }
+            case "array":
+            {
+                List<Object> array = new ArrayList<>();
+                for ( Element element : children( child( typed, "data" ), "value" ) )
+                {
+                    array.add( decode( element ) );
+                }
+                return array;
+            }
+            default:
+                // string, dateTime.iso8601, base64: keep the text
+                return typed.getTextContent();
+        }
+    }
+
+    private static String text( Element element )
+    {
+        return element == null ? null : element.getTextContent().trim();
+    }
+
+    private static Element child( Element parent, String name )
+    {
+        List<Element> found = children( parent, name );
+        return found.isEmpty() ? null : found.get( 0 );
+    }
+
+    private static Element firstChild( Element parent )
+    {
+        for ( Node n = parent.getFirstChild(); n != null; n = n.getNextSibling() )
+        {
+            if ( n instanceof Element )
+            {
+                return (Element) n;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children( Element parent, String name )
+    {
+        List<Element> found = new ArrayList<>();
+        for ( Node n = parent.getFirstChild(); n != null; n = n.getNextSibling() )
+        {
+            if ( n instanceof Element && name.equals( ( (Element) n ).getTagName() ) )
+            {
+                found.add( (Element) n );
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Call counts and request latencies for one method.
+     */
+    static final class MethodStats
+    {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final AtomicInteger faults = new AtomicInteger();
+
+        private final LatencySamples latencies = new LatencySamples();
+
+        int getCalls()
+        {
+            return calls.get();
+        }
+
+        int getFaults()
+        {
+            return faults.get();
+        }
+
+        int getRequests()
+        {
+            return latencies.size();
+        }
+
+        /**
+         * Latency at the given percentile (0-100) in milliseconds, or NaN if no request was made for the method.
+         */
+        double percentileMillis( double percentile )
+        {
+            return latencies.percentile( percentile ) / 1e6;
+        }
+    }
+
+    private static final class LatencySamples
+    {
+        private long[] samples = new long[1024];
+
+        private int size;
+
+        synchronized void add( long nanos )
+        {
+            if ( size == samples.length )
+            {
+                samples = Arrays.copyOf( samples, size * 2 );
+            }
+            samples[size++] = nanos;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        synchronized double percentile( double percentile )
+        {
+            if ( size == 0 )
+            {
+                return Double.NaN;
+            }
+
+            long[] sorted = Arrays.copyOf( samples, size );
+            Arrays.sort( sorted );
+            int rank = (int) Math.ceil( percentile / 100 * size ) - 1;
+            return sorted[Math.max( 0, Math.min( size - 1, rank ) )];
+        }
+    }
+
+    private static final class FaultException
+            extends Exception
+    {
+        FaultException( String message )
+        {
+            super( message );
+        }
+    }
+}
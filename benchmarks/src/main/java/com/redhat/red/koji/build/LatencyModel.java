@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Service time distribution for the simulated hub, in milliseconds. Parsed from specs like:
+ * <ul>
+ * <li><code>fixed:20</code></li>
+ * <li><code>uniform:5-50</code></li>
+ * <li><code>lognormal:20,400</code> (median 20ms, 99th percentile 400ms; the long tail real hubs show under load)</li>
+ * </ul>
+ */
+final class LatencyModel
+{
+    // standard normal quantile of 0.99
+    private static final double Z99 = 2.326;
+
+    private final String spec;
+
+    private final double a;
+
+    private final double b;
+
+    private final Kind kind;
+
+    private enum Kind
+    {
+        FIXED, UNIFORM, LOGNORMAL
+    }
+
+    private LatencyModel( String spec, Kind kind, double a, double b )
+    {
+        this.spec = spec;
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+    }
+
+    static LatencyModel parse( String spec )
+    {
+        String[] parts = spec.split( ":", 2 );
+        try
+        {
+            switch ( parts[0] )
+            {
+                case "fixed":
+                {
+                    double millis = Double.parseDouble( parts[1] );
+                    return new LatencyModel( spec, Kind.FIXED, millis, millis );
+                }
+                case "uniform":
+                {
+                    String[] range = parts[1].split( "-" );
+                    return new LatencyModel( spec, Kind.UNIFORM, Double.parseDouble( range[0] ),
+                                             Double.parseDouble( range[1] ) );
+                }
+                case "lognormal":
+                {
+                    String[] shape = parts[1].split( "," );
+                    double median = Double.parseDouble( shape[0] );
+                    double p99 = Double.parseDouble( shape[1] );
+                    if ( median <= 0 || p99 < median )
+                    {
+                        break;
+                    }
+                    return new LatencyModel( spec, Kind.LOGNORMAL, Math.log( median ),
+                                             ( Math.log( p99 ) - Math.log( median ) ) / Z99 );
+                }
+                default:
+                    break;
+            }
+        }
+        catch ( ArrayIndexOutOfBoundsException | NumberFormatException e )
+        {
+            // fall through to the error below
+        }
+
+        throw new IllegalArgumentException(
+                "Invalid latency: '" + spec + "' (expected fixed:MS, uniform:MIN-MAX or lognormal:MEDIAN,P99)" );
+    }
+
+    long sampleMillis()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch ( kind )
+        {
+            case UNIFORM:
+                return Math.round( a + random.nextDouble() * ( b - a ) );
+            case LOGNORMAL:
+                return Math.round( Math.exp( a + b * random.nextGaussian() ) );
+            default:
+                return Math.round( a );
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return spec;
+    }
+}
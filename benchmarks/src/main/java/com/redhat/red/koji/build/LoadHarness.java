@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Macro benchmark: runs {@link Main} end to end against a {@link KojiHubSimulator}, over a synthetic archive, and
+ * reports wall time, hub request counts and per-method latency percentiles. Arguments after <code>--</code> are passed
+ * to Main, e.g. <code>-- -t 8 -b 50 -x</code>. With <code>--serve</code>, just starts the hub and prints a config
+ * file for it, so the real command line can be pointed at it.
+ */
+public class LoadHarness
+{
+    @Option( name = "--entries", metaVar = "N", usage = "Entries in the synthetic archive (default: 100000)" )
+    private int entries = 100000;
+
+    @Option( name = "--duplication", metaVar = "RATIO",
+             usage = "Fraction of entries repeating an earlier path (default: 0.0)" )
+    private double duplication;
+
+    @Option( name = "--missing-percent", metaVar = "PCT",
+             usage = "Percentage of GAVs with no build in the hub (default: 10)" )
+    private int missingPercent = 10;
+
+    @Option( name = "--latency", metaVar = "SPEC",
+             usage = "Hub latency per request: fixed:MS, uniform:MIN-MAX or lognormal:MEDIAN,P99 "
+                     + "(default: lognormal:20,200)" )
+    private String latency = "lognormal:20,200";
+
+    @Option( name = "--per-call-micros", metaVar = "MICROS",
+             usage = "Extra hub latency for each call in a request, e.g. each call in a multiCall (default: 500)" )
+    private long perCallMicros = 500;
+
+    @Option( name = "--error-rate", metaVar = "RATIO",
+             usage = "Fraction of calls answered with a fault (default: 0.0)" )
+    private double errorRate;
+
+    @Option( name = "--hub-concurrency", metaVar = "N",
+             usage = "Requests the hub works on at once; the rest wait in line (default: 16)" )
+    private int hubConcurrency = 16;
+
+    @Option( name = "--serve", usage = "Only start the hub and print its config file, then wait to be killed" )
+    private boolean serve;
+
+    @Option( name = "-h", aliases = { "--help" }, help = true, usage = "Print this help screen and exit" )
+    private boolean help;
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        int split = Arrays.asList( args ).indexOf( "--" );
+        String[] own = split < 0 ? args : Arrays.copyOfRange( args, 0, split );
+        String[] mainArgs = split < 0 ? new String[0] : Arrays.copyOfRange( args, split + 1, args.length );
+
+        LoadHarness harness = new LoadHarness();
+        CmdLineParser parser = new CmdLineParser( harness );
+        try
+        {
+            parser.parseArgument( own );
+        }
+        catch ( CmdLineException e )
+        {
+            System.err.println( e.getMessage() );
+            harness.help = true;
+        }
+
+        if ( harness.help )
+        {
+            System.err.println( "Usage: LoadHarness [options] [-- buildfinder options]" );
+            parser.printUsage( System.err );
+            System.exit( 1 );
+        }
+
+        System.exit( harness.run( mainArgs ) );
+    }
+
+    private int run( String[] mainArgs )
+            throws Exception
+    {
+        LatencyModel latencyModel = LatencyModel.parse( latency );
+        HubDataset dataset =
+                HubDataset.generate( SyntheticArchive.gavCount( entries, duplication ), missingPercent );
+
+        File workDir = Files.createTempDirectory( "buildfinder-load" ).toFile();
+        try (KojiHubSimulator hub = new KojiHubSimulator( dataset, latencyModel, perCallMicros, errorRate,
+                                                          hubConcurrency ))
+        {
+            File configFile = writeConfig( workDir, hub.getUrl() );
+            System.out.printf( "Hub at %s with %d builds (latency %s + %dus/call, error rate %s, concurrency %d)%n",
+                               hub.getUrl(), dataset.getBuildCount(), latencyModel, perCallMicros, errorRate,
+                               hubConcurrency );
+
+            if ( serve )
+            {
+                System.out.printf( "Config file: %s%n%s", configFile, FileUtils.readFileToString( configFile ) );
+                Thread.currentThread().join();
+            }
+
+            File archive = SyntheticArchive.write( entries, duplication );
+            List<String> args = new ArrayList<>( Arrays.asList( "-f", configFile.getPath(), "-p",
+                                                                Integer.toString( SyntheticArchive.SKIP_PARTS ) ) );
+            args.addAll( Arrays.asList( mainArgs ) );
+            args.add( archive.getPath() );
+            System.out.printf( "Running buildfinder %s%n", String.join( " ", args ) );
+
+            Options opts = new Options();
+            opts.parseArgs( args.toArray( new String[args.size()] ) );
+
+            long start = System.nanoTime();
+            Integer result = new Main( opts ).run();
+            long wallNanos = System.nanoTime() - start;
+
+            archive.delete();
+            report( hub, result, wallNanos );
+            return result == null ? -1 : result;
+        }
+        finally
+        {
+            FileUtils.deleteDirectory( workDir );
+        }
+    }
+
+    private File writeConfig( File workDir, String url )
+            throws IOException
+    {
+        // the PEM paths have to be set, but nothing needs to be there for plain HTTP
+        File configFile = new File( workDir, "buildfinder.conf" );
+        try (PrintWriter pw = new PrintWriter( configFile ))
+        {
+            pw.printf( "url = %s%n", url );
+            pw.printf( "client.pem.path = client.pem%n" );
+            pw.printf( "server.pem.path = server.pem%n" );
+        }
+        return configFile;
+    }
+
+    private void report( KojiHubSimulator hub, Integer result, long wallNanos )
+    {
+        double wallSeconds = wallNanos / 1e9;
+        System.out.println();
+        System.out.printf( "Exit value:   %s%n", result );
+        System.out.printf( "Wall time:    %.2fs%n", wallSeconds );
+        System.out.printf( "Throughput:   %.0f entries/sec%n", entries / wallSeconds );
+        System.out.println();
+        System.out.printf( "%-16s %9s %9s %7s %10s %10s %10s%n", "method", "requests", "calls", "faults", "p50 ms",
+                           "p99 ms", "max ms" );
+
+        int requests = 0;
+        for ( Map.Entry<String, KojiHubSimulator.MethodStats> e : hub.getStats().entrySet() )
+        {
+            KojiHubSimulator.MethodStats stats = e.getValue();
+            requests += stats.getRequests();
+            System.out.printf( "%-16s %9d %9d %7d %10.1f %10.1f %10.1f%n", e.getKey(), stats.getRequests(),
+                               stats.getCalls(), stats.getFaults(), stats.percentileMillis( 50 ),
+                               stats.percentileMillis( 99 ), stats.percentileMillis( 100 ) );
+        }
+
+        System.out.printf( "%-16s %9d (%.1f/sec)%n", "total", requests, requests / wallSeconds );
+    }
+}
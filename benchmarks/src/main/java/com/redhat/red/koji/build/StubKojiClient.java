@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClient;
+import com.redhat.red.build.koji.KojiClientException;
+import com.redhat.red.build.koji.KojiCustomCommand;
+import com.redhat.red.build.koji.config.KojiConfig;
+import com.redhat.red.build.koji.model.xmlrpc.KojiArchiveInfo;
+import com.redhat.red.build.koji.model.xmlrpc.KojiBuildArchiveCollection;
+import com.redhat.red.build.koji.model.xmlrpc.KojiBuildInfo;
+import com.redhat.red.build.koji.model.xmlrpc.KojiSessionInfo;
+import org.commonjava.maven.atlas.ident.ref.ProjectVersionRef;
+import org.commonjava.maven.atlas.ident.ref.SimpleProjectVersionRef;
+import org.commonjava.rwx.binding.error.BindException;
+import org.commonjava.util.jhttpc.auth.MemoryPasswordManager;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.commonjava.util.jhttpc.model.SiteConfigBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link KojiClient} that answers lookups from memory, so benchmarks measure the scanner and not the network. Every GAV
+ * gets a build of its own containing its POM and jar, except a fixed percentage (chosen by hash) which have none.
+ */
+class StubKojiClient
+        extends KojiClient
+{
+    private static final String STUB_URL = "http://localhost/kojihub";
+
+    private final int missingPercent;
+
+    private final Map<Integer, ProjectVersionRef> builds = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    StubKojiClient( int missingPercent )
+            throws BindException
+    {
+        this( missingPercent, Executors.newCachedThreadPool() );
+    }
+
+    private StubKojiClient( int missingPercent, ExecutorService executor )
+            throws BindException
+    {
+        super( new StubConfig(), new MemoryPasswordManager(), executor );
+        this.missingPercent = missingPercent;
+        this.executor = executor;
+    }
+
+    @Override
+    public <T> T withKojiSession( KojiCustomCommand<T> command )
+            throws KojiClientException
+    {
+        return command.execute( null );
+    }
+
+    @Override
+    public List<KojiArchiveInfo> listArchivesMatching( ProjectVersionRef ref, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        ProjectVersionRef gav = new SimpleProjectVersionRef( ref.getGroupId(), ref.getArtifactId(),
+                                                             ref.getVersionString() );
+        int hash = gav.toString().hashCode() & Integer.MAX_VALUE;
+        if ( hash % 100 < missingPercent )
+        {
+            return Collections.emptyList();
+        }
+
+        int id = hash;
+        builds.put( id, gav );
+        return archives( id, gav );
+    }
+
+    @Override
+    public KojiBuildInfo getBuildInfo( int buildId, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        ProjectVersionRef gav = builds.get( buildId );
+        return gav == null ? null : buildInfo( buildId, gav );
+    }
+
+    @Override
+    public KojiBuildArchiveCollection listArchivesForBuild( int buildId, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        ProjectVersionRef gav = builds.get( buildId );
+        if ( gav == null )
+        {
+            throw new KojiClientException( "No such build: %s", buildId );
+        }
+
+        return new KojiBuildArchiveCollection( buildInfo( buildId, gav ), archives( buildId, gav ) );
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        super.close();
+        executor.shutdown();
+    }
+
+    private static KojiBuildInfo buildInfo( int id, ProjectVersionRef gav )
+    {
+        KojiBuildInfo build = new KojiBuildInfo();
+        build.setId( id );
+        build.setNvr( gav.getGroupId() + "-" + gav.getArtifactId() + "-" + gav.getVersionString() + "-1" );
+        build.setTaskId( id );
+        build.setCreationTime( new Date( 0 ) );
+        return build;
+    }
+
+    private static List<KojiArchiveInfo> archives( int buildId, ProjectVersionRef gav )
+    {
+        List<KojiArchiveInfo> archives = new ArrayList<>();
+        archives.add( archive( buildId, gav, "pom" ) );
+        archives.add( archive( buildId, gav, "jar" ) );
+        return archives;
+    }
+
+    private static KojiArchiveInfo archive( int buildId, ProjectVersionRef gav, String extension )
+    {
+        KojiArchiveInfo archive = new KojiArchiveInfo();
+        archive.setBuildId( buildId );
+        archive.setGroupId( gav.getGroupId() );
+        archive.setArtifactId( gav.getArtifactId() );
+        archive.setVersion( gav.getVersionString() );
+        archive.setExtension( extension );
+        archive.setFilename( gav.getArtifactId() + "-" + gav.getVersionString() + "." + extension );
+        return archive;
+    }
+
+    private static final class StubConfig
+            implements KojiConfig
+    {
+        @Override
+        public SiteConfig getKojiSiteConfig()
+        {
+            return new SiteConfigBuilder( getKojiSiteId(), getKojiURL() ).build();
+        }
+
+        @Override
+        public String getKojiURL()
+        {
+            return STUB_URL;
+        }
+
+        @Override
+        public String getKojiClientCertificatePassword()
+        {
+            return null;
+        }
+
+        @Override
+        public String getKojiSiteId()
+        {
+            return "koji-stub";
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.commonjava.maven.atlas.ident.ref.ProjectVersionRef;
+import org.commonjava.maven.atlas.ident.ref.SimpleProjectVersionRef;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a zip laid out like a release repository: <code>root/org/example/gN/aI/1.V/aI-1.V.{pom,jar}</code>, each with
+ * <code>.md5</code> and <code>.sha1</code> checksums. Entries are empty; only their names matter to the scanner.
+ * <br/>
+ * The duplication ratio is the fraction of entries that repeat an earlier path under a different root directory, like
+ * the same artifact shipping in several parts of a distribution. Scan these with one prefix directory skipped.
+ */
+final class SyntheticArchive
+{
+    static final int SKIP_PARTS = 1;
+
+    private static final String[] SUFFIXES = { ".pom", ".pom.md5", ".pom.sha1", ".jar", ".jar.md5", ".jar.sha1" };
+
+    private SyntheticArchive()
+    {
+    }
+
+    /**
+     * Number of distinct GAVs in an archive written with these parameters; they are <code>gav( 0 )</code> up to
+     * <code>gav( count - 1 )</code>.
+     */
+    static int gavCount( int entries, double duplication )
+    {
+        return ( unique( entries, duplication ) + SUFFIXES.length - 1 ) / SUFFIXES.length;
+    }
+
+    static ProjectVersionRef gav( int i )
+    {
+        return new SimpleProjectVersionRef( "org.example.g" + ( i % 100 ), "a" + i, "1." + ( i % 10 ) );
+    }
+
+    static File write( int entries, double duplication )
+            throws IOException
+    {
+        File file = File.createTempFile( "buildfinder-bench-", ".zip" );
+        file.deleteOnExit();
+
+        try (ZipOutputStream zip = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ))
+        {
+            for ( String name : entryNames( entries, duplication ) )
+            {
+                zip.putNextEntry( new ZipEntry( name ) );
+                zip.closeEntry();
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * The names of the entries in an archive written with these parameters, in order.
+     */
+    static List<String> entryNames( int entries, double duplication )
+    {
+        int unique = unique( entries, duplication );
+        List<String> paths = new ArrayList<>( unique );
+        for ( int i = 0; paths.size() < unique; i++ )
+        {
+            ProjectVersionRef gav = gav( i );
+            String base = String.format( "%s/%s/%s/%s-%s", gav.getGroupId().replace( '.', '/' ), gav.getArtifactId(),
+                                         gav.getVersionString(), gav.getArtifactId(), gav.getVersionString() );
+            for ( int s = 0; s < SUFFIXES.length && paths.size() < unique; s++ )
+            {
+                paths.add( base + SUFFIXES[s] );
+            }
+        }
+
+        List<String> names = new ArrayList<>( entries );
+        for ( String path : paths )
+        {
+            names.add( "release/" + path );
+        }
+        for ( int i = 0; i < entries - unique; i++ )
+        {
+            names.add( "copy" + ( i / unique ) + "/" + paths.get( i % unique ) );
+        }
+        return names;
+    }
+
+    private static int unique( int entries, double duplication )
+    {
+        return Math.max( 1, (int) Math.round( entries * ( 1 - duplication ) ) );
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.model.xmlrpc.KojiArchiveInfo;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of every Maven archive produced by a set of builds, keyed by Maven repository path (the same form as
+ * a trimmed zip entry path): the builds we've matched so far, if matches are expanded, and those prefetched from Koji
+ * tags by the {@link TagPrefetcher}. Once a build is in this index, zip entries for any of its outputs can be resolved
+ * without going back to Koji.
+ */
+class ArchiveIndex
+{
+    private final Map<String, LookupResult> byPath = new ConcurrentHashMap<>();
+
+    private final Set<Integer> expandedBuilds = ConcurrentHashMap.newKeySet();
+
+    private final boolean expandMatches;
+
+    ArchiveIndex( boolean expandMatches )
+    {
+        this.expandMatches = expandMatches;
+    }
+
+    /**
+     * Whether every build matched during the scan should be expanded into the index.
+     */
+    boolean isExpandMatches()
+    {
+        return expandMatches;
+    }
+
+    /**
+     * Mark the build as expanded. Returns false if another caller already claimed it, in which case there's no need to
+     * fetch its archive list again.
+     */
+    boolean claim( int buildId )
+    {
+        return expandedBuilds.add( buildId );
+    }
+
+    void add( LookupResult build, Iterable<KojiArchiveInfo> archives )
+    {
+        for ( KojiArchiveInfo archive : archives )
+        {
+            String path = path( archive );
+            if ( path != null )
+            {
+                byPath.putIfAbsent( path, build );
+            }
+        }
+    }
+
+    /**
+     * The Maven repository path of the archive, or null if it isn't a Maven archive.
+     */
+    static String path( KojiArchiveInfo archive )
+    {
+        if ( archive.getGroupId() == null || archive.getArtifactId() == null || archive.getVersion() == null )
+        {
+            return null;
+        }
+
+        return String.format( "%s/%s/%s/%s", archive.getGroupId().replace( '.', '/' ), archive.getArtifactId(),
+                              archive.getVersion(), archive.getFilename() );
+    }
+
+    /**
+     * Retrieve the build that produced the artifact at the given Maven repository path, or null if none of the
+     * expanded builds contain it.
+     */
+    LookupResult get( String path )
+    {
+        return byPath.get( path );
+    }
+
+    int size()
+    {
+        return byPath.size();
+    }
+
+    int getBuildCount()
+    {
+        return expandedBuilds.size();
+    }
+}
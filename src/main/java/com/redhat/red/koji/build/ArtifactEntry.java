@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.commonjava.maven.atlas.ident.ref.ArtifactRef;
+import org.commonjava.maven.atlas.ident.ref.ProjectVersionRef;
+
+/**
+ * A zip entry that parsed to a Maven artifact, waiting for its GAV to be looked up in Koji.
+ */
+final class ArtifactEntry
+{
+    private final String source;
+
+    private final String entryName;
+
+    private final String path;
+
+    private final ArtifactPath pathInfo;
+
+    ArtifactEntry( String source, String entryName, String path, ArtifactPath pathInfo )
+    {
+        this.source = source;
+        this.entryName = entryName;
+        this.path = path;
+        this.pathInfo = pathInfo;
+    }
+
+    /**
+     * Name of the input (see {@link EntrySource#getName()}) containing the entry.
+     */
+    String getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Full name of the entry in the zip archive. Entries of nested archives are named
+     * <code>outer-entry!/inner-entry</code>.
+     */
+    String getEntryName()
+    {
+        return entryName;
+    }
+
+    /**
+     * Entry name (or, for nested archives, the innermost part of it) with the skipped prefix directories removed.
+     */
+    String getPath()
+    {
+        return path;
+    }
+
+    ProjectVersionRef getProjectId()
+    {
+        return pathInfo.getProjectId();
+    }
+
+    ArtifactRef getArtifact()
+    {
+        return pathInfo.getArtifact();
+    }
+
+    /**
+     * The file name, which is what Koji records for each archive in a build.
+     */
+    String getFilename()
+    {
+        return pathInfo.getFile();
+    }
+
+    boolean isPom()
+    {
+        return "pom".equals( pathInfo.getType() );
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.commonjava.maven.atlas.ident.ref.ArtifactRef;
+import org.commonjava.maven.atlas.ident.ref.ProjectVersionRef;
+import org.commonjava.maven.atlas.ident.ref.SimpleArtifactRef;
+import org.commonjava.maven.atlas.ident.ref.SimpleProjectVersionRef;
+
+/**
+ * The parts of a Maven repository path, as parsed by {@link ArtifactPathParser}: the same as
+ * {@link org.commonjava.maven.atlas.ident.util.ArtifactPathInfo} holds, without the snapshot check its constructor
+ * makes (which compiles a pattern every time, and which nothing here needs).
+ */
+final class ArtifactPath
+{
+    private final String groupId;
+
+    private final String artifactId;
+
+    private final String version;
+
+    private final String classifier;
+
+    private final String type;
+
+    private final String file;
+
+    ArtifactPath( String groupId, String artifactId, String version, String classifier, String type, String file )
+    {
+        this.groupId = groupId;
+        this.artifactId = artifactId;
+        this.version = version;
+        this.classifier = classifier;
+        this.type = type;
+        this.file = file;
+    }
+
+    String getGroupId()
+    {
+        return groupId;
+    }
+
+    String getArtifactId()
+    {
+        return artifactId;
+    }
+
+    /**
+     * The version in the file name, which for a timestamped snapshot is not the directory's <code>-SNAPSHOT</code>.
+     */
+    String getVersion()
+    {
+        return version;
+    }
+
+    String getClassifier()
+    {
+        return classifier;
+    }
+
+    String getType()
+    {
+        return type;
+    }
+
+    String getFile()
+    {
+        return file;
+    }
+
+    ProjectVersionRef getProjectId()
+    {
+        return new SimpleProjectVersionRef( groupId, artifactId, version );
+    }
+
+    ArtifactRef getArtifact()
+    {
+        return new SimpleArtifactRef( groupId, artifactId, version, type, classifier );
+    }
+}
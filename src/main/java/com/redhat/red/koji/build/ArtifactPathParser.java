@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Gives the same results as {@link org.commonjava.maven.atlas.ident.util.ArtifactPathInfo#parse(String)}, for a
+ * fraction of the cost. That compiles its
+ * pattern on every call and matches the whole path against it; this works out the groupId, artifactId and version of
+ * each directory once, and checks only the file names in it, by hand, trying the same alternatives in the same order
+ * as the pattern would. Directories are kept in a small direct-mapped cache, which is plenty since the files of a GAV
+ * sit together in almost every archive.
+ * <br/>
+ * A path whose directory doesn't have the simple <code>group/path/artifactId/version</code> form, or whose file name
+ * doesn't fit it, is matched against a precompiled copy of the full pattern instead, which can find other (odd) ways to
+ * split it, as the original does.
+ */
+final class ArtifactPathParser
+{
+    private static final int CACHE_SIZE = 1 << 10;
+
+    // as in ArtifactPathInfo, for the paths the fast path doesn't handle
+    private static final Pattern PATH_PATTERN = Pattern.compile(
+            "\\/?(([^\\/]+\\/)*[^\\/]+)\\/([^\\/]+)\\/(([^\\/]+)(-SNAPSHOT)?)\\/"
+                    + "(\\3-((\\4)|(\\5-([0-9]{8}.[0-9]{6})-([0-9]+)))(-([^.]+))?(\\.(.+)))" );
+
+    private static final String SNAPSHOT = "-SNAPSHOT";
+
+    // racing threads build equal, immutable entries, so there's no need to lock
+    private final GavDirectory[] cache = new GavDirectory[CACHE_SIZE];
+
+    ArtifactPath parse( String path )
+    {
+        int slash = path.lastIndexOf( '/' );
+        if ( slash < 0 || path.indexOf( '\\' ) >= 0 )
+        {
+            return parseFully( path );
+        }
+
+        int hash = 0;
+        for ( int i = 0; i < slash; i++ )
+        {
+            hash = 31 * hash + path.charAt( i );
+        }
+
+        int slot = ( hash ^ hash >>> 16 ) & ( CACHE_SIZE - 1 );
+        GavDirectory directory = cache[slot];
+        if ( directory == null || directory.path.length() != slash
+                || !path.regionMatches( 0, directory.path, 0, slash ) )
+        {
+            directory = new GavDirectory( path.substring( 0, slash ) );
+            cache[slot] = directory;
+        }
+
+        if ( directory.artifactId == null )
+        {
+            return parseFully( path );
+        }
+
+        // artifactId-version[-classifier].type, with the version as it is, or timestamped in place of -SNAPSHOT
+        int start = slash + 1;
+        int versionStart = start + directory.artifactId.length() + 1;
+        if ( versionStart > path.length() || path.charAt( versionStart - 1 ) != '-'
+                || !path.regionMatches( start, directory.artifactId, 0, directory.artifactId.length() ) )
+        {
+            return parseFully( path );
+        }
+
+        // tried in the order the full pattern tries them; the first that leaves a classifier and type wins
+        ArtifactPath info = file( path, start, versionStart, literal( path, versionStart, directory.version ),
+                                      directory );
+        if ( info == null )
+        {
+            info = file( path, start, versionStart, timestamped( path, versionStart, directory.version ), directory );
+        }
+        if ( info == null && directory.baseVersion != null )
+        {
+            info = file( path, start, versionStart, timestamped( path, versionStart, directory.baseVersion ),
+                         directory );
+        }
+        return info != null ? info : parseFully( path );
+    }
+
+    /**
+     * The artifact, if the file name is a classifier and type from versionEnd on: <code>(-([^.]+))?(\.(.+))</code>.
+     */
+    private static ArtifactPath file( String path, int start, int versionStart, int versionEnd,
+                                      GavDirectory directory )
+    {
+        if ( versionEnd < 0 || versionEnd == path.length() )
+        {
+            return null;
+        }
+
+        String classifier = null;
+        int dot = versionEnd;
+        if ( path.charAt( versionEnd ) == '-' )
+        {
+            // [^.]+ takes everything up to the next dot, which must then be followed by the type
+            int next = path.indexOf( '.', versionEnd + 1 );
+            if ( next > versionEnd + 1 && isType( path, next + 1 ) )
+            {
+                classifier = path.substring( versionEnd + 1, next );
+                dot = next;
+            }
+        }
+
+        if ( path.charAt( dot ) != '.' || !isType( path, dot + 1 ) )
+        {
+            return null;
+        }
+
+        return new ArtifactPath( directory.groupId, directory.artifactId, path.substring( versionStart, versionEnd ),
+                                 classifier, path.substring( dot + 1 ), path.substring( start ) );
+    }
+
+    /**
+     * Whether the rest of the path from the position matches <code>.+</code>.
+     */
+    private static boolean isType( String path, int from )
+    {
+        if ( from >= path.length() )
+        {
+            return false;
+        }
+        for ( int i = from; i < path.length(); i++ )
+        {
+            if ( isLineTerminator( path.charAt( i ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Where the version ends if the path has it at the position, otherwise -1.
+     */
+    private static int literal( String path, int at, String version )
+    {
+        return path.regionMatches( at, version, 0, version.length() ) ? at + version.length() : -1;
+    }
+
+    /**
+     * Where the version ends if the path has the base version, then <code>-[0-9]{8}.[0-9]{6}-[0-9]+</code>, at the
+     * position; otherwise -1.
+     */
+    private static int timestamped( String path, int at, String baseVersion )
+    {
+        int i = literal( path, at, baseVersion );
+        if ( i < 0 || i + 17 > path.length() || path.charAt( i ) != '-' || !digits( path, i + 1, 8 )
+                || isLineTerminator( path.charAt( i + 9 ) ) || !digits( path, i + 10, 6 )
+                || path.charAt( i + 16 ) != '-' )
+        {
+            return -1;
+        }
+
+        // the build number's digits are taken greedily; giving any back would leave a digit where - or . must be
+        int end = i + 17;
+        while ( end < path.length() && isDigit( path.charAt( end ) ) )
+        {
+            end++;
+        }
+        return end > i + 17 ? end : -1;
+    }
+
+    private static boolean digits( String path, int from, int count )
+    {
+        for ( int i = from; i < from + count; i++ )
+        {
+            if ( !isDigit( path.charAt( i ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit( char c )
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * What <code>.</code> doesn't match in a {@link Pattern} without flags.
+     */
+    private static boolean isLineTerminator( char c )
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * What {@link org.commonjava.maven.atlas.ident.util.ArtifactPathInfo#parse(String)} does, without compiling the
+     * pattern again.
+     */
+    static ArtifactPath parseFully( String path )
+    {
+        if ( path == null || path.isEmpty() )
+        {
+            return null;
+        }
+
+        Matcher matcher = PATH_PATTERN.matcher( path.replace( '\\', '/' ) );
+        if ( !matcher.matches() )
+        {
+            return null;
+        }
+
+        return new ArtifactPath( matcher.group( 1 ).replace( '/', '.' ), matcher.group( 3 ), matcher.group( 8 ),
+                                 matcher.group( 14 ), matcher.group( 16 ), matcher.group( 7 ) );
+    }
+
+    private static final class GavDirectory
+    {
+        private final String path;
+
+        // all null if the directory isn't of the simple form
+        private final String groupId;
+
+        private final String artifactId;
+
+        private final String version;
+
+        // the version without -SNAPSHOT, if it is one
+        private final String baseVersion;
+
+        GavDirectory( String path )
+        {
+            this.path = path;
+
+            // like the full pattern: an optional leading slash, then at least three names, none of them empty
+            int start = path.startsWith( "/" ) ? 1 : 0;
+            int versionSlash = path.lastIndexOf( '/' );
+            int artifactSlash = versionSlash <= start ? -1 : path.lastIndexOf( '/', versionSlash - 1 );
+            if ( artifactSlash <= start || path.indexOf( "//", start ) >= 0 || path.startsWith( "/", start )
+                    || versionSlash == path.length() - 1 )
+            {
+                this.groupId = null;
+                this.artifactId = null;
+                this.version = null;
+                this.baseVersion = null;
+                return;
+            }
+
+            this.groupId = path.substring( start, artifactSlash ).replace( '/', '.' );
+            this.artifactId = path.substring( artifactSlash + 1, versionSlash );
+            this.version = path.substring( versionSlash + 1 );
+            this.baseVersion = version.length() > SNAPSHOT.length() && version.endsWith( SNAPSHOT ) ?
+                    version.substring( 0, version.length() - SNAPSHOT.length() ) :
+                    null;
+        }
+    }
+}
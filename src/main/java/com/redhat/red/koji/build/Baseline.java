@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An earlier version of the input archives, and the results a previous run recorded for it in the
+ * {@link Checkpoint} journal. Each input archive's central directory is compared with the baseline's by entry name,
+ * size and CRC; unchanged entries keep their recorded result, and only added or changed ones are looked up. Entries of
+ * a nested archive are unchanged if the nested archive is.
+ */
+class Baseline
+{
+    private final File archive;
+
+    private Map<String, LookupResult> previous = new HashMap<>();
+
+    // names of the top-level entries of each input that are unchanged since the baseline
+    private final Map<String, Set<String>> unchanged = new HashMap<>();
+
+    Baseline( File archive )
+    {
+        this.archive = archive;
+    }
+
+    /**
+     * Read the results recorded for the baseline, and compare the input archives with it. Call before the journal is
+     * opened for this run.
+     */
+    void compare( List<EntrySource> sources, Checkpoint journal )
+            throws IOException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+
+        previous = journal.recorded( archive );
+        if ( previous.isEmpty() )
+        {
+            logger.warn( "The checkpoint journal has no results for baseline: {}. Scanning every entry.", archive );
+            return;
+        }
+
+        Map<String, Long> before = new CentralDirectorySource( archive, null ).readChecksums();
+        for ( EntrySource source : sources )
+        {
+            File in = source.getFile();
+            if ( in == null )
+            {
+                continue;
+            }
+
+            Map<String, Long> after = new CentralDirectorySource( in, null ).readChecksums();
+            Set<String> same = new HashSet<>();
+            int added = 0;
+            int changed = 0;
+            for ( Map.Entry<String, Long> e : after.entrySet() )
+            {
+                Long checksum = before.get( e.getKey() );
+                if ( checksum == null )
+                {
+                    added++;
+                }
+                else if ( !checksum.equals( e.getValue() ) )
+                {
+                    changed++;
+                }
+                else
+                {
+                    same.add( e.getKey() );
+                }
+            }
+
+            unchanged.put( source.getName(), same );
+            logger.info( "{} has {} entries unchanged since {}, {} added, {} changed and {} removed",
+                         source.getName(), same.size(), archive, added, changed,
+                         before.size() - same.size() - changed );
+        }
+    }
+
+    /**
+     * The result recorded for the entry in the baseline, if the entry hasn't changed since; otherwise null.
+     */
+    LookupResult carried( String source, String entryName )
+    {
+        Set<String> same = unchanged.get( source );
+        if ( same == null )
+        {
+            return null;
+        }
+
+        int nested = entryName.indexOf( "!/" );
+        return same.contains( nested < 0 ? entryName : entryName.substring( 0, nested ) ) ?
+                previous.get( entryName ) :
+                null;
+    }
+}
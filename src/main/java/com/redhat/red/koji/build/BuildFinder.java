@@ -17,161 +17,804 @@ package com.redhat.red.koji.build;
 
 import com.redhat.red.build.koji.KojiClient;
 import com.redhat.red.build.koji.KojiClientException;
+import com.redhat.red.build.koji.model.xmlrpc.KojiArchiveInfo;
+import com.redhat.red.build.koji.model.xmlrpc.KojiBuildArchiveCollection;
 import com.redhat.red.build.koji.model.xmlrpc.KojiBuildInfo;
+import com.redhat.red.build.koji.model.xmlrpc.KojiSessionInfo;
 import org.commonjava.maven.atlas.ident.ref.ArtifactRef;
-import org.commonjava.maven.atlas.ident.util.ArtifactPathInfo;
+import org.commonjava.maven.atlas.ident.ref.ProjectVersionRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.zip.ZipFile;
-
-import static org.apache.commons.lang.StringUtils.join;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Iterate through file entries in a zip archive. For each that doesn't end in .md5 or .sha1, and that parses to a
- * Maven artifact reference (GAVTC), search for a Koji build that lists the artifact in its output.
+ * Iterate through file entries in a set of inputs (see {@link EntrySource}). For each that the {@link EntryClassifier}
+ * doesn't exclude (checksums and metadata, by default), and that parses to a Maven artifact reference (GAVTC),
+ * search for a Koji build that lists the artifact in its output. Entries are grouped by GAV (across all the inputs),
+ * and each GAV is looked up in Koji once. Lookups start as soon as the first entry of a GAV is found, while the inputs
+ * are still being read.
+ * <br/>
+ * If a {@link LookupCache} is supplied, results are read from and recorded to it so later runs can skip the Koji query.
+ * If a {@link MissingFilter} is supplied, artifacts it holds are reported missing without a query (except for a sample
+ * that is looked up to check it), and artifacts found to be missing are added to it.
+ * If a {@link LookupBatcher} is supplied, Koji queries are queued to it and sent in batches instead of one at a time.
+ * If an {@link ArchiveIndex} is supplied, entries it covers (from builds prefetched by tag, or, if it expands matches,
+ * from every build matched so far) are resolved without querying Koji. If an {@link OfflineIndex} is supplied, it
+ * replaces Koji altogether: entries it lists are found, and the rest are missing.
+ * If a {@link Checkpoint} is supplied, each entry's result is recorded to it as soon as it is known, and entries it
+ * holds results for from an earlier run are reported from it without being looked up again. If a {@link Baseline} is
+ * supplied, entries unchanged since that earlier version of the input keep the result recorded for them.
+ * <br/>
+ * All Koji queries go through a {@link LookupCoalescer}, so each distinct query is sent at most once per run even when
+ * several workers (or several input files) need the same answer at the same time.
+ * <br/>
+ * Work is spread over the stages of a {@link ScanPipeline}: entries are enumerated on the calling thread, parsed on the
+ * parse stage, looked up on the Koji I/O stage, and their results cached and reported on the aggregation stage. Entry
+ * counts, cache hits and Koji call latencies are recorded in the {@link ScanMetrics}, and calls are made (and retried)
+ * by the {@link CallPolicy}. Entries whose lookups still fail are reported as unresolved rather than found or missing.
  */
 class BuildFinder
 {
     private KojiClient client;
 
-    private final Set<String> found = new HashSet<>();
+    private final LookupCache cache;
+
+    private final MissingFilter missingFilter;
+
+    private final LookupBatcher batcher;
+
+    private final ArchiveIndex archiveIndex;
+
+    private final OfflineIndex offlineIndex;
+
+    private final Checkpoint checkpoint;
+
+    private final Baseline baseline;
+
+    private final LookupCoalescer coalescer = new LookupCoalescer();
 
-    private final Set<String> missing = new HashSet<>();
+    private final ResultStore results = new ResultStore();
 
-    BuildFinder( KojiClient client )
+    private final ArtifactPathParser parser = new ArtifactPathParser();
+
+    private final ScanPipeline pipeline;
+
+    private final ScanMetrics metrics;
+
+    private final CallPolicy policy;
+
+    BuildFinder( KojiClient client, ScanPipeline pipeline, ScanMetrics metrics, CallPolicy policy, LookupCache cache,
+                 MissingFilter missingFilter, LookupBatcher batcher, ArchiveIndex archiveIndex,
+                 OfflineIndex offlineIndex, Checkpoint checkpoint, Baseline baseline )
     {
         this.client = client;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+        this.policy = policy;
+        this.cache = cache;
+        this.missingFilter = missingFilter;
+        this.batcher = batcher;
+        this.archiveIndex = archiveIndex;
+        this.offlineIndex = offlineIndex;
+        this.checkpoint = checkpoint;
+        this.baseline = baseline;
+    }
+
+    /**
+     * Scan all of the given inputs together, passing each entry's outcome to the report as soon as it is known, and
+     * return how many entries of each input had no Koji build (or failed to resolve). Entries from every input share
+     * one pass through the pipeline, so an artifact that ships in several inputs (or a GAV whose artifacts are spread
+     * over several) is only looked up once.
+     */
+    ScanResult findMissingBuilds( List<EntrySource> sources, EntryClassifier classifier, ReportSink report )
+            throws IOException, KojiClientException
+    {
+        return findMissingBuilds( sources, classifier, report, null );
     }
 
-    Set<String> findMissingBuilds( File zipFile, int skipParts )
+    /**
+     * Scan as above, in a Koji session the caller has logged in (and will log out), as the {@link ScanServer} keeps one
+     * for all of its jobs. If the session is null, one is logged in for this scan alone.
+     */
+    ScanResult findMissingBuilds( List<EntrySource> sources, EntryClassifier classifier, ReportSink report,
+                                  KojiSessionInfo session )
             throws IOException, KojiClientException
     {
-        ZipFile zf = new ZipFile( zipFile );
         Logger logger = LoggerFactory.getLogger( getClass() );
-        final Set<String> missingBuilds = new HashSet<>();
+        final Scan scan = new Scan( sources, pipeline.aggregateTasks(), report );
 
-        client.withKojiSession( ( session ) -> {
-            zf.stream().parallel().filter( ( entry ) -> !entry.isDirectory() ).forEach( ( entry ) -> {
-                String entryName = entry.getName();
+        if ( offlineIndex != null )
+        {
+            scanAll( sources, classifier, scan );
+        }
+        else if ( session != null )
+        {
+            scan.session = session;
+            scanAll( sources, classifier, scan );
+        }
+        else
+        {
+            try
+            {
+                client.withKojiSession( ( newSession ) -> {
+                    scan.session = newSession;
+                    try
+                    {
+                        scanAll( sources, classifier, scan );
+                    }
+                    catch ( IOException e )
+                    {
+                        throw new UncheckedIOException( e );
+                    }
+                    return null;
+                } );
+            }
+            catch ( UncheckedIOException e )
+            {
+                throw e.getCause();
+            }
+        }
+
+        logger.info( "Dispatched {} lookup groups for {} inputs", scan.groups.get(), sources.size() );
+        if ( archiveIndex != null )
+        {
+            logger.info( "Archive index now covers {} archives from {} builds", archiveIndex.size(),
+                         archiveIndex.getBuildCount() );
+        }
+
+        // failed lookups have already been logged, and their entries recorded as unresolved.
+        scan.waiting.forEach( ( future ) -> future.exceptionally( ( error ) -> null ).join() );
+
+        scan.aggregation.await();
+        return new ScanResult( counts( scan.missingBySource ), counts( scan.unresolvedBySource ),
+                               scan.sessionRejected );
+    }
 
-                if ( entryName.endsWith( ".md5" ) || entryName.endsWith( ".sha1" ) || entryName.endsWith( "maven-metadata.xml" ) )
+    private void scanAll( List<EntrySource> sources, EntryClassifier classifier, Scan scan )
+            throws IOException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        ScanPipeline.TaskGroup parsing = pipeline.parseTasks();
+        ScanMetrics.StageStats enumeration = metrics.stage( "enumerate" );
+        try
+        {
+            // enumerate entries on this thread, and hand each to the parse stage
+            for ( EntrySource source : sources )
+            {
+                logger.info( "Scanning: {}", source.getName() );
+                long start = System.nanoTime();
+                try
+                {
+                    source.scan( ( entryName ) -> parsing.execute(
+                            () -> parseEntry( source.getName(), entryName, classifier, scan ) ) );
+                }
+                finally
                 {
-                    logger.debug( "Skipping checksum file: {}", entryName );
+                    enumeration.ran( System.nanoTime() - start );
+                }
+            }
+        }
+        finally
+        {
+            // even if we stop early, let in-flight work finish so no claimed path is left pending.
+            parsing.await();
+            scan.awaitLookups();
+        }
+    }
+
+    private void parseEntry( String source, String entryName, EntryClassifier classifier, Scan scan )
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        metrics.entryScanned();
+
+        LookupResult resumed = checkpoint == null ? null : checkpoint.resumed( source, entryName );
+        if ( resumed != null )
+        {
+            metrics.entryResumed();
+            report( scan, source, entryName, resumed );
+            return;
+        }
+
+        LookupResult carried = baseline == null ? null : baseline.carried( source, entryName );
+        if ( carried != null )
+        {
+            metrics.entryCarried();
+            entryResolved( scan, source, entryName, carried );
+            return;
+        }
+
+        if ( classifier.isExcluded( entryName ) )
+        {
+            logger.debug( "Skipping excluded file: {}", entryName );
+            metrics.entrySkipped();
+            return;
+        }
+
+        String path = classifier.path( entryName );
+        if ( path == null )
+        {
+            metrics.entryIgnored();
+            return;
+        }
+
+        LookupResult known = results.get( path );
+        if ( known != null )
+        {
+            metrics.entryDeduplicated();
+            entryResolved( scan, source, entryName, known );
+            return;
+        }
+
+        ArtifactPath pathInfo = parser.parse( path );
+        if ( pathInfo == null )
+        {
+            metrics.entryIgnored();
+            return;
+        }
+
+        CompletableFuture<LookupResult> existing = results.claim( path );
+        if ( existing != null )
+        {
+            metrics.entryDeduplicated();
+            scan.waiting.add( existing.whenComplete( ( result, error ) -> {
+                if ( error != null )
+                {
+                    unresolved( scan, source, entryName, error );
+                }
+                else
+                {
+                    entryResolved( scan, source, entryName, result );
+                }
+            } ) );
+            return;
+        }
+
+        ArtifactEntry artifact = new ArtifactEntry( source, entryName, path, pathInfo );
+        if ( offlineIndex != null )
+        {
+            LookupResult offline = offlineIndex.get( path );
+            if ( offline != null )
+            {
+                metrics.indexHit();
+            }
+            record( scan, artifact, offline == null ? LookupResult.missing() : offline );
+            return;
+        }
+
+        LookupResult indexed = archiveIndex == null ? null : archiveIndex.get( path );
+        if ( indexed != null )
+        {
+            logger.debug( "{} is covered by indexed build: {}", path, indexed.getNvr() );
+            metrics.indexHit();
+            resolved( scan, artifact, indexed );
+            return;
+        }
+
+        String key = cacheKey( artifact );
+        LookupResult cached = cache == null ? null : cache.get( key );
+        if ( cached != null )
+        {
+            logger.debug( "Cache hit for: {} ({})", artifact.getArtifact(), cached );
+            metrics.cacheHit();
+            record( scan, artifact, cached );
+            return;
+        }
+
+        if ( cache != null )
+        {
+            metrics.cacheMiss();
+        }
+
+        if ( missingFilter != null && missingFilter.mightContain( key ) )
+        {
+            if ( !missingFilter.spotCheck() )
+            {
+                logger.debug( "Known to be missing: {}", artifact.getArtifact() );
+                metrics.missingFilterHit();
+                record( scan, artifact, LookupResult.missing() );
+                return;
+            }
+            metrics.missingFilterSpotCheck();
+        }
+
+        enqueue( scan, pathInfo.getProjectId(), artifact );
+    }
+
+    /**
+     * Queue the artifact for lookup with others of its group, and start a lookup for the group if there isn't one
+     * waiting to run already. A group holds artifacts of one GAV, or, when expanding builds, of every GAV with the same
+     * groupId and version (which probably come from the same build): they are resolved one after another, so the
+     * first match can cover the rest. Artifacts that arrive after their group's lookup has started form a new group,
+     * whose Koji queries are mostly answered by the {@link LookupCoalescer} or the {@link ArchiveIndex}.
+     */
+    private void enqueue( Scan scan, ProjectVersionRef gav, ArtifactEntry artifact )
+    {
+        String key = archiveIndex == null || !archiveIndex.isExpandMatches() ?
+                gav.toString() :
+                gav.getGroupId() + ":" + gav.getVersionString();
+
+        AtomicBoolean created = new AtomicBoolean();
+        scan.queued.compute( key, ( k, group ) -> {
+            if ( group == null )
+            {
+                group = new ArrayList<>();
+                created.set( true );
+            }
+            group.add( artifact );
+            return group;
+        } );
+
+        if ( created.get() )
+        {
+            scan.groups.incrementAndGet();
+
+            // take the group out of the queue when the lookup starts, so everything that arrived by then is included
+            scan.lookups.add( CompletableFuture.supplyAsync( () -> scan.queued.remove( key ), pipeline.getIoExecutor() )
+                                               .thenCompose( ( group ) -> lookupGroup( group, scan ) )
+                                               .exceptionally( ( error ) -> {
+                                                   Logger logger = LoggerFactory.getLogger( getClass() );
+                                                   logger.error( "Lookup failed for: " + key, error );
+                                                   return null;
+                                               } ) );
+        }
+    }
+
+    private CompletableFuture<Void> lookupGroup( List<ArtifactEntry> group, Scan scan )
+    {
+        Map<ProjectVersionRef, List<ArtifactEntry>> byGav = new LinkedHashMap<>();
+        group.forEach( ( artifact ) -> byGav.computeIfAbsent( artifact.getProjectId(), ( gav ) -> new ArrayList<>() )
+                                            .add( artifact ) );
+
+        ExecutorService io = pipeline.getIoExecutor();
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture( null );
+        for ( Map.Entry<ProjectVersionRef, List<ArtifactEntry>> e : byGav.entrySet() )
+        {
+            chain = chain.thenComposeAsync( ( v ) -> resolveGav( e.getKey(), e.getValue(), scan, scan.session ), io );
+        }
+
+        return chain.whenComplete( ( v, error ) -> {
+            if ( error != null )
+            {
+                // don't leave our claimed paths pending for anyone else waiting on them
+                group.forEach( ( artifact ) -> unresolved( scan, artifact, error ) );
+            }
+        } );
+    }
+
+    private CompletableFuture<Void> resolveGav( ProjectVersionRef gav, List<ArtifactEntry> artifacts, Scan scan,
+                                                KojiSessionInfo session )
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+
+        List<ArtifactEntry> remaining = artifacts;
+        if ( archiveIndex != null )
+        {
+            remaining = new ArrayList<>( artifacts.size() );
+            for ( ArtifactEntry artifact : artifacts )
+            {
+                LookupResult indexed = archiveIndex.get( artifact.getPath() );
+                if ( indexed != null )
+                {
+                    logger.debug( "{} is covered by expanded build: {}", artifact.getPath(), indexed.getNvr() );
+                    metrics.indexHit();
+                    resolved( scan, artifact, indexed );
                 }
                 else
                 {
-                    String[] parts = entryName.split( "/" );
-                    if ( parts.length > skipParts )
+                    remaining.add( artifact );
+                }
+            }
+
+            if ( remaining.isEmpty() )
+            {
+                return CompletableFuture.completedFuture( null );
+            }
+        }
+
+        final List<ArtifactEntry> toQuery = remaining;
+        logger.debug( "Looking up: {} ({} artifacts, first: '{}')", gav, toQuery.size(),
+                      toQuery.get( 0 ).getEntryName() );
+
+        if ( batcher != null )
+        {
+            return coalescer.async( "gav:" + gav, () -> batcher.submit( gav ) ).handle( ( buildsByFilename, error ) -> {
+                if ( error != null )
+                {
+                    logger.error( "Failed to query koji for GAV: " + gav, error );
+                    toQuery.forEach( ( artifact ) -> unresolved( scan, artifact, error ) );
+                    return null;
+                }
+
+                for ( ArtifactEntry artifact : toQuery )
+                {
+                    LookupResult result = selectBuild( buildsByFilename.get( artifact.getFilename() ) );
+                    resolved( scan, artifact, result );
+
+                    try
                     {
-                        String[] realParts = new String[parts.length - skipParts];
-                        System.arraycopy( parts, skipParts, realParts, 0, realParts.length );
-                        String path = join( realParts, "/" );
-
-                        Boolean foundT_missingF = null;
-                        synchronized ( missing )
-                        {
-                            if ( missing.contains( path ) )
-                            {
-                                foundT_missingF = false;
-                            }
-                        }
-
-                        synchronized ( found )
-                        {
-                            if ( found.contains( path ) )
-                            {
-                                foundT_missingF = true;
-                            }
-                        }
-
-                        if ( foundT_missingF == null )
-                        {
-                            ArtifactPathInfo pathInfo = ArtifactPathInfo.parse( path );
-                            if ( pathInfo != null )
-                            {
-                                ArtifactRef aref = pathInfo.getArtifact();
-                                logger.info( "??? {} (trimmed path: '{}', real path: '{}'", aref, path, entryName );
-                                try
-                                {
-                                    List<KojiBuildInfo> builds = client.listBuildsContaining( aref, session );
-
-                                    Collections.sort( builds, ( build1, build2 ) -> build1.getCreationTime()
-                                                                                          .compareTo( build2.getCreationTime() ) );
-
-                                    logger.debug( "Got {} builds from koji. Looking for best match.", builds.size() );
-
-                                    if ( builds == null || builds.isEmpty() )
-                                    {
-                                        markMissing( missingBuilds, entryName, path );
-                                    }
-                                    else
-                                    {
-                                        boolean foundGoodBuild = false;
-                                        for ( KojiBuildInfo build : builds )
-                                        {
-                                            if ( build.getTaskId() != null )
-                                            {
-                                                logger.debug(
-                                                        "Build: {} is not a real build. It looks like a binary import. Skipping.",
-                                                        build.getNvr() );
-
-                                                foundGoodBuild = true;
-
-                                                synchronized ( found )
-                                                {
-                                                    found.add( path );
-                                                }
-
-                                                break;
-                                            }
-                                        }
-
-                                        if ( !foundGoodBuild )
-                                        {
-                                            markMissing( missingBuilds, entryName, path );
-                                        }
-                                    }
-                                }
-                                catch ( KojiClientException e )
-                                {
-                                    logger.error( "Failed to query koji for artifact: " + aref, e );
-                                }
-                            }
-                        }
-                        else if ( !foundT_missingF )
-                        {
-                            synchronized ( missingBuilds )
-                            {
-                                missingBuilds.add( entryName );
-                            }
-                        }
+                        expand( result, session );
+                    }
+                    catch ( KojiClientException e )
+                    {
+                        logger.warn( "Failed to expand build: " + result.getNvr(), e );
                     }
                 }
+
+                return null;
             } );
+        }
+
+        try
+        {
+            lookupGav( gav, scan, toQuery, session );
+        }
+        catch ( KojiClientException e )
+        {
+            logger.error( "Failed to query koji for GAV: " + gav, e );
+
+            // artifacts resolved before the failure keep their results
+            toQuery.forEach( ( artifact ) -> unresolved( scan, artifact, e ) );
+        }
+
+        return CompletableFuture.completedFuture( null );
+    }
+
+    /**
+     * Look up the builds for one artifact of the GAV (the POM if there is one, since every Maven build produces it),
+     * then check the other artifacts against the chosen build's archive list. Only artifacts that build doesn't
+     * contain are queried on their own. The match is shared by every group of the same GAV.
+     */
+    private void lookupGav( ProjectVersionRef gav, Scan scan, List<ArtifactEntry> artifacts, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        ArtifactEntry first =
+                artifacts.stream().filter( ArtifactEntry::isPom ).findFirst().orElse( artifacts.get( 0 ) );
+
+        GavMatch match = coalescer.sync( "match:" + gav, () -> matchGav( first, session ) );
+        if ( !match.build.isFound() )
+        {
+            artifacts.forEach( ( artifact ) -> resolved( scan, artifact, match.build ) );
+            return;
+        }
+
+        for ( ArtifactEntry artifact : artifacts )
+        {
+            if ( match.filenames.contains( artifact.getFilename() ) )
+            {
+                resolved( scan, artifact, match.build );
+            }
+            else
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.debug( "{} is not in build: {}. Looking it up separately.", artifact.getFilename(),
+                              match.build.getNvr() );
 
-            return null;
+                resolved( scan, artifact, selectBuild( listBuildsContaining( artifact.getArtifact(), session ) ) );
+            }
+        }
+    }
+
+    private GavMatch matchGav( ArtifactEntry first, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        LookupResult result = selectBuild( listBuildsContaining( first.getArtifact(), session ) );
+        if ( !result.isFound() )
+        {
+            return new GavMatch( result, Collections.emptySet() );
+        }
+
+        KojiBuildArchiveCollection archives = listArchivesForBuild( result.getBuildId(), session );
+        if ( archiveIndex != null && archiveIndex.claim( result.getBuildId() ) )
+        {
+            archiveIndex.add( result, archives );
+        }
+
+        Set<String> filenames = new HashSet<>();
+        archives.forEach( ( archive ) -> filenames.add( archive.getFilename() ) );
+
+        // the build we found it in should list it, but don't look it up again if not
+        filenames.add( first.getFilename() );
+
+        return new GavMatch( result, filenames );
+    }
+
+    /**
+     * If build expansion is enabled and nobody has done it yet, fetch the complete archive list of the matched build
+     * and add it to the archive index.
+     */
+    private void expand( LookupResult result, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        if ( archiveIndex == null || !archiveIndex.isExpandMatches() || !result.isFound()
+                || !archiveIndex.claim( result.getBuildId() ) )
+        {
+            return;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.debug( "Expanding archive list for build: {}", result.getNvr() );
+
+        archiveIndex.add( result, listArchivesForBuild( result.getBuildId(), session ) );
+    }
+
+    /**
+     * The builds containing the artifact. Does what kojiji's <code>listBuildsContaining()</code> does, except that it
+     * drops any build it fails to load, which would make the artifact look missing; here the failure is retried, and
+     * fails the lookup if it persists.
+     */
+    private List<KojiBuildInfo> listBuildsContaining( ArtifactRef aref, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        return coalescer.sync( "builds:" + aref, () -> {
+            List<KojiArchiveInfo> archives =
+                    policy.call( "listArchives", () -> client.listArchivesMatching( aref, session ) );
+
+            Set<Integer> buildIds = new LinkedHashSet<>();
+            archives.forEach( ( archive ) -> buildIds.add( archive.getBuildId() ) );
+            buildIds.remove( null );
+
+            List<KojiBuildInfo> builds = new ArrayList<>( buildIds.size() );
+            for ( Integer buildId : buildIds )
+            {
+                KojiBuildInfo build = coalescer.sync( "build:" + buildId, () -> policy.call(
+                        "getBuild", () -> client.getBuildInfo( buildId, session ) ) );
+                if ( build != null )
+                {
+                    builds.add( build );
+                }
+            }
+            return builds;
         } );
+    }
 
-        return missingBuilds;
+    private KojiBuildArchiveCollection listArchivesForBuild( int buildId, KojiSessionInfo session )
+            throws KojiClientException
+    {
+        return coalescer.sync( "archives:" + buildId, () -> policy.call( "listArchivesForBuild", () -> {
+            KojiBuildArchiveCollection archives = client.listArchivesForBuild( buildId, session );
+            if ( archives == null )
+            {
+                // kojiji logs a failed archive query and returns null; make it a failure we can retry
+                throw new KojiClientException( "Failed to retrieve archives for build: %s", buildId );
+            }
+            return archives;
+        } ) );
+    }
+
+    LookupCoalescer getCoalescer()
+    {
+        return coalescer;
     }
 
-    private void markMissing( Set<String> missingBuilds, String entryPath, String trimmedPath )
+    private LookupResult selectBuild( List<KojiBuildInfo> builds )
     {
-        synchronized ( missing )
+        Logger logger = LoggerFactory.getLogger( getClass() );
+
+        if ( builds == null || builds.isEmpty() )
+        {
+            return LookupResult.missing();
+        }
+
+        // batched lookups share result lists between entries, so sort a copy.
+        List<KojiBuildInfo> sorted = new ArrayList<>( builds );
+        sorted.sort( Comparator.comparing( KojiBuildInfo::getCreationTime,
+                                           Comparator.nullsLast( Comparator.naturalOrder() ) ) );
+
+        logger.debug( "Got {} builds from koji. Looking for best match.", builds.size() );
+
+        for ( KojiBuildInfo build : sorted )
         {
-            missing.add( trimmedPath );
+            // builds without a task are binary imports, not real builds
+            if ( build.getTaskId() != null )
+            {
+                return LookupResult.found( build.getId(), build.getNvr() );
+            }
+
+            logger.debug( "Build: {} is not a real build. It looks like a binary import. Skipping.", build.getNvr() );
+        }
+
+        return LookupResult.missing();
+    }
+
+    private String cacheKey( ArtifactEntry artifact )
+    {
+        return artifact.getArtifact().toString();
+    }
+
+    /**
+     * Record a result that came from Koji, remembering it in the cache (and the missing-artifact filter) as well. The
+     * path is resolved right away, on the calling thread, so a failure later in the same lookup can't also fail it;
+     * only the bookkeeping and reporting wait for the aggregation stage.
+     */
+    private void resolved( Scan scan, ArtifactEntry artifact, LookupResult result )
+    {
+        results.resolve( artifact.getPath(), result );
+        scan.aggregation.execute( () -> {
+            String key = cacheKey( artifact );
+            if ( cache != null )
+            {
+                cache.put( key, result );
+            }
+
+            if ( missingFilter != null && !result.isFound() )
+            {
+                missingFilter.add( key );
+            }
+            else if ( missingFilter != null && missingFilter.mightContain( key ) )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.debug( "Missing-artifact filter was wrong about: {} ({})", key, result );
+                metrics.missingFilterWrong();
+            }
+
+            aggregate( scan, artifact, result );
+        } );
+    }
+
+    private void record( Scan scan, ArtifactEntry artifact, LookupResult result )
+    {
+        results.resolve( artifact.getPath(), result );
+        scan.aggregation.execute( () -> aggregate( scan, artifact, result ) );
+    }
+
+    /**
+     * Give up on an artifact whose lookup failed, unless it was already resolved (artifacts resolved before a failure
+     * keep their results). It goes in the unresolved section of the report, and isn't cached, so the next run asks
+     * again.
+     */
+    private void unresolved( Scan scan, ArtifactEntry artifact, Throwable error )
+    {
+        if ( results.fail( artifact.getPath(), error ) )
+        {
+            metrics.unresolved();
+            unresolved( scan, artifact.getSource(), artifact.getEntryName(), error );
+        }
+    }
+
+    private void unresolved( Scan scan, String source, String entryName, Throwable error )
+    {
+        if ( isAuthFault( error ) )
+        {
+            scan.sessionRejected = true;
+        }
+        scan.unresolvedBySource.get( source ).incrementAndGet();
+        scan.report.unresolved( source, entryName );
+    }
+
+    private void aggregate( Scan scan, ArtifactEntry artifact, LookupResult result )
+    {
+        metrics.resolved( result );
+        entryResolved( scan, artifact.getSource(), artifact.getEntryName(), result );
+    }
+
+    private void entryResolved( Scan scan, String source, String entryName, LookupResult result )
+    {
+        report( scan, source, entryName, result );
+
+        if ( checkpoint != null )
+        {
+            checkpoint.record( source, entryName, result );
+        }
+    }
+
+    private void report( Scan scan, String source, String entryName, LookupResult result )
+    {
+        if ( !result.isFound() )
+        {
+            scan.missingBySource.get( source ).incrementAndGet();
+        }
+        scan.report.resolved( source, entryName, result );
+    }
+
+    private static Map<String, Integer> counts( Map<String, AtomicInteger> bySource )
+    {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        bySource.forEach( ( source, count ) -> counts.put( source, count.get() ) );
+        return counts;
+    }
+
+    /**
+     * Whether a failure, or one of its causes, is the hub turning down the session: it names the exception in its
+     * fault string. Timeouts and other faults say nothing about the session.
+     */
+    static boolean isAuthFault( Throwable error )
+    {
+        for ( Throwable e = error; e != null; e = e.getCause() )
+        {
+            String message = e.getMessage();
+            if ( message != null && ( message.contains( "AuthError" ) || message.contains( "AuthExpired" )
+                    || message.contains( "AuthLockError" ) ) )
+            {
+                return true;
+            }
+
+            if ( e.getCause() == e )
+            {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The build chosen for a GAV, and the filenames of its archives.
+     */
+    private static final class GavMatch
+    {
+        private final LookupResult build;
+
+        private final Set<String> filenames;
+
+        GavMatch( LookupResult build, Set<String> filenames )
+        {
+            this.build = build;
+            this.filenames = filenames;
+        }
+    }
+
+    /**
+     * State of one call to {@link #findMissingBuilds(List, EntryClassifier, ReportSink, KojiSessionInfo)}.
+     */
+    private static final class Scan
+    {
+        private final Map<String, AtomicInteger> missingBySource = new LinkedHashMap<>();
+
+        private final Map<String, AtomicInteger> unresolvedBySource = new LinkedHashMap<>();
+
+        private final ScanPipeline.TaskGroup aggregation;
+
+        private final ReportSink report;
+
+        // artifacts waiting for their group's lookup to start, by group key
+        private final Map<String, List<ArtifactEntry>> queued = new ConcurrentHashMap<>();
+
+        private final Queue<CompletableFuture<?>> lookups = new ConcurrentLinkedQueue<>();
+
+        // entries whose path is already being looked up elsewhere; we wait for those results at the end.
+        private final Queue<CompletableFuture<?>> waiting = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger groups = new AtomicInteger();
+
+        private volatile KojiSessionInfo session;
+
+        // set when a lookup failed because the hub turned the session down
+        private volatile boolean sessionRejected;
+
+        Scan( List<EntrySource> sources, ScanPipeline.TaskGroup aggregation, ReportSink report )
+        {
+            // filled in up front, in input order, so workers only ever read the map
+            sources.forEach( ( source ) -> {
+                missingBySource.put( source.getName(), new AtomicInteger() );
+                unresolvedBySource.put( source.getName(), new AtomicInteger() );
+            } );
+            this.aggregation = aggregation;
+            this.report = report;
         }
 
-        synchronized ( missingBuilds )
+        /**
+         * Wait for every lookup started so far. Call once no more entries can be queued.
+         */
+        void awaitLookups()
         {
-            missingBuilds.add( entryPath );
+            lookups.forEach( CompletableFuture::join );
         }
     }
 }
@@ -0,0 +1,318 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How each Koji call is made: under the {@link ConcurrencyLimiter}, given up on after a deadline, optionally hedged
+ * with a second identical request when it runs slower than most calls of its method, and retried with jittered
+ * exponential backoff when it fails. Every call we make is a read, so repeating one is always safe.
+ * <br/>
+ * With no deadline and no hedging, calls run on the calling thread. Otherwise each attempt runs on a thread of its own,
+ * so the caller can stop waiting for it; an abandoned attempt still holds its slot in the limiter until the hub (or
+ * <code>request.timeout.seconds</code>) ends it.
+ */
+class CallPolicy
+        implements Closeable
+{
+    private static final long BACKOFF_BASE_MILLIS = 250;
+
+    private static final long BACKOFF_MAX_MILLIS = 10000;
+
+    private static final double HEDGE_PERCENTILE = 95;
+
+    /**
+     * Calls of a method needed before its latency percentile is trusted as a hedging threshold.
+     */
+    private static final long HEDGE_MIN_CALLS = 50;
+
+    /**
+     * Most hedged requests, as a fraction of calls, so hedging can't double the load on a hub that is slow for
+     * everyone.
+     */
+    private static final double HEDGE_BUDGET = 0.1;
+
+    private final ConcurrencyLimiter limiter;
+
+    private final ScanMetrics metrics;
+
+    private final int retries;
+
+    private final long deadlineMillis;
+
+    private final boolean hedge;
+
+    private final ExecutorService attempts;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    CallPolicy( ConcurrencyLimiter limiter, ScanMetrics metrics, int retries, long deadlineMillis, boolean hedge )
+    {
+        this.limiter = limiter;
+        this.metrics = metrics;
+        this.retries = Math.max( 0, retries );
+        this.deadlineMillis = Math.max( 0, deadlineMillis );
+        this.hedge = hedge;
+
+        if ( this.deadlineMillis > 0 || hedge )
+        {
+            AtomicInteger count = new AtomicInteger();
+            attempts = Executors.newCachedThreadPool( ( r ) -> {
+                Thread t = new Thread( r, "koji-call-" + count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            } );
+        }
+        else
+        {
+            attempts = null;
+        }
+    }
+
+    /**
+     * Make the call, retrying it if it fails, and throw the last failure once the retries are used up.
+     */
+    <T> T call( String method, LookupCoalescer.Query<T> query )
+            throws KojiClientException
+    {
+        for ( int attempt = 0; ; attempt++ )
+        {
+            try
+            {
+                return attempts == null ? limiter.call( method, query ) : attempt( method, query );
+            }
+            catch ( KojiClientException e )
+            {
+                if ( attempt >= retries || Thread.currentThread().isInterrupted() )
+                {
+                    throw e;
+                }
+
+                long backoff = backoffMillis( attempt );
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Koji {} failed (attempt {} of {}). Retrying in {}ms. Reason: {}", method, attempt + 1,
+                             retries + 1, backoff, e.getMessage() );
+
+                metrics.retried();
+                if ( !sleep( backoff ) )
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of times a failed call is tried again.
+     */
+    int getRetries()
+    {
+        return retries;
+    }
+
+    /**
+     * Wait before the given retry (counting from 0): a random time between half and all of an exponentially growing
+     * bound, so callers that failed together don't all come back together. Returns false if interrupted.
+     */
+    boolean backoff( int attempt )
+    {
+        metrics.retried();
+        return sleep( backoffMillis( attempt ) );
+    }
+
+    @Override
+    public void close()
+    {
+        if ( attempts != null )
+        {
+            attempts.shutdownNow();
+        }
+    }
+
+    private <T> T attempt( String method, LookupCoalescer.Query<T> query )
+            throws KojiClientException
+    {
+        calls.incrementAndGet();
+        CompletableFuture<T> primary = start( method, query );
+        CompletableFuture<T> result = primary;
+        long waited = 0;
+
+        long hedgeAfter = hedgeAfterMillis( method );
+        if ( hedgeAfter > 0 && ( deadlineMillis == 0 || hedgeAfter < deadlineMillis ) )
+        {
+            try
+            {
+                return unwrap( method, () -> primary.get( hedgeAfter, TimeUnit.MILLISECONDS ) );
+            }
+            catch ( TimeoutException e )
+            {
+                waited = hedgeAfter;
+                if ( hedges.get() < calls.get() * HEDGE_BUDGET )
+                {
+                    Logger logger = LoggerFactory.getLogger( getClass() );
+                    logger.debug( "Koji {} still running after {}ms. Hedging it.", method, hedgeAfter );
+
+                    hedges.incrementAndGet();
+                    metrics.hedged();
+                    CompletableFuture<T> hedged = start( method, query );
+                    hedged.thenRun( () -> {
+                        if ( !primary.isDone() )
+                        {
+                            metrics.hedgeWon();
+                        }
+                    } );
+                    result = firstSuccess( primary, hedged );
+                }
+            }
+        }
+
+        CompletableFuture<T> answer = result;
+        long remaining = deadlineMillis - waited;
+        try
+        {
+            return deadlineMillis == 0 ? unwrap( method, answer::get ) : unwrap(
+                    method, () -> answer.get( remaining, TimeUnit.MILLISECONDS ) );
+        }
+        catch ( TimeoutException e )
+        {
+            metrics.deadlineExceeded();
+            throw new KojiClientException( "Koji %s did not answer within its %sms deadline", e, method,
+                                           deadlineMillis );
+        }
+    }
+
+    private <T> CompletableFuture<T> start( String method, LookupCoalescer.Query<T> query )
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        attempts.execute( () -> {
+            try
+            {
+                future.complete( limiter.call( method, query ) );
+            }
+            catch ( Throwable e )
+            {
+                future.completeExceptionally( e );
+            }
+        } );
+        return future;
+    }
+
+    /**
+     * Threshold for hedging a call of the method, or 0 if it shouldn't be hedged (yet).
+     */
+    private long hedgeAfterMillis( String method )
+    {
+        if ( !hedge || metrics.callCount( method ) < HEDGE_MIN_CALLS )
+        {
+            return 0;
+        }
+
+        return Math.max( 1, Math.round( metrics.percentileMillis( method, HEDGE_PERCENTILE ) ) );
+    }
+
+    private long backoffMillis( int attempt )
+    {
+        long bound = Math.min( BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min( attempt, 16 ) );
+        return ThreadLocalRandom.current().nextLong( bound / 2, bound + 1 );
+    }
+
+    private static boolean sleep( long millis )
+    {
+        try
+        {
+            Thread.sleep( millis );
+            return true;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * A future with the result of whichever of the two succeeds first, or the failure of the second if both fail.
+     */
+    private static <T> CompletableFuture<T> firstSuccess( CompletableFuture<T> a, CompletableFuture<T> b )
+    {
+        CompletableFuture<T> first = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for ( CompletableFuture<T> f : Arrays.asList( a, b ) )
+        {
+            f.whenComplete( ( result, error ) -> {
+                if ( error == null )
+                {
+                    first.complete( result );
+                }
+                else if ( failures.incrementAndGet() == 2 )
+                {
+                    first.completeExceptionally( error );
+                }
+            } );
+        }
+        return first;
+    }
+
+    private interface Wait<T>
+    {
+        T get()
+                throws InterruptedException, ExecutionException, TimeoutException;
+    }
+
+    private static <T> T unwrap( String method, Wait<T> wait )
+            throws KojiClientException, TimeoutException
+    {
+        try
+        {
+            return wait.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new KojiClientException( "Interrupted waiting for Koji %s", e, method );
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof KojiClientException )
+            {
+                throw (KojiClientException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new KojiClientException( "Koji %s failed", cause, method );
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.ZipException;
+
+/**
+ * Lists entries of a zip archive on local disk by reading its central directory straight from a memory-mapped buffer,
+ * without building a {@link java.util.zip.ZipEntry} for each one. Only the entry name is decoded; directories are
+ * skipped before any String is created. Supports ZIP64 archives, and archives with data prepended to them.
+ * <br/>
+ * A first, sequential pass hops from header to header, reading only their lengths, and notes where each range of
+ * {@link #RANGE_ENTRIES} entries starts. The ranges are then decoded in parallel on the parse stage.
+ */
+class CentralDirectorySource
+        implements EntrySource
+{
+    static final int RANGE_ENTRIES = 4096;
+
+    private static final int EOCD_SIG = 0x06054b50;
+
+    private static final int EOCD_SIZE = 22;
+
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+
+    private static final int ZIP64_EOCD_SIZE = 56;
+
+    private static final int CEN_SIG = 0x02014b50;
+
+    private static final int CEN_SIZE = 46;
+
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private final File file;
+
+    private final ScanPipeline pipeline;
+
+    CentralDirectorySource( File file, ScanPipeline pipeline )
+    {
+        this.file = file;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public String getName()
+    {
+        return file.getPath();
+    }
+
+    @Override
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public void scan( Consumer<String> handler )
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+        {
+            long[] entries = new long[1];
+            MappedByteBuffer cd = mapCentralDirectory( channel, entries );
+            int[] ranges = findRanges( cd, entries[0] );
+
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.debug( "{} has {} entries in a {} byte central directory; reading in {} ranges", file, entries[0],
+                          cd.limit(), ranges.length - 1 );
+
+            ScanPipeline.TaskGroup readers = pipeline.parseTasks();
+            for ( int i = 0; i < ranges.length - 1; i++ )
+            {
+                int start = ranges[i];
+                int end = ranges[i + 1];
+                ByteBuffer range = cd.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+                readers.execute( () -> readRange( range, start, end, handler ) );
+            }
+
+            readers.await();
+        }
+    }
+
+    /**
+     * The CRC-32 and size of each file entry, by name: the CRC in the high 32 bits and the size field of the central
+     * directory header in the low 32 (sizes of 4GB and up are all recorded as 0xFFFFFFFF there). Read sequentially,
+     * on the calling thread.
+     */
+    Map<String, Long> readChecksums()
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+        {
+            long[] entries = new long[1];
+            MappedByteBuffer cd = mapCentralDirectory( channel, entries );
+            // this checks every header, so the walk below can trust them
+            int[] ranges = findRanges( cd, entries[0] );
+
+            Map<String, Long> checksums = new HashMap<>();
+            byte[] name = new byte[0xFFFF];
+            int pos = 0;
+            while ( pos < ranges[ranges.length - 1] )
+            {
+                int nameLength = cd.getShort( pos + 28 ) & 0xFFFF;
+                int extraLength = cd.getShort( pos + 30 ) & 0xFFFF;
+                int commentLength = cd.getShort( pos + 32 ) & 0xFFFF;
+                if ( nameLength > 0 && cd.get( pos + CEN_SIZE + nameLength - 1 ) != '/' )
+                {
+                    long crc = cd.getInt( pos + 16 ) & 0xFFFFFFFFL;
+                    long size = cd.getInt( pos + 24 ) & 0xFFFFFFFFL;
+                    cd.position( pos + CEN_SIZE );
+                    cd.get( name, 0, nameLength );
+                    checksums.put( new String( name, 0, nameLength, StandardCharsets.UTF_8 ), crc << 32 | size );
+                }
+
+                pos += CEN_SIZE + nameLength + extraLength + commentLength;
+            }
+
+            return checksums;
+        }
+    }
+
+    /**
+     * Add the central directory, as it is on disk, to the digest. It holds the name, CRC and size of every entry, so
+     * two archives with the same central directory list the same contents.
+     */
+    void digestCentralDirectory( MessageDigest digest )
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+        {
+            digest.update( mapCentralDirectory( channel, new long[1] ) );
+        }
+    }
+
+    /**
+     * Find the central directory from the records at the end of the archive, and map it. The number of entries it
+     * holds is stored in the first element of the array.
+     */
+    private MappedByteBuffer mapCentralDirectory( FileChannel channel, long[] entries )
+            throws IOException
+    {
+        long size = channel.size();
+        long eocd = findEndOfCentralDirectory( channel, size );
+
+        MappedByteBuffer tail = map( channel, eocd, EOCD_SIZE );
+        entries[0] = tail.getShort( 10 ) & 0xFFFF;
+        long cdSize = tail.getInt( 12 ) & 0xFFFFFFFFL;
+        long cdEnd = eocd;
+
+        // any of these may overflow into the ZIP64 record; an archive with exactly 65535 entries may not have one
+        long zip64 = findZip64EndOfCentralDirectory( channel, eocd );
+        if ( zip64 >= 0 )
+        {
+            MappedByteBuffer record = map( channel, zip64, ZIP64_EOCD_SIZE );
+            entries[0] = record.getLong( 32 );
+            cdSize = record.getLong( 40 );
+            cdEnd = zip64;
+        }
+        else if ( cdSize == 0xFFFFFFFFL || ( tail.getInt( 16 ) & 0xFFFFFFFFL ) == 0xFFFFFFFFL )
+        {
+            throw new ZipException( "Cannot find ZIP64 end of central directory in: " + file );
+        }
+
+        // locate the directory from its end rather than its recorded offset, in case data was prepended
+        long cdStart = cdEnd - cdSize;
+        if ( cdSize > Integer.MAX_VALUE || cdStart < 0 )
+        {
+            throw new ZipException( "Unsupported central directory size: " + cdSize + " in: " + file );
+        }
+
+        return map( channel, cdStart, cdSize );
+    }
+
+    /**
+     * Walk the headers of the central directory, and return the offset where every range starts, followed by the
+     * offset where the last one ends.
+     */
+    private int[] findRanges( MappedByteBuffer cd, long entries )
+            throws ZipException
+    {
+        List<Integer> starts = new ArrayList<>();
+        int limit = cd.limit();
+        int pos = 0;
+        for ( long i = 0; i < entries; i++ )
+        {
+            if ( pos + CEN_SIZE > limit || cd.getInt( pos ) != CEN_SIG )
+            {
+                throw new ZipException( "Invalid central directory header for entry " + i + " in: " + file );
+            }
+
+            if ( i % RANGE_ENTRIES == 0 )
+            {
+                starts.add( pos );
+            }
+
+            pos += CEN_SIZE + ( cd.getShort( pos + 28 ) & 0xFFFF ) + ( cd.getShort( pos + 30 ) & 0xFFFF ) + (
+                    cd.getShort( pos + 32 ) & 0xFFFF );
+        }
+
+        if ( pos > limit )
+        {
+            throw new ZipException( "Central directory is truncated in: " + file );
+        }
+
+        int[] ranges = new int[starts.size() + 1];
+        for ( int i = 0; i < starts.size(); i++ )
+        {
+            ranges[i] = starts.get( i );
+        }
+        ranges[starts.size()] = pos;
+
+        return ranges;
+    }
+
+    private void readRange( ByteBuffer cd, int start, int end, Consumer<String> handler )
+    {
+        byte[] name = new byte[0xFFFF];
+        int pos = start;
+        while ( pos < end )
+        {
+            int nameLength = cd.getShort( pos + 28 ) & 0xFFFF;
+            int extraLength = cd.getShort( pos + 30 ) & 0xFFFF;
+            int commentLength = cd.getShort( pos + 32 ) & 0xFFFF;
+
+            // directories end in '/'; skip them without decoding the name
+            if ( nameLength > 0 && cd.get( pos + CEN_SIZE + nameLength - 1 ) != '/' )
+            {
+                cd.position( pos + CEN_SIZE );
+                cd.get( name, 0, nameLength );
+                handler.accept( new String( name, 0, nameLength, StandardCharsets.UTF_8 ) );
+            }
+
+            pos += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * The end-of-central-directory record is the last thing in the file, followed only by a comment of up to 64k.
+     */
+    private long findEndOfCentralDirectory( FileChannel channel, long size )
+            throws IOException
+    {
+        if ( size < EOCD_SIZE )
+        {
+            throw new ZipException( "Not a zip archive: " + file );
+        }
+
+        long searchStart = Math.max( 0, size - EOCD_SIZE - MAX_COMMENT );
+        MappedByteBuffer search = map( channel, searchStart, size - searchStart );
+        for ( int pos = search.limit() - EOCD_SIZE; pos >= 0; pos-- )
+        {
+            if ( search.getInt( pos ) == EOCD_SIG
+                    && pos + EOCD_SIZE + ( search.getShort( pos + 20 ) & 0xFFFF ) == search.limit() )
+            {
+                return searchStart + pos;
+            }
+        }
+
+        throw new ZipException( "Cannot find end of central directory in: " + file );
+    }
+
+    /**
+     * The ZIP64 end-of-central-directory record is found through the locator just before the regular one. Returns -1
+     * if there is no locator.
+     */
+    private long findZip64EndOfCentralDirectory( FileChannel channel, long eocd )
+            throws IOException
+    {
+        long locator = eocd - ZIP64_LOCATOR_SIZE;
+        if ( locator < 0 || map( channel, locator, ZIP64_LOCATOR_SIZE ).getInt( 0 ) != ZIP64_LOCATOR_SIG )
+        {
+            return -1;
+        }
+
+        // try the recorded offset, then (in case data was prepended) the spot right before the locator
+        long[] candidates = { map( channel, locator, ZIP64_LOCATOR_SIZE ).getLong( 8 ), locator - ZIP64_EOCD_SIZE };
+        for ( long record : candidates )
+        {
+            if ( record >= 0 && record + ZIP64_EOCD_SIZE <= locator
+                    && map( channel, record, 4 ).getInt( 0 ) == ZIP64_EOCD_SIG )
+            {
+                return record;
+            }
+        }
+
+        throw new ZipException( "Cannot find ZIP64 end of central directory in: " + file );
+    }
+
+    private static MappedByteBuffer map( FileChannel channel, long position, long length )
+            throws IOException
+    {
+        MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        return buf;
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
+
+/**
+ * Append-only journal of the entries resolved during a scan, so a run that dies part way through can be resumed
+ * without asking Koji about them again. Each input archive is identified by a fingerprint of its size, modification
+ * time and a digest of its central directory (and so of the name, CRC and size of every entry), located through the
+ * end-of-central-directory record; that can run to a hundred megabytes for an archive of a million entries. On
+ * resume, entries recorded for an input with the same fingerprint are reported from the journal; inputs without a
+ * file (directories and streams) are always scanned in full.
+ * <br/>
+ * Records are buffered and written out at most a second apart, so a crash loses at most the last second of progress.
+ * A record cut short by a crash is skipped when the journal is read back. Entries whose lookups failed aren't
+ * recorded, so they are retried on resume.
+ */
+class Checkpoint
+        implements Closeable
+{
+    private static final String HEADER = "# koji-buildfinder checkpoint v1";
+
+    private static final String INPUT_MARKER = "input";
+
+    private static final String MISSING_MARKER = "-";
+
+    // digested instead of the central directory of a file that isn't a readable zip archive
+    private static final int DIGEST_BYTES = 1 << 20;
+
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+    private final File file;
+
+    // results from earlier runs, by current input name, then entry name
+    private final Map<String, Map<String, LookupResult>> resumed = new HashMap<>();
+
+    // journal id of each current input with a fingerprint
+    private final Map<String, String> ids = new HashMap<>();
+
+    private PrintWriter writer;
+
+    private long flushedNanos;
+
+    Checkpoint( File file )
+    {
+        this.file = file;
+    }
+
+    /**
+     * Start journaling a scan of the given inputs. When resuming, the results the journal already holds for inputs with
+     * matching fingerprints are loaded first, and new records are appended to it; otherwise (or if it holds nothing for
+     * these inputs) it starts over.
+     */
+    void open( List<EntrySource> sources, boolean resume )
+            throws IOException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+
+        Map<String, List<String>> byFingerprint = new HashMap<>();
+        for ( EntrySource source : sources )
+        {
+            File in = source.getFile();
+            if ( in != null )
+            {
+                byFingerprint.computeIfAbsent( fingerprint( in ), ( fp ) -> new ArrayList<>() )
+                             .add( source.getName() );
+            }
+        }
+
+        int nextId = resume && file.length() > 0 ? load( byFingerprint, resumed ) : 0;
+
+        // a journal with nothing for these inputs only grows if we keep it
+        boolean append = !resumed.isEmpty();
+        if ( !append )
+        {
+            nextId = 0;
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if ( parent != null )
+        {
+            parent.mkdirs();
+        }
+
+        boolean partialLine = append && !endsWithNewline();
+        writer = new PrintWriter( new BufferedWriter( new FileWriter( file, append ) ) );
+        if ( partialLine )
+        {
+            // the last run died mid-record; don't run on from it
+            writer.print( '\n' );
+        }
+        if ( !append )
+        {
+            writer.print( HEADER + "\n" );
+        }
+
+        for ( Map.Entry<String, List<String>> e : byFingerprint.entrySet() )
+        {
+            for ( String name : e.getValue() )
+            {
+                String id = Integer.toString( nextId++ );
+                ids.put( name, id );
+                writer.print( INPUT_MARKER + "\t" + id + "\t" + e.getKey() + "\t" + name + "\n" );
+            }
+        }
+
+        writer.flush();
+        flushedNanos = System.nanoTime();
+
+        if ( resume )
+        {
+            for ( String name : ids.keySet() )
+            {
+                Map<String, LookupResult> entries = resumed.get( name );
+                if ( entries == null )
+                {
+                    logger.info( "Nothing to resume for: {}. It is new, or has changed since it was journaled.",
+                                 name );
+                }
+                else
+                {
+                    logger.info( "Resuming {}: {} entries already resolved", name, entries.size() );
+                }
+            }
+        }
+        logger.info( "Recording progress of {} of {} inputs in: {}", ids.size(), sources.size(), file );
+    }
+
+    /**
+     * The result an earlier run recorded for the entry, or null if it has to be looked up.
+     */
+    LookupResult resumed( String source, String entryName )
+    {
+        Map<String, LookupResult> entries = resumed.get( source );
+        return entries == null ? null : entries.get( entryName );
+    }
+
+    /**
+     * Record the result of an entry of the input. Safe to call from any thread.
+     */
+    void record( String source, String entryName, LookupResult result )
+    {
+        String id = ids.get( source );
+        if ( id == null )
+        {
+            return;
+        }
+
+        synchronized ( this )
+        {
+            if ( writer == null )
+            {
+                return;
+            }
+
+            writer.append( id ).append( '\t' );
+            if ( result.isFound() )
+            {
+                writer.append( Integer.toString( result.getBuildId() ) ).append( '\t' ).append( result.getNvr() );
+            }
+            else
+            {
+                writer.append( MISSING_MARKER ).append( '\t' );
+            }
+            writer.append( '\t' ).append( entryName ).append( '\n' );
+
+            long now = System.nanoTime();
+            if ( now - flushedNanos > FLUSH_INTERVAL_NANOS )
+            {
+                writer.flush();
+                flushedNanos = now;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if ( writer != null )
+        {
+            writer.close();
+            if ( writer.checkError() )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Failed to write checkpoint journal: {}. It may be incomplete.", file );
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * The results recorded in the journal for entries of the given archive, as it is now, by entry name. Call before
+     * {@link #open(List, boolean)}, which may start the journal over.
+     */
+    Map<String, LookupResult> recorded( File archive )
+            throws IOException
+    {
+        if ( file.length() == 0 )
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Map<String, LookupResult>> recorded = new HashMap<>();
+        load( Collections.singletonMap( fingerprint( archive ), Collections.singletonList( archive.getPath() ) ),
+              recorded );
+        return recorded.getOrDefault( archive.getPath(), Collections.emptyMap() );
+    }
+
+    /**
+     * Read the results recorded for inputs with the given fingerprints into the map, by input name, and return the
+     * next free input id.
+     */
+    private int load( Map<String, List<String>> byFingerprint, Map<String, Map<String, LookupResult>> into )
+            throws IOException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+
+        // names of the current inputs each journal id maps to, if any
+        Map<String, List<String>> inputs = new HashMap<>();
+        Map<Integer, LookupResult> builds = new HashMap<>();
+        int nextId = 0;
+        int malformed = 0;
+
+        try (BufferedReader reader = new BufferedReader( new FileReader( file ) ))
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                if ( line.isEmpty() || line.startsWith( "#" ) )
+                {
+                    continue;
+                }
+
+                // input, id, fingerprint, name; or id, build id (or '-' for missing), nvr, entry name
+                String[] parts = line.split( "\t", 4 );
+                if ( parts.length < 4 )
+                {
+                    malformed++;
+                    continue;
+                }
+
+                try
+                {
+                    if ( INPUT_MARKER.equals( parts[0] ) )
+                    {
+                        nextId = Math.max( nextId, Integer.parseInt( parts[1] ) + 1 );
+                        inputs.put( parts[1], byFingerprint.getOrDefault( parts[2], Collections.emptyList() ) );
+                        continue;
+                    }
+
+                    List<String> names = inputs.get( parts[0] );
+                    if ( names == null || names.isEmpty() )
+                    {
+                        continue;
+                    }
+
+                    LookupResult result = MISSING_MARKER.equals( parts[1] ) ?
+                            LookupResult.missing() :
+                            builds.computeIfAbsent( Integer.parseInt( parts[1] ),
+                                                    ( id ) -> LookupResult.found( id, parts[2] ) );
+
+                    names.forEach( ( name ) -> into.computeIfAbsent( name, ( n ) -> new HashMap<>() )
+                                                   .put( parts[3], result ) );
+                }
+                catch ( NumberFormatException e )
+                {
+                    malformed++;
+                }
+            }
+        }
+
+        if ( malformed > 0 )
+        {
+            logger.warn( "Skipped {} malformed lines in checkpoint journal: {}", malformed, file );
+        }
+
+        return nextId;
+    }
+
+    private boolean endsWithNewline()
+            throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ))
+        {
+            raf.seek( raf.length() - 1 );
+            return raf.read() == '\n';
+        }
+    }
+
+    /**
+     * Size, modification time and SHA-256 of the central directory, which changes whenever any entry does. That is
+     * far less to read than the whole archive, though still around a hundred megabytes for one of a million entries.
+     * A file that isn't a readable zip archive has its last {@link #DIGEST_BYTES} bytes digested instead.
+     */
+    private static String fingerprint( File in )
+            throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-256 is not available", e );
+        }
+
+        long size = in.length();
+        try
+        {
+            new CentralDirectorySource( in, null ).digestCentralDirectory( digest );
+        }
+        catch ( ZipException e )
+        {
+            // scanning it will fail too; fall back to a fingerprint that still changes with the file
+            digest.reset();
+            digestTail( in, digest );
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( size ).append( ':' ).append( in.lastModified() ).append( ':' );
+        for ( byte b : digest.digest() )
+        {
+            sb.append( String.format( "%02x", b ) );
+        }
+        return sb.toString();
+    }
+
+    private static void digestTail( File in, MessageDigest digest )
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( in.toPath(), StandardOpenOption.READ ))
+        {
+            long size = channel.size();
+            long position = Math.max( 0, size - DIGEST_BYTES );
+            ByteBuffer buf = ByteBuffer.allocate( (int) ( size - position ) );
+            while ( buf.hasRemaining() )
+            {
+                if ( channel.read( buf, position + buf.position() ) < 0 )
+                {
+                    throw new EOFException( "File shrank while reading it: " + in );
+                }
+            }
+            buf.flip();
+            digest.update( buf );
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Adaptive limit on the number of Koji calls in flight, with an optional hard ceiling on calls per second.
+ * <br/>
+ * The limit follows AIMD: each call that finishes while the limit was in use adds <code>1/limit</code> (about one
+ * more slot per round trip). When the smoothed latency of a method climbs past twice its lowest point in recent calls,
+ * the limit loses a tenth, so it stops growing once the hub (or the connection pool in front of it) starts queueing;
+ * when more than one call in ten of a method fails, it is halved. Calls admitted before a decrease don't cause another
+ * one, so a burst of slow responses only counts once.
+ * <br/>
+ * Changes to the limit are logged at most every few seconds, and the final limit and its range go in the run profile.
+ */
+class ConcurrencyLimiter
+{
+    private static final double ERROR_BACKOFF = 0.5;
+
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double ERROR_TOLERANCE = 0.1;
+
+    /**
+     * Weight of each new call in the smoothed latency and error rate of its method.
+     */
+    private static final double SMOOTHING = 0.1;
+
+    /**
+     * Calls a latency baseline is kept for before it starts over, so it can follow the hub when it gets slower.
+     */
+    private static final int BASELINE_WINDOW = 500;
+
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 5 );
+
+    private final int maxLimit;
+
+    private final long rpsIntervalNanos;
+
+    private final ScanMetrics metrics;
+
+    private final Map<String, MethodLatency> latencies = new HashMap<>();
+
+    private double limit;
+
+    private int inFlight;
+
+    private long lastDecreaseNanos;
+
+    private long nextPermitNanos = System.nanoTime();
+
+    private int loggedLimit;
+
+    private long loggedNanos;
+
+    private int minSinceLog;
+
+    private int maxSinceLog;
+
+    ConcurrencyLimiter( int initialLimit, int maxLimit, double maxRps, ScanMetrics metrics )
+    {
+        this.maxLimit = Math.max( 1, maxLimit );
+        this.rpsIntervalNanos = maxRps > 0 ? (long) ( TimeUnit.SECONDS.toNanos( 1 ) / maxRps ) : 0;
+        this.metrics = metrics;
+        this.limit = Math.max( 1, Math.min( initialLimit, this.maxLimit ) );
+        this.loggedLimit = (int) limit;
+        this.minSinceLog = loggedLimit;
+        this.maxSinceLog = loggedLimit;
+        metrics.concurrencyLimit( loggedLimit );
+    }
+
+    /**
+     * Run a Koji call once the limit (and the calls-per-second ceiling, if any) allows it, recording it in the run
+     * metrics under the method and feeding its latency back into the limit.
+     */
+    <T> T call( String method, LookupCoalescer.Query<T> query )
+            throws KojiClientException
+    {
+        long admitted = acquire();
+        pace();
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try
+        {
+            T result = metrics.kojiCall( method, query );
+            failed = false;
+            return result;
+        }
+        finally
+        {
+            release( method, admitted, System.nanoTime() - start, failed );
+        }
+    }
+
+    synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    private synchronized long acquire()
+            throws KojiClientException
+    {
+        while ( inFlight >= (int) limit )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new KojiClientException( "Interrupted waiting to call Koji", e );
+            }
+        }
+
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Hold the call until its slot under the calls-per-second ceiling. Slots are handed out in order, one interval
+     * apart, so callers sleep outside the lock rather than polling.
+     */
+    private void pace()
+    {
+        if ( rpsIntervalNanos == 0 )
+        {
+            return;
+        }
+
+        long slot;
+        synchronized ( this )
+        {
+            slot = Math.max( nextPermitNanos, System.nanoTime() );
+            nextPermitNanos = slot + rpsIntervalNanos;
+        }
+
+        long wait;
+        while ( ( wait = slot - System.nanoTime() ) > 0 )
+        {
+            LockSupport.parkNanos( wait );
+        }
+    }
+
+    private synchronized void release( String method, long admitted, long latency, boolean failed )
+    {
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+
+        MethodLatency stats = latencies.computeIfAbsent( method, ( m ) -> new MethodLatency() );
+        stats.update( latency, failed );
+
+        String reason = null;
+        if ( admitted > lastDecreaseNanos && stats.errorRate > ERROR_TOLERANCE )
+        {
+            limit = Math.max( 1, limit * ERROR_BACKOFF );
+            reason = "errors";
+        }
+        else if ( admitted > lastDecreaseNanos && stats.smoothed > stats.baseline() * LATENCY_TOLERANCE )
+        {
+            limit = Math.max( 1, limit * LATENCY_BACKOFF );
+            reason = "latency";
+        }
+        else if ( !failed && saturated )
+        {
+            limit = Math.min( maxLimit, limit + 1 / limit );
+        }
+
+        if ( reason != null )
+        {
+            lastDecreaseNanos = System.nanoTime();
+        }
+
+        notifyAll();
+        limitChanged( method, stats, reason );
+    }
+
+    private void limitChanged( String method, MethodLatency stats, String reason )
+    {
+        int current = (int) limit;
+        metrics.concurrencyLimit( current );
+        minSinceLog = Math.min( minSinceLog, current );
+        maxSinceLog = Math.max( maxSinceLog, current );
+
+        long now = System.nanoTime();
+        if ( current == loggedLimit || now - loggedNanos < LOG_INTERVAL_NANOS )
+        {
+            return;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Koji concurrency limit {} -> {} (range {}-{} since last logged; {} latency {}ms, baseline {}ms, "
+                             + "{}% errors{})", loggedLimit, current, minSinceLog, maxSinceLog, method,
+                     Math.round( stats.smoothed / 1e6 ), Math.round( stats.baseline() / 1e6 ),
+                     Math.round( stats.errorRate * 100 ), reason == null ? "" : "; backed off on " + reason );
+
+        loggedLimit = current;
+        loggedNanos = now;
+        minSinceLog = current;
+        maxSinceLog = current;
+    }
+
+    /**
+     * Smoothed latency and error rate of one method, and the lowest smoothed latency over the current window of calls
+     * or the previous one, so the baseline can rise with the hub rather than holding on to one quiet moment forever.
+     */
+    private static final class MethodLatency
+    {
+        private double smoothed = -1;
+
+        private double errorRate;
+
+        private double lowest = Double.MAX_VALUE;
+
+        private double previousLowest = Double.MAX_VALUE;
+
+        private int samples;
+
+        void update( long latency, boolean failed )
+        {
+            smoothed = smoothed < 0 ? latency : smoothed + SMOOTHING * ( latency - smoothed );
+            errorRate += SMOOTHING * ( ( failed ? 1 : 0 ) - errorRate );
+
+            if ( ++samples > BASELINE_WINDOW )
+            {
+                previousLowest = lowest;
+                lowest = Double.MAX_VALUE;
+                samples = 1;
+            }
+            lowest = Math.min( lowest, smoothed );
+        }
+
+        double baseline()
+        {
+            return Math.min( lowest, previousLowest );
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Report in CSV (RFC 4180), with a header row: input, entry, status (found, missing or unresolved), and the build id
+ * and NVR of found entries.
+ */
+class CsvReportSink
+        extends StreamingReportSink
+{
+    CsvReportSink( File file )
+            throws IOException
+    {
+        super( file );
+    }
+
+    @Override
+    String header()
+    {
+        return "input,entry,status,build_id,nvr";
+    }
+
+    @Override
+    String line( String source, String entryName, String status, LookupResult result )
+    {
+        boolean found = result != null && result.isFound();
+
+        StringBuilder sb = new StringBuilder( 128 );
+        field( sb, source ).append( ',' );
+        field( sb, entryName ).append( ',' );
+        sb.append( status ).append( ',' );
+        if ( found )
+        {
+            sb.append( result.getBuildId() );
+        }
+        sb.append( ',' );
+        if ( found && result.getNvr() != null )
+        {
+            field( sb, result.getNvr() );
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder field( StringBuilder sb, String value )
+    {
+        if ( value.indexOf( ',' ) < 0 && value.indexOf( '"' ) < 0 && value.indexOf( '\n' ) < 0
+                && value.indexOf( '\r' ) < 0 )
+        {
+            return sb.append( value );
+        }
+
+        return sb.append( '"' ).append( value.replace( "\"", "\"\"" ) ).append( '"' );
+    }
+}
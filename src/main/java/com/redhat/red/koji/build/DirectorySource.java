@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Lists files under an unpacked directory (e.g. a staging repository), named by their path relative to the root with
+ * '/' separators, just like zip entries. Each directory is listed as its own task on the parse stage, so the tree is
+ * walked in parallel, and files are handed out as soon as their directory has been read. Archives found in the tree
+ * are descended into down to the configured depth, as with {@link ZipStreamSource}.
+ */
+class DirectorySource
+        implements EntrySource
+{
+    private final File root;
+
+    private final int nestedDepth;
+
+    private final ScanPipeline pipeline;
+
+    DirectorySource( File root, int nestedDepth, ScanPipeline pipeline )
+    {
+        this.root = root;
+        this.nestedDepth = nestedDepth;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public String getName()
+    {
+        return root.getPath();
+    }
+
+    @Override
+    public void scan( Consumer<String> handler )
+            throws IOException
+    {
+        ScanPipeline.TaskGroup walkers = pipeline.parseTasks();
+        walkers.execute( () -> walk( walkers, root.toPath(), "", handler ) );
+        try
+        {
+            walkers.await();
+        }
+        catch ( UncheckedIOException e )
+        {
+            throw e.getCause();
+        }
+    }
+
+    private void walk( ScanPipeline.TaskGroup walkers, Path dir, String prefix, Consumer<String> handler )
+    {
+        try (DirectoryStream<Path> children = Files.newDirectoryStream( dir ))
+        {
+            for ( Path child : children )
+            {
+                String name = prefix + child.getFileName().toString();
+
+                // don't follow links to directories, which could lead back up the tree
+                if ( Files.isDirectory( child, LinkOption.NOFOLLOW_LINKS ) )
+                {
+                    walkers.execute( () -> walk( walkers, child, name + "/", handler ) );
+                }
+                else if ( Files.isRegularFile( child ) )
+                {
+                    handler.accept( name );
+
+                    if ( nestedDepth > 0 && ZipStreamSource.isArchive( name ) )
+                    {
+                        try (InputStream in = new BufferedInputStream( Files.newInputStream( child ) ))
+                        {
+                            ZipStreamSource.scanNested( in, name, nestedDepth - 1, handler );
+                        }
+                    }
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Failed to read directory: " + dir, e );
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides, before anything is looked up, whether a zip entry is worth parsing, and what its Maven repository path is.
+ * Both work on the entry name in place, by scanning for separators, so nothing is allocated but the path itself.
+ * <br/>
+ * Entries are excluded by file name, with globs where <code>*</code> matches any run of characters and <code>?</code>
+ * any one character. The patterns are compiled once: those of the form <code>*suffix</code> (the usual case) are
+ * checked with a single comparison at the end of the name, and the rest are matched by a small backtracking matcher.
+ */
+final class EntryClassifier
+{
+    private static final String NESTED_SEPARATOR = "!/";
+
+    private final int skipParts;
+
+    private final String[] suffixes;
+
+    private final String[] globs;
+
+    EntryClassifier( int skipParts, List<String> excludes )
+    {
+        this.skipParts = skipParts;
+
+        List<String> suffixes = new ArrayList<>();
+        List<String> globs = new ArrayList<>();
+        for ( String exclude : excludes )
+        {
+            String rest = exclude.startsWith( "*" ) ? exclude.substring( 1 ) : null;
+            if ( rest != null && rest.indexOf( '*' ) < 0 && rest.indexOf( '?' ) < 0 )
+            {
+                suffixes.add( rest );
+            }
+            else
+            {
+                globs.add( exclude );
+            }
+        }
+        this.suffixes = suffixes.toArray( new String[suffixes.size()] );
+        this.globs = globs.toArray( new String[globs.size()] );
+    }
+
+    /**
+     * Whether the entry's file name matches one of the exclusion patterns.
+     */
+    boolean isExcluded( String entryName )
+    {
+        int start = entryName.lastIndexOf( '/' ) + 1;
+        int length = entryName.length() - start;
+        for ( String suffix : suffixes )
+        {
+            if ( suffix.length() <= length
+                    && entryName.regionMatches( entryName.length() - suffix.length(), suffix, 0, suffix.length() ) )
+            {
+                return true;
+            }
+        }
+
+        for ( String glob : globs )
+        {
+            if ( matches( glob, 0, entryName, start ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The path to parse: the entry name (or, for an entry of a nested archive, its name inside the innermost archive)
+     * without the skipped prefix directories or any trailing slash. Null if there's nothing left once they are removed.
+     * Only the path itself is allocated.
+     */
+    String path( String entryName )
+    {
+        int nested = entryName.lastIndexOf( NESTED_SEPARATOR );
+        int start = nested < 0 ? 0 : nested + NESTED_SEPARATOR.length();
+        for ( int i = 0; i < skipParts; i++ )
+        {
+            int slash = entryName.indexOf( '/', start );
+            if ( slash < 0 )
+            {
+                return null;
+            }
+            start = slash + 1;
+        }
+
+        int end = entryName.length();
+        while ( end > start && entryName.charAt( end - 1 ) == '/' )
+        {
+            end--;
+        }
+        return end > start ? entryName.substring( start, end ) : null;
+    }
+
+    /**
+     * Match the glob from position g against the name from position n.
+     */
+    private static boolean matches( String glob, int g, String name, int n )
+    {
+        while ( g < glob.length() )
+        {
+            char c = glob.charAt( g );
+            if ( c == '*' )
+            {
+                // try the rest of the glob at every position from here on, shortest match first
+                for ( int from = n; from <= name.length(); from++ )
+                {
+                    if ( matches( glob, g + 1, name, from ) )
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            if ( n == name.length() || ( c != '?' && c != name.charAt( n ) ) )
+            {
+                return false;
+            }
+            g++;
+            n++;
+        }
+        return n == name.length();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * One input to scan: something that can list the names of the file entries it contains.
+ */
+interface EntrySource
+{
+    /**
+     * Name used to attribute this input's missing entries in the report.
+     */
+    String getName();
+
+    /**
+     * The archive file on disk this input is read from, or null if it is a directory or a stream. Only inputs with a
+     * file can be fingerprinted, and so resumed from a {@link Checkpoint}.
+     */
+    default File getFile()
+    {
+        return null;
+    }
+
+    /**
+     * Pass the name of each file entry to the handler as soon as it's found. The handler is thread-safe, and may be
+     * called from more than one thread.
+     */
+    void scan( Consumer<String> handler )
+            throws IOException;
+
+    /**
+     * The input for a file name given on the command line (or in a {@link ScanServer} job): stdin for <code>-</code>,
+     * an unpacked directory, a regular ZIP file, or anything else that exists (such as a pipe), read front to back.
+     * Null if there's nothing at that path.
+     */
+    static EntrySource open( String inFile, int nestedDepth, ScanPipeline pipeline )
+    {
+        File in = new File( inFile );
+        if ( ZipStreamSource.STDIN.equals( inFile ) )
+        {
+            return new ZipStreamSource( "<stdin>", System.in, nestedDepth );
+        }
+        else if ( in.isDirectory() )
+        {
+            return new DirectorySource( in, nestedDepth, pipeline );
+        }
+        else if ( in.isFile() && nestedDepth < 1 )
+        {
+            return new CentralDirectorySource( in, pipeline );
+        }
+        else if ( in.isFile() )
+        {
+            // nested archives have to be read through their entry data
+            return new ZipFileSource( in, nestedDepth );
+        }
+        else if ( in.exists() )
+        {
+            // a pipe or device; we can only read it front to back
+            return new ZipStreamSource( inFile, in, nestedDepth );
+        }
+        return null;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Report in JSON Lines: one object per entry, with its input, entry name and status (found, missing or unresolved),
+ * and the build id and NVR of found entries.
+ */
+class JsonLinesReportSink
+        extends StreamingReportSink
+{
+    JsonLinesReportSink( File file )
+            throws IOException
+    {
+        super( file );
+    }
+
+    @Override
+    String header()
+    {
+        return null;
+    }
+
+    @Override
+    String line( String source, String entryName, String status, LookupResult result )
+    {
+        return json( source, entryName, status, result );
+    }
+
+    /**
+     * The object for one entry, as written on its line of the report.
+     */
+    static String json( String source, String entryName, String status, LookupResult result )
+    {
+        StringBuilder sb = new StringBuilder( 128 );
+        sb.append( "{\"input\":" ).append( ScanMetrics.quote( source ) );
+        sb.append( ",\"entry\":" ).append( ScanMetrics.quote( entryName ) );
+        sb.append( ",\"status\":\"" ).append( status ).append( '"' );
+        if ( result != null && result.isFound() )
+        {
+            sb.append( ",\"buildId\":" ).append( result.getBuildId() );
+            sb.append( ",\"nvr\":" ).append( result.getNvr() == null ? "null" : ScanMetrics.quote( result.getNvr() ) );
+        }
+        return sb.append( '}' ).toString();
+    }
+}
@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.commonjava.rwx.error.XmlRpcException;
+import org.commonjava.rwx.impl.stax.StaxParser;
+import org.commonjava.rwx.spi.XmlRpcListener;
+import org.commonjava.rwx.vocab.ValueType;
+import org.commonjava.util.jhttpc.HttpFactory;
+import org.commonjava.util.jhttpc.JHttpCException;
+import org.commonjava.util.jhttpc.auth.PasswordManager;
+import org.commonjava.util.jhttpc.model.SiteConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal XML-RPC client for Koji's <code>multiCall</code> method, which kojiji doesn't expose. Calls are sent
+ * anonymously (without session parameters), since the hub allows read-only queries without login and this keeps us
+ * out of the way of the session call-number sequence used by {@link com.redhat.red.build.koji.KojiClient}.
+ * <br/>
+ * Values are passed as plain Java objects: String, Integer, Boolean, Double, Map (struct), List (array) and null (nil).
+ */
+class KojiMultiCall
+        implements Closeable
+{
+    static final String MULTICALL_METHOD = "multiCall";
+
+    private final HttpFactory httpFactory;
+
+    private final SiteConfig siteConfig;
+
+    private final String url;
+
+    private final CallPolicy policy;
+
+    KojiMultiCall( Config config, PasswordManager passwordManager, CallPolicy policy )
+            throws IOException
+    {
+        this.httpFactory = new HttpFactory( passwordManager );
+        this.siteConfig = config.getKojiSiteConfig();
+        this.url = config.getKojiURL();
+        this.policy = policy;
+    }
+
+    /**
+     * Send all calls in one request. The returned list has one element per call, in the same order: either the call's
+     * result value, or a {@link KojiClientException} describing the fault the hub returned for that call.
+     */
+    List<Object> call( List<Call> calls )
+            throws KojiClientException
+    {
+        if ( calls.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.debug( "Sending multiCall with {} calls", calls.size() );
+
+        Object response = policy.call( MULTICALL_METHOD, () -> send( calls ) );
+
+        if ( !( response instanceof List ) )
+        {
+            throw new KojiClientException( "Unexpected multiCall response from %s: %s", url, response );
+        }
+
+        List<?> results = (List<?>) response;
+        if ( results.size() != calls.size() )
+        {
+            throw new KojiClientException( "multiCall to %s returned %d results for %d calls", url, results.size(),
+                                           calls.size() );
+        }
+
+        List<Object> unpacked = new ArrayList<>( results.size() );
+        for ( int i = 0; i < results.size(); i++ )
+        {
+            Object result = results.get( i );
+            if ( result instanceof Map )
+            {
+                // a fault struct
+                Map<?, ?> fault = (Map<?, ?>) result;
+                unpacked.add( new KojiClientException( "%s failed (fault %s): %s", calls.get( i ).method,
+                                                       fault.get( "faultCode" ), fault.get( "faultString" ) ) );
+            }
+            else if ( result instanceof List && ( (List<?>) result ).size() == 1 )
+            {
+                // successful results are wrapped in a single-element array
+                unpacked.add( ( (List<?>) result ).get( 0 ) );
+            }
+            else
+            {
+                unpacked.add( new KojiClientException( "%s returned an unexpected multiCall result: %s",
+                                                       calls.get( i ).method, result ) );
+            }
+        }
+
+        return unpacked;
+    }
+
+    /**
+     * Send the calls in one multiCall, then send any the hub answered with a fault again (in one multiCall of their
+     * own), after the same backoff as a failed request, until they all succeed or the {@link CallPolicy}'s retries run
+     * out. Faults still left are returned in place of their results.
+     */
+    List<Object> callRetryingFaults( List<Call> calls )
+            throws KojiClientException
+    {
+        List<Object> results = new ArrayList<>( call( calls ) );
+        for ( int attempt = 0; attempt < policy.getRetries(); attempt++ )
+        {
+            List<Integer> faulted = new ArrayList<>();
+            for ( int i = 0; i < results.size(); i++ )
+            {
+                if ( results.get( i ) instanceof KojiClientException )
+                {
+                    faulted.add( i );
+                }
+            }
+
+            if ( faulted.isEmpty() )
+            {
+                break;
+            }
+
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "{} of {} calls in multiCall failed (attempt {} of {}). Retrying them. First reason: {}",
+                         faulted.size(), calls.size(), attempt + 1, policy.getRetries() + 1,
+                         ( (KojiClientException) results.get( faulted.get( 0 ) ) ).getMessage() );
+
+            if ( !policy.backoff( attempt ) )
+            {
+                break;
+            }
+
+            List<Call> retry = new ArrayList<>( faulted.size() );
+            faulted.forEach( ( i ) -> retry.add( calls.get( i ) ) );
+
+            List<Object> retried = call( retry );
+            for ( int j = 0; j < faulted.size(); j++ )
+            {
+                results.set( faulted.get( j ), retried.get( j ) );
+            }
+        }
+
+        return results;
+    }
+
+    @Override
+    public void close()
+    {
+        IOUtils.closeQuietly( httpFactory );
+    }
+
+    private Object send( List<Call> calls )
+            throws KojiClientException
+    {
+        HttpPost post = new HttpPost( url );
+        post.setEntity( new StringEntity( render( calls ), ContentType.create( "text/xml", "UTF-8" ) ) );
+
+        try (CloseableHttpClient client = httpFactory.createClient( siteConfig );
+             CloseableHttpResponse httpResponse = client.execute( post ))
+        {
+            checkStatus( httpResponse );
+            try (InputStream in = httpResponse.getEntity().getContent())
+            {
+                return parse( in );
+            }
+        }
+        catch ( JHttpCException | IOException | XmlRpcException e )
+        {
+            throw new KojiClientException( "multiCall of %d calls to %s failed: %s", e, calls.size(), url,
+                                           e.getMessage() );
+        }
+    }
+
+    private void checkStatus( HttpResponse response )
+            throws IOException
+    {
+        int status = response.getStatusLine().getStatusCode();
+        if ( status != 200 )
+        {
+            throw new IOException( "HTTP " + status + ": " + response.getStatusLine().getReasonPhrase() );
+        }
+    }
+
+    private Object parse( InputStream in )
+            throws XmlRpcException
+    {
+        final Object[] value = new Object[1];
+        final String[] fault = new String[1];
+
+        new StaxParser( in ).parse( new ResultListener()
+        {
+            @Override
+            public XmlRpcListener parameter( int index, Object v, ValueType type )
+            {
+                if ( index == 0 )
+                {
+                    value[0] = v;
+                }
+                return this;
+            }
+
+            @Override
+            public XmlRpcListener fault( int code, String message )
+            {
+                fault[0] = code + ": " + message;
+                return this;
+            }
+        } );
+
+        if ( fault[0] != null )
+        {
+            throw new XmlRpcException( "Hub returned fault %s", fault[0] );
+        }
+
+        return value[0];
+    }
+
+    static String render( List<Call> calls )
+    {
+        List<Object> callStructs = new ArrayList<>( calls.size() );
+        calls.forEach( ( call ) -> callStructs.add( call.toStruct() ) );
+
+        StringBuilder sb = new StringBuilder();
+        sb.append( "<?xml version=\"1.0\"?><methodCall><methodName>" )
+          .append( MULTICALL_METHOD )
+          .append( "</methodName><params><param>" );
+
+        renderValue( sb, callStructs );
+
+        sb.append( "</param></params></methodCall>" );
+        return sb.toString();
+    }
+
+    static void renderValue( StringBuilder sb, Object value )
+    {
+        sb.append( "<value>" );
+        if ( value == null )
+        {
+            sb.append( "<nil/>" );
+        }
+        else if ( value instanceof String )
+        {
+            sb.append( "<string>" ).append( StringEscapeUtils.escapeXml( (String) value ) ).append( "</string>" );
+        }
+        else if ( value instanceof Integer )
+        {
+            sb.append( "<int>" ).append( value ).append( "</int>" );
+        }
+        else if ( value instanceof Boolean )
+        {
+            sb.append( "<boolean>" ).append( (Boolean) value ? 1 : 0 ).append( "</boolean>" );
+        }
+        else if ( value instanceof Double )
+        {
+            sb.append( "<double>" ).append( value ).append( "</double>" );
+        }
+        else if ( value instanceof Map )
+        {
+            sb.append( "<struct>" );
+            ( (Map<?, ?>) value ).forEach( ( k, v ) -> {
+                sb.append( "<member><name>" )
+                  .append( StringEscapeUtils.escapeXml( String.valueOf( k ) ) )
+                  .append( "</name>" );
+                renderValue( sb, v );
+                sb.append( "</member>" );
+            } );
+            sb.append( "</struct>" );
+        }
+        else if ( value instanceof List )
+        {
+            sb.append( "<array><data>" );
+            ( (List<?>) value ).forEach( ( v ) -> renderValue( sb, v ) );
+            sb.append( "</data></array>" );
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Cannot render XML-RPC value of type: " + value.getClass().getName() );
+        }
+        sb.append( "</value>" );
+    }
+
+    /**
+     * A single method invocation inside a multiCall.
+     */
+    static final class Call
+    {
+        private final String method;
+
+        private final List<Object> params;
+
+        Call( String method, List<Object> params )
+        {
+            this.method = method;
+            this.params = params;
+        }
+
+        String getMethod()
+        {
+            return method;
+        }
+
+        List<Object> getParams()
+        {
+            return params;
+        }
+
+        private Map<String, Object> toStruct()
+        {
+            Map<String, Object> struct = new LinkedHashMap<>();
+            struct.put( "methodName", method );
+            struct.put( "params", params );
+            return struct;
+        }
+    }
+
+    /**
+     * StaxParser hands us the fully-assembled value for each parameter, so everything else is a no-op.
+     */
+    private static abstract class ResultListener
+            implements XmlRpcListener
+    {
+        @Override
+        public XmlRpcListener value( Object value, ValueType type )
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener startRequest()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener requestMethod( String methodName )
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener endRequest()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener startResponse()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener endResponse()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener startParameter( int index )
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener endParameter()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener startArray()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener startArrayElement( int index )
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener endArrayElement()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener arrayElement( int index, Object value, ValueType type )
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener endArray()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener startStruct()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener startStructMember( String key )
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener endStructMember()
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener structMember( String key, Object value, ValueType type )
+        {
+            return this;
+        }
+
+        @Override
+        public XmlRpcListener endStruct()
+        {
+            return this;
+        }
+    }
+}
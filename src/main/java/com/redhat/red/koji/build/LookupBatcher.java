@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+import com.redhat.red.build.koji.model.xmlrpc.KojiBuildInfo;
+import org.commonjava.maven.atlas.ident.ref.ProjectVersionRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects pending GAV lookups and sends them to Koji in batches, using {@link KojiMultiCall}. A batch is sent when it
+ * reaches the configured size, or when the flush interval passes after its first lookup arrived.
+ * <br/>
+ * Each batch costs two round trips: one multiCall of <code>listArchives</code> for all GAVs in the batch, then one
+ * multiCall of <code>getBuild</code> for the distinct builds those archives belong to. Since the archive query isn't
+ * narrowed by filename, the result covers every type/classifier of the GAV, and callers can match each of their
+ * artifacts against it locally.
+ * <br/>
+ * A whole multiCall request that fails is retried by the {@link CallPolicy}, and calls the hub answers with a fault
+ * inside an otherwise good response are sent again on their own (see {@link KojiMultiCall#callRetryingFaults(List)}).
+ */
+class LookupBatcher
+        implements Closeable
+{
+    private final KojiMultiCall multiCall;
+
+    private final ExecutorService executor;
+
+    private final int batchSize;
+
+    private final long flushMillis;
+
+    private final BlockingQueue<PendingLookup> queue = new LinkedBlockingQueue<>();
+
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+
+    LookupBatcher( KojiMultiCall multiCall, ExecutorService executor, int batchSize, long flushMillis )
+    {
+        this.multiCall = multiCall;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.flushMillis = flushMillis;
+
+        flusher = new Thread( this::collectBatches, "lookup-batcher" );
+        flusher.setDaemon( true );
+        flusher.start();
+    }
+
+    /**
+     * Queue a lookup for the builds containing archives of the given GAV. The future completes with those builds,
+     * keyed by archive filename, once the batch containing it has been sent; or exceptionally with a
+     * {@link KojiClientException}. Filenames with no build are absent from the map.
+     */
+    CompletableFuture<Map<String, List<KojiBuildInfo>>> submit( ProjectVersionRef gav )
+    {
+        if ( !running )
+        {
+            throw new IllegalStateException( "Lookup batcher is closed" );
+        }
+
+        PendingLookup pending = new PendingLookup( gav );
+        queue.add( pending );
+        return pending.future;
+    }
+
+    /**
+     * Send anything still queued, then stop the background flusher.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        try
+        {
+            flusher.join();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collectBatches()
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        try
+        {
+            while ( running || !queue.isEmpty() )
+            {
+                PendingLookup first = queue.poll( flushMillis, TimeUnit.MILLISECONDS );
+                if ( first == null )
+                {
+                    continue;
+                }
+
+                List<PendingLookup> batch = new ArrayList<>( batchSize );
+                batch.add( first );
+
+                long deadline = System.currentTimeMillis() + flushMillis;
+                while ( batch.size() < batchSize )
+                {
+                    long wait = deadline - System.currentTimeMillis();
+                    PendingLookup next = wait > 0 ? queue.poll( wait, TimeUnit.MILLISECONDS ) : queue.poll();
+                    if ( next == null )
+                    {
+                        break;
+                    }
+
+                    batch.add( next );
+                }
+
+                logger.debug( "Dispatching batch of {} lookups", batch.size() );
+                executor.execute( () -> dispatch( batch ) );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            logger.warn( "Lookup batcher interrupted. Failing {} queued lookups.", queue.size() );
+            List<PendingLookup> remaining = new ArrayList<>();
+            queue.drainTo( remaining );
+            remaining.forEach( ( pending ) -> pending.future.completeExceptionally( e ) );
+        }
+    }
+
+    private void dispatch( List<PendingLookup> batch )
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+
+        // the same GAV may be queued more than once; only ask about it once.
+        Map<String, List<PendingLookup>> byKey = new LinkedHashMap<>();
+        batch.forEach( ( pending ) -> byKey.computeIfAbsent( pending.gav.toString(), ( k ) -> new ArrayList<>() )
+                                           .add( pending ) );
+
+        List<String> keys = new ArrayList<>( byKey.keySet() );
+        List<KojiMultiCall.Call> archiveCalls = new ArrayList<>( keys.size() );
+        keys.forEach( ( key ) -> archiveCalls.add( listArchivesCall( byKey.get( key ).get( 0 ).gav ) ) );
+
+        try
+        {
+            List<Object> archiveResults = multiCall.callRetryingFaults( archiveCalls );
+
+            // GAV key -> filename -> ids of builds containing that file
+            Map<String, Map<String, Set<Integer>>> buildIdsByKey = new HashMap<>();
+            Set<Integer> allBuildIds = new LinkedHashSet<>();
+            for ( int i = 0; i < keys.size(); i++ )
+            {
+                String key = keys.get( i );
+                Object result = archiveResults.get( i );
+                if ( result instanceof KojiClientException )
+                {
+                    fail( byKey.remove( key ), (KojiClientException) result );
+                    continue;
+                }
+
+                Map<String, Set<Integer>> byFilename = new HashMap<>();
+                if ( result instanceof List )
+                {
+                    for ( Object archive : (List<?>) result )
+                    {
+                        if ( !( archive instanceof Map ) )
+                        {
+                            continue;
+                        }
+
+                        Object buildId = ( (Map<?, ?>) archive ).get( "build_id" );
+                        Object filename = ( (Map<?, ?>) archive ).get( "filename" );
+                        if ( buildId instanceof Integer && filename instanceof String )
+                        {
+                            byFilename.computeIfAbsent( (String) filename, ( f ) -> new LinkedHashSet<>() )
+                                      .add( (Integer) buildId );
+                            allBuildIds.add( (Integer) buildId );
+                        }
+                    }
+                }
+
+                buildIdsByKey.put( key, byFilename );
+            }
+
+            List<Integer> buildIds = new ArrayList<>( allBuildIds );
+            List<KojiMultiCall.Call> buildCalls = new ArrayList<>( buildIds.size() );
+            buildIds.forEach( ( id ) -> buildCalls.add(
+                    new KojiMultiCall.Call( "getBuild", Collections.singletonList( id ) ) ) );
+
+            List<Object> buildResults = multiCall.callRetryingFaults( buildCalls );
+            Map<Integer, Object> builds = new HashMap<>();
+            for ( int i = 0; i < buildIds.size(); i++ )
+            {
+                builds.put( buildIds.get( i ), buildResults.get( i ) );
+            }
+
+            Map<Integer, KojiBuildInfo> buildInfos = new HashMap<>();
+            byKey.forEach( ( key, pendings ) -> {
+                Map<String, List<KojiBuildInfo>> found = new HashMap<>();
+                for ( Map.Entry<String, Set<Integer>> e : buildIdsByKey.get( key ).entrySet() )
+                {
+                    List<KojiBuildInfo> fileBuilds = new ArrayList<>( e.getValue().size() );
+                    for ( Integer id : e.getValue() )
+                    {
+                        Object build = builds.get( id );
+                        if ( build instanceof KojiClientException )
+                        {
+                            fail( pendings, (KojiClientException) build );
+                            return;
+                        }
+                        else if ( build instanceof Map )
+                        {
+                            fileBuilds.add(
+                                    buildInfos.computeIfAbsent( id, ( i ) -> toBuildInfo( (Map<?, ?>) build ) ) );
+                        }
+                    }
+
+                    found.put( e.getKey(), fileBuilds );
+                }
+
+                pendings.forEach( ( pending ) -> pending.future.complete( found ) );
+            } );
+
+            logger.debug( "Batch of {} lookups resolved using {} archive queries and {} build queries", batch.size(),
+                          archiveCalls.size(), buildCalls.size() );
+        }
+        catch ( KojiClientException | RuntimeException e )
+        {
+            logger.error( "Batch lookup of " + batch.size() + " artifacts failed", e );
+            batch.forEach( ( pending ) -> pending.future.completeExceptionally( e ) );
+        }
+    }
+
+    private void fail( List<PendingLookup> pendings, KojiClientException error )
+    {
+        pendings.forEach( ( pending ) -> pending.future.completeExceptionally( error ) );
+    }
+
+    /**
+     * Like the query kojiji's <code>listArchivesMatching()</code> sends, but without the filename, so we get maven
+     * archives for every type/classifier of the GAV.
+     */
+    private KojiMultiCall.Call listArchivesCall( ProjectVersionRef gav )
+    {
+        Map<String, Object> typeInfo = new LinkedHashMap<>();
+        typeInfo.put( "group_id", gav.getGroupId() );
+        typeInfo.put( "artifact_id", gav.getArtifactId() );
+        typeInfo.put( "version", gav.getVersionString() );
+
+        Map<String, Object> query = new LinkedHashMap<>();
+        query.put( "__starstar", Boolean.TRUE );
+        query.put( "type", "maven" );
+        query.put( "typeInfo", typeInfo );
+
+        return new KojiMultiCall.Call( "listArchives", Collections.singletonList( query ) );
+    }
+
+    static KojiBuildInfo toBuildInfo( Map<?, ?> struct )
+    {
+        KojiBuildInfo build = new KojiBuildInfo();
+        build.setId( (Integer) struct.get( "id" ) );
+        build.setNvr( (String) struct.get( "nvr" ) );
+        build.setName( (String) struct.get( "name" ) );
+        build.setVersion( (String) struct.get( "version" ) );
+        build.setRelease( (String) struct.get( "release" ) );
+        build.setTaskId( (Integer) struct.get( "task_id" ) );
+        build.setBuildState( (Integer) struct.get( "state" ) );
+
+        Object creationTs = struct.get( "creation_ts" );
+        if ( creationTs instanceof Number )
+        {
+            build.setCreationTime( new Date( (long) ( ( (Number) creationTs ).doubleValue() * 1000 ) ) );
+        }
+
+        return build;
+    }
+
+    private static final class PendingLookup
+    {
+        private final ProjectVersionRef gav;
+
+        private final CompletableFuture<Map<String, List<KojiBuildInfo>>> future = new CompletableFuture<>();
+
+        PendingLookup( ProjectVersionRef gav )
+        {
+            this.gav = gav;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File-backed cache of artifact-to-build lookup results, keyed by artifact coordinate. Positive and negative results
+ * expire independently, and the oldest entries are evicted when the cache grows beyond its configured size. The cache
+ * is read once at startup and written back in full at the end of a run, or after each job in server mode; expired and
+ * evicted entries are dropped from memory as well when it is written, so a long-running server's cache stays within
+ * its size between jobs.
+ */
+class LookupCache
+{
+    static final String CACHE_FILE = "lookups.cache";
+
+    private static final String HEADER = "# koji-buildfinder lookup cache v1";
+
+    private static final String MISSING_MARKER = "-";
+
+    private final File cacheFile;
+
+    private final long foundTtlMillis;
+
+    private final long missingTtlMillis;
+
+    private final int maxEntries;
+
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    LookupCache( File cacheDir, long foundTtlHours, long missingTtlHours, int maxEntries )
+    {
+        this.cacheFile = new File( cacheDir, CACHE_FILE );
+        this.foundTtlMillis = TimeUnit.HOURS.toMillis( foundTtlHours );
+        this.missingTtlMillis = TimeUnit.HOURS.toMillis( missingTtlHours );
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Retrieve the cached result for the given coordinate, or null if there is none or it has expired.
+     */
+    LookupResult get( String key )
+    {
+        CacheEntry entry = entries.get( key );
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        long ttl = entry.result.isFound() ? foundTtlMillis : missingTtlMillis;
+        if ( System.currentTimeMillis() - entry.timestamp > ttl )
+        {
+            entries.remove( key, entry );
+            return null;
+        }
+
+        return entry.result;
+    }
+
+    void put( String key, LookupResult result )
+    {
+        entries.put( key, new CacheEntry( result, System.currentTimeMillis() ) );
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    void load()
+            throws IOException
+    {
+        if ( !cacheFile.exists() )
+        {
+            return;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        int lineNo = 0;
+        try (BufferedReader reader = new BufferedReader( new FileReader( cacheFile ) ))
+        {
+            String line = reader.readLine();
+            lineNo++;
+            if ( !HEADER.equals( line ) )
+            {
+                logger.warn( "Not a lookup cache, or from another version: {}. Starting over.", cacheFile );
+                return;
+            }
+
+            while ( ( line = reader.readLine() ) != null )
+            {
+                lineNo++;
+                if ( line.isEmpty() || line.startsWith( "#" ) )
+                {
+                    continue;
+                }
+
+                // key, timestamp, build id (or '-' for missing), nvr
+                String[] parts = line.split( "\t" );
+                if ( parts.length < 3 )
+                {
+                    logger.warn( "Skipping malformed cache line {} in: {}", lineNo, cacheFile );
+                    continue;
+                }
+
+                try
+                {
+                    long timestamp = Long.parseLong( parts[1] );
+                    LookupResult result = MISSING_MARKER.equals( parts[2] ) ?
+                            LookupResult.missing() :
+                            LookupResult.found( Integer.parseInt( parts[2] ), parts.length > 3 ? parts[3] : null );
+
+                    entries.put( parts[0], new CacheEntry( result, timestamp ) );
+                }
+                catch ( NumberFormatException e )
+                {
+                    logger.warn( "Skipping malformed cache line {} in: {}", lineNo, cacheFile );
+                }
+            }
+        }
+
+        logger.info( "Loaded {} cached lookup results from: {}", entries.size(), cacheFile );
+    }
+
+    void save()
+            throws IOException
+    {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, CacheEntry>> live = new ArrayList<>( entries.size() );
+        int dropped = 0;
+        for ( Map.Entry<String, CacheEntry> e : entries.entrySet() )
+        {
+            CacheEntry entry = e.getValue();
+            long ttl = entry.result.isFound() ? foundTtlMillis : missingTtlMillis;
+            if ( now - entry.timestamp <= ttl )
+            {
+                live.add( e );
+            }
+            else if ( entries.remove( e.getKey(), entry ) )
+            {
+                dropped++;
+            }
+        }
+
+        // keep the newest entries when we're over the limit
+        live.sort( ( e1, e2 ) -> Long.compare( e2.getValue().timestamp, e1.getValue().timestamp ) );
+        int count = Math.min( live.size(), maxEntries );
+        for ( int i = count; i < live.size(); i++ )
+        {
+            // unless a lookup has just replaced it
+            if ( entries.remove( live.get( i ).getKey(), live.get( i ).getValue() ) )
+            {
+                dropped++;
+            }
+        }
+
+        cacheFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        // written beside the cache and moved over it, so a crash leaves the old cache whole, and runs sharing the
+        // cache directory don't write to the same temporary file
+        File tmp = File.createTempFile( cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile() );
+        try
+        {
+            try (PrintWriter pw = new PrintWriter( new FileWriter( tmp ) ))
+            {
+                pw.println( HEADER );
+                for ( int i = 0; i < count; i++ )
+                {
+                    Map.Entry<String, CacheEntry> e = live.get( i );
+                    LookupResult result = e.getValue().result;
+                    pw.printf( "%s\t%d\t%s\t%s\n", e.getKey(), e.getValue().timestamp,
+                               result.isFound() ? result.getBuildId() : MISSING_MARKER,
+                               result.isFound() ? result.getNvr() : "" );
+                }
+            }
+            Files.move( tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Wrote {} lookup results to: {} ({} expired or evicted)", count, cacheFile, dropped );
+    }
+
+    private static final class CacheEntry
+    {
+        private final LookupResult result;
+
+        private final long timestamp;
+
+        CacheEntry( LookupResult result, long timestamp )
+        {
+            this.result = result;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lookup table that makes sure each distinct Koji query is sent once per run. The first caller for a key runs the query
+ * and everyone else (concurrent or later) shares its {@link CompletableFuture}. Failed queries are dropped from the
+ * table, so a later caller can try again.
+ */
+class LookupCoalescer
+{
+    private final ConcurrentHashMap<String, CompletableFuture<?>> lookups = new ConcurrentHashMap<>();
+
+    private final AtomicLong issued = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * A blocking Koji query.
+     */
+    interface Query<T>
+    {
+        T call()
+                throws KojiClientException;
+    }
+
+    /**
+     * Run the query on the calling thread, unless another caller already has (or is running) the same one, in which
+     * case wait for and return its result.
+     */
+    @SuppressWarnings( "unchecked" )
+    <T> T sync( String key, Query<T> query )
+            throws KojiClientException
+    {
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<?> existing = lookups.putIfAbsent( key, mine );
+        if ( existing != null )
+        {
+            coalesced.incrementAndGet();
+            try
+            {
+                return (T) existing.get();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new KojiClientException( "Interrupted while waiting for query: %s", e, key );
+            }
+            catch ( ExecutionException e )
+            {
+                Throwable cause = e.getCause();
+                if ( cause instanceof KojiClientException )
+                {
+                    throw (KojiClientException) cause;
+                }
+                throw new KojiClientException( "Query failed: %s", cause, key );
+            }
+        }
+
+        issued.incrementAndGet();
+        try
+        {
+            T result = query.call();
+            mine.complete( result );
+            return result;
+        }
+        catch ( Throwable e )
+        {
+            // anything the query throws, Errors included, has to reach the callers waiting on this key
+            lookups.remove( key, mine );
+            mine.completeExceptionally( e );
+            throw e;
+        }
+    }
+
+    /**
+     * Start the asynchronous query, unless another caller already has, in which case share its future.
+     */
+    @SuppressWarnings( "unchecked" )
+    <T> CompletableFuture<T> async( String key, Supplier<CompletableFuture<T>> query )
+    {
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<?> existing = lookups.putIfAbsent( key, mine );
+        if ( existing != null )
+        {
+            coalesced.incrementAndGet();
+            return (CompletableFuture<T>) existing;
+        }
+
+        issued.incrementAndGet();
+        CompletableFuture<T> started;
+        try
+        {
+            started = query.get();
+        }
+        catch ( Throwable e )
+        {
+            // e.g. a closed batcher; without this the key would stay in the table with a future that never completes
+            lookups.remove( key, mine );
+            mine.completeExceptionally( e );
+            return mine;
+        }
+
+        started.whenComplete( ( result, error ) -> {
+            if ( error != null )
+            {
+                lookups.remove( key, mine );
+                mine.completeExceptionally( error );
+            }
+            else
+            {
+                mine.complete( result );
+            }
+        } );
+
+        return mine;
+    }
+
+    /**
+     * Number of queries actually sent to Koji.
+     */
+    long getIssued()
+    {
+        return issued.get();
+    }
+
+    /**
+     * Number of duplicate queries that were answered by sharing another caller's result.
+     */
+    long getCoalesced()
+    {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+/**
+ * Outcome of looking up a single artifact in Koji: either the build that produced it (id and NVR), or a negative
+ * result meaning no suitable build was found.
+ */
+final class LookupResult
+{
+    private static final LookupResult MISSING = new LookupResult( null, null );
+
+    private final Integer buildId;
+
+    private final String nvr;
+
+    private LookupResult( Integer buildId, String nvr )
+    {
+        this.buildId = buildId;
+        this.nvr = nvr;
+    }
+
+    static LookupResult found( int buildId, String nvr )
+    {
+        return new LookupResult( buildId, nvr );
+    }
+
+    static LookupResult missing()
+    {
+        return MISSING;
+    }
+
+    boolean isFound()
+    {
+        return buildId != null;
+    }
+
+    Integer getBuildId()
+    {
+        return buildId;
+    }
+
+    String getNvr()
+    {
+        return nvr;
+    }
+
+    @Override
+    public String toString()
+    {
+        return isFound() ? String.format( "%s (id: %d)", nvr, buildId ) : "MISSING";
+    }
+}
@@ -27,16 +27,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import static org.apache.commons.lang.StringUtils.join;
 import static org.commonjava.util.jhttpc.auth.PasswordType.KEY;
 import static org.commonjava.util.jhttpc.auth.PasswordType.PROXY;
 
@@ -45,9 +42,6 @@ import static org.commonjava.util.jhttpc.auth.PasswordType.PROXY;
  */
 public class Main
 {
-    private static final String LINE =
-            "----------------------------------------------------------------------------------------";
-
     private static final java.lang.String NO_EXIT = "no-exit";
 
     private static final int PARSE_ERROR = -1;
@@ -101,11 +95,31 @@ public class Main
 
     private ExecutorService executorService;
 
+    private ScanPipeline pipeline;
+
+    private ScanMetrics metrics;
+
+    private CallPolicy policy;
+
     private BuildFinder buildFinder;
 
-    private Map<String, Set<String>> allMissing;
+    private LookupCache lookupCache;
+
+    private MissingFilter missingFilter;
+
+    private KojiMultiCall multiCall;
+
+    private LookupBatcher lookupBatcher;
+
+    private ArchiveIndex archiveIndex;
 
-    private File reportFile;
+    private OfflineIndex offlineIndex;
+
+    private Checkpoint checkpoint;
+
+    private Baseline baseline;
+
+    private ReportSink report;
 
     private Integer result;
 
@@ -132,56 +146,97 @@ public class Main
                 return result;
             }
 
-            allMissing = new HashMap<>();
+            if ( opts.getExportIndex() != null )
+            {
+                result = exportIndex();
+                logger.info( "Returning exit value: {}", result );
+                return result;
+            }
+
+            if ( opts.getServePort() > 0 )
+            {
+                result = serve();
+                logger.info( "Returning exit value: {}", result );
+                return result;
+            }
+
+            List<EntrySource> inputs = new ArrayList<>();
             for ( String inFile : opts.getFiles() )
             {
-                logger.info( "Processing: {}", inFile );
-                File in = new File( inFile );
-                if ( in.exists() && !in.isDirectory() )
+                EntrySource input = EntrySource.open( inFile, opts.getNestedDepth(), pipeline );
+                if ( input != null )
                 {
-                    try
-                    {
-                        Set<String> missing = buildFinder.findMissingBuilds( in, opts.getSkipParts() );
-                        if ( missing != null && !missing.isEmpty() )
-                        {
-                            logger.info( "Adding {} missing builds from: {}", missing.size(), in );
-                            allMissing.put( inFile, missing );
-                        }
-                    }
-                    catch ( IOException e )
-                    {
-                        logger.error( "Invalid input ZIP file: " + in, e );
-                        result = INVALID_ZIP;
-                        break;
-                    }
-                    catch ( KojiClientException e )
-                    {
-                        logger.error( "Failed to login to Koji at: " + config.getUrl(), e );
-                        result = KOJI_LOGIN_ERROR;
-                        break;
-                    }
+                    inputs.add( input );
                 }
                 else
                 {
-                    logger.warn( "Cannot find ZIP archive at: {}", inFile );
+                    logger.warn( "Cannot find ZIP archive or directory at: {}", inFile );
                 }
             }
 
-            if ( result == null )
+            logger.info( "Processing {} inputs", inputs.size() );
+            if ( !openReport( inputs ) )
             {
-                logger.info( "Reporting results..." );
-                try
-                {
-                    report();
+                return result;
+            }
 
-                    if ( reportFile != null )
+            compareBaseline( inputs );
+            openCheckpoint( inputs );
+            prefetchTags();
+            try
+            {
+                EntryClassifier classifier = new EntryClassifier( opts.getSkipParts(), opts.getExcludes() );
+                ScanResult scanResult = buildFinder.findMissingBuilds( inputs, classifier, report );
+                scanResult.getMissing().forEach( ( in, missing ) -> {
+                    if ( missing > 0 )
+                    {
+                        logger.info( "Found {} missing builds in: {}", missing, in );
+                    }
+                } );
+                scanResult.getUnresolved().forEach( ( in, unresolved ) -> {
+                    if ( unresolved > 0 )
                     {
-                        logger.info( "Results are in: {}", reportFile );
+                        logger.warn( "Could not look up {} entries from: {}", unresolved, in );
                     }
+                } );
+            }
+            catch ( IOException e )
+            {
+                logger.error( e.getMessage(), e );
+                result = INVALID_ZIP;
+            }
+            catch ( KojiClientException e )
+            {
+                logger.error( "Failed to login to Koji at: " + config.getUrl(), e );
+                result = KOJI_LOGIN_ERROR;
+            }
+            finally
+            {
+                checkpoint.close();
+            }
+
+            LookupCoalescer coalescer = buildFinder.getCoalescer();
+            logger.info( "Issued {} distinct Koji lookups ({} duplicates avoided)", coalescer.getIssued(),
+                         coalescer.getCoalesced() );
+
+            saveCache();
+            saveProfile();
+
+            logger.info( "Reporting results..." );
+            try
+            {
+                report.close();
+
+                if ( report.getFile() != null )
+                {
+                    logger.info( "Results are in: {}", report.getFile() );
                 }
-                catch ( IOException e )
+            }
+            catch ( IOException e )
+            {
+                logger.error( "Failed to write report to: " + opts.getReportFile(), e );
+                if ( result == null )
                 {
-                    logger.error( "Failed to write report to: " + reportFile, e );
                     result = REPORT_ERROR;
                 }
             }
@@ -202,37 +257,318 @@ public class Main
 
     void shutdown()
     {
+        if ( lookupBatcher != null )
+        {
+            lookupBatcher.close();
+        }
+
+        if ( multiCall != null )
+        {
+            multiCall.close();
+        }
+
+        if ( policy != null )
+        {
+            policy.close();
+        }
+
         if ( client != null )
         {
             IOUtils.closeQuietly( client );
         }
 
+        if ( pipeline != null )
+        {
+            pipeline.close();
+        }
+
         if ( executorService != null )
         {
             executorService.shutdown();
         }
     }
 
-    void report()
-            throws IOException
+    /**
+     * Run the {@link ScanServer} until the JVM is told to stop, then save the caches and profile as a run would.
+     */
+    Integer serve()
     {
-        if ( !allMissing.isEmpty() )
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        prefetchTags();
+
+        // jobs don't resume or compare against anything, so their finders get no checkpoint or baseline
+        ScanServer server = new ScanServer( opts, client, pipeline, metrics, () -> newBuildFinder( null, null ),
+                                            this::saveCache );
+        try
         {
-            reportFile = new File( "buildfinder.out.txt" );
-            try (PrintWriter pw = new PrintWriter( new FileWriter( reportFile ) ))
+            server.start();
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to start server on port: " + opts.getServePort(), e );
+            return INIT_ERROR;
+        }
+
+        CountDownLatch saved = new CountDownLatch( 1 );
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+            server.stop();
+            try
+            {
+                saved.await();
+            }
+            catch ( InterruptedException e )
             {
-                allMissing.forEach( ( file, missing ) -> pw.write(
-                        String.format( "%s:\n%s\n  %s\n\n", file, LINE, join( missing, "\n  " ) ) ) );
+                Thread.currentThread().interrupt();
             }
+        }, "buildfinder-shutdown" ) );
+
+        try
+        {
+            server.await();
         }
-        else
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            server.stop();
+        }
+
+        saveCache();
+        saveProfile();
+        saved.countDown();
+        return 0;
+    }
+
+    void compareBaseline( List<EntrySource> inputs )
+    {
+        if ( baseline == null )
+        {
+            return;
+        }
+
+        try
+        {
+            baseline.compare( inputs, checkpoint );
+        }
+        catch ( IOException e )
         {
             Logger logger = LoggerFactory.getLogger( getClass() );
-            logger.info( "Nothing to report! All files have a corresponding Koji build!" );
+            logger.warn( "Failed to compare inputs with baseline: " + opts.getBaseline() + ". Scanning every entry.",
+                         e );
+        }
+    }
+
+    Integer exportIndex()
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        OfflineIndex.Writer writer = new OfflineIndex.Writer();
+        try
+        {
+            new TagPrefetcher( multiCall, pipeline.getIoExecutor(), opts.getBatchSize() ).prefetch( opts.getTags(),
+                                                                                                    writer );
+        }
+        catch ( KojiClientException e )
+        {
+            logger.error( "Failed to list builds in tags: " + opts.getTags(), e );
+            return KOJI_LOGIN_ERROR;
+        }
+
+        try
+        {
+            writer.write( opts.getExportIndex() );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Failed to write offline index to: " + opts.getExportIndex(), e );
+            return REPORT_ERROR;
+        }
+
+        logger.info( "Exported {} archives of {} builds to: {}", writer.size(), writer.getBuildCount(),
+                     opts.getExportIndex() );
+        return 0;
+    }
+
+    void prefetchTags()
+    {
+        if ( archiveIndex == null || opts.getTags().isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            new TagPrefetcher( multiCall, pipeline.getIoExecutor(), opts.getBatchSize() ).prefetch( opts.getTags(),
+                                                                                                    archiveIndex );
+        }
+        catch ( KojiClientException e )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Failed to prefetch builds in tags: " + opts.getTags()
+                                 + ". Entries they don't cover will be looked up one by one.", e );
+        }
+    }
+
+    void openCheckpoint( List<EntrySource> inputs )
+    {
+        try
+        {
+            checkpoint.open( inputs, opts.isResume() );
+        }
+        catch ( IOException e )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "Failed to open checkpoint journal: " + opts.getCheckpointFile()
+                                 + ". Progress of this run will not be recorded.", e );
+        }
+    }
+
+    void saveCache()
+    {
+        if ( lookupCache != null )
+        {
+            try
+            {
+                lookupCache.save();
+            }
+            catch ( IOException e )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Failed to write lookup cache to: " + opts.getCacheDir(), e );
+            }
+        }
+
+        if ( missingFilter != null )
+        {
+            missingFilter.revalidate();
+            try
+            {
+                missingFilter.save();
+            }
+            catch ( IOException e )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Failed to write missing-artifact filter to: " + opts.getCacheDir(), e );
+            }
+        }
+    }
+
+    void saveProfile()
+    {
+        if ( metrics == null )
+        {
+            return;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        metrics.finish();
+        logger.info( "Run profile: {}", metrics.summary() );
+
+        try
+        {
+            metrics.writeJson( opts.getProfileFile() );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to write run profile to: " + opts.getProfileFile(), e );
+        }
+
+        if ( opts.getPrometheusFile() != null )
+        {
+            try
+            {
+                metrics.writePrometheus( opts.getPrometheusFile() );
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Failed to write Prometheus metrics to: " + opts.getPrometheusFile(), e );
+            }
+        }
+    }
+
+    boolean openReport( List<EntrySource> inputs )
+    {
+        File file = opts.getReportFile();
+        try
+        {
+            switch ( opts.getReportFormat() )
+            {
+                case JSONL:
+                    report = new JsonLinesReportSink( file );
+                    break;
+                case CSV:
+                    report = new CsvReportSink( file );
+                    break;
+                default:
+                    List<String> names = new ArrayList<>( inputs.size() );
+                    inputs.forEach( ( input ) -> names.add( input.getName() ) );
+                    report = new TextReportSink( file, names );
+            }
+            return true;
+        }
+        catch ( IOException e )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.error( "Failed to open report: " + file, e );
+            result = REPORT_ERROR;
+            return false;
         }
     }
 
     boolean wire()
+    {
+        executorService = Executors.newFixedThreadPool( opts.getThreads() );
+        metrics = new ScanMetrics();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter( config.getMaxConnections(), opts.getMaxConcurrency(),
+                                                             opts.getMaxRps(), metrics );
+        policy = new CallPolicy( limiter, metrics, opts.getRetries(), opts.getDeadlineMillis(), opts.isHedge() );
+
+        // enough Koji I/O threads for the limiter to reach its maximum unless told otherwise
+        int ioThreads = opts.getIoThreads() > 0 ? opts.getIoThreads() : opts.getMaxConcurrency();
+        pipeline = new ScanPipeline( opts.getThreads(), ioThreads, opts.getQueueSize(), metrics );
+
+        if ( opts.getOfflineIndex() != null )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            try
+            {
+                offlineIndex = OfflineIndex.open( opts.getOfflineIndex() );
+                logger.info( "Resolving entries against offline index: {} ({} archives from {} builds)",
+                             opts.getOfflineIndex(), offlineIndex.size(), offlineIndex.getBuildCount() );
+            }
+            catch ( IOException e )
+            {
+                logger.error( "Failed to open offline index: " + opts.getOfflineIndex(), e );
+                result = INIT_ERROR;
+            }
+        }
+        else
+        {
+            wireKoji();
+        }
+
+        checkpoint = new Checkpoint( opts.getCheckpointFile() );
+        baseline = opts.getBaseline() == null ? null : new Baseline( opts.getBaseline() );
+        if ( offlineIndex == null && ( opts.isExpandBuilds() || !opts.getTags().isEmpty() ) )
+        {
+            archiveIndex = new ArchiveIndex( opts.isExpandBuilds() );
+        }
+        buildFinder = newBuildFinder( checkpoint, baseline );
+
+        return result == null;
+    }
+
+    /**
+     * A finder that shares the Koji client, pipeline, caches and indexes with every other, and has results of its own.
+     */
+    BuildFinder newBuildFinder( Checkpoint checkpoint, Baseline baseline )
+    {
+        return new BuildFinder( client, pipeline, metrics, policy, lookupCache, missingFilter, lookupBatcher,
+                                archiveIndex, offlineIndex, checkpoint, baseline );
+    }
+
+    /**
+     * Set up the clients and caches for looking entries up in Koji.
+     */
+    void wireKoji()
     {
         PasswordManager passwordManager = new MemoryPasswordManager();
         passwordManager.bind( config.getKeyPassword(), config.getKojiSiteId(), KEY );
@@ -241,7 +577,8 @@ public class Main
             passwordManager.bind( config.getProxyPassword(), config.getKojiSiteId(), PROXY );
         }
 
-        executorService = Executors.newFixedThreadPool( opts.getThreads() );
+        // max.connections is only where the limiter starts now; give the pool room for wherever it goes
+        config.setMaxConnections( Math.max( config.getMaxConnections(), opts.getMaxConcurrency() ) );
 
         try
         {
@@ -254,9 +591,61 @@ public class Main
             result = INIT_ERROR;
         }
 
-        buildFinder = new BuildFinder( client );
+        if ( opts.getCacheDir() != null )
+        {
+            lookupCache = new LookupCache( opts.getCacheDir(), opts.getCacheTtlHours(), opts.getMissingTtlHours(),
+                                           opts.getCacheSize() );
+            try
+            {
+                lookupCache.load();
+            }
+            catch ( IOException e )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.warn( "Failed to read lookup cache from: " + opts.getCacheDir() + ". Starting empty.", e );
+            }
 
-        return result == null;
+            if ( opts.isMissingFilter() )
+            {
+                missingFilter = new MissingFilter( opts.getCacheDir(), opts.getMissingCapacity(), opts.getMissingFpp(),
+                                                   opts.getMissingSpotCheck(), opts.getMissingRevalidateHours() );
+                try
+                {
+                    missingFilter.load();
+                }
+                catch ( IOException e )
+                {
+                    Logger logger = LoggerFactory.getLogger( getClass() );
+                    logger.warn( "Failed to read missing-artifact filter from: " + opts.getCacheDir()
+                                         + ". Starting empty.", e );
+                }
+            }
+        }
+        else if ( opts.isMissingFilter() )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.warn( "The missing-artifact filter is kept in the cache directory. Give one with --cache-dir to use "
+                                 + "it." );
+        }
+
+        if ( opts.getBatchSize() > 1 || !opts.getTags().isEmpty() )
+        {
+            try
+            {
+                multiCall = new KojiMultiCall( config, passwordManager, policy );
+                if ( opts.getBatchSize() > 1 )
+                {
+                    lookupBatcher = new LookupBatcher( multiCall, pipeline.getIoExecutor(), opts.getBatchSize(),
+                                                       opts.getBatchFlushMillis() );
+                }
+            }
+            catch ( IOException e )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.error( "Failed to initialize Koji multiCall client.", e );
+                result = INIT_ERROR;
+            }
+        }
     }
 
     boolean configure()
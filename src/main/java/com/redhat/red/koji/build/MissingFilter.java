@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * File-backed Bloom filter of artifact coordinates that Koji had no build for, kept next to the {@link LookupCache}.
+ * The cache forgets missing results after a day or so, since any artifact may be built at any time; the filter
+ * remembers many more of them in a fraction of the space, so third-party artifacts that will never be in Koji aren't
+ * looked up again every run.
+ * <br/>
+ * A filter can answer "maybe missing" for an artifact it was never told about (at about the configured false positive
+ * rate), and it can't forget an artifact that has since been built. So a sample of its hits is still looked up (a build
+ * found that way goes in the lookup cache, which is checked first), and the whole filter is started over once it is
+ * older than the revalidation period, or holds more coordinates than it was sized for.
+ */
+class MissingFilter
+{
+    static final String FILTER_FILE = "missing.bloom";
+
+    private static final long MAGIC = 0x4b42464d49535331L; // "KBFMISS1"
+
+    private static final int VERSION = 1;
+
+    private final File filterFile;
+
+    private final long capacity;
+
+    private final double spotCheckRate;
+
+    private final long revalidateMillis;
+
+    private final int hashes;
+
+    private final long bits;
+
+    private volatile AtomicLongArray words;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private long createdMillis = System.currentTimeMillis();
+
+    private volatile boolean dirty;
+
+    MissingFilter( File cacheDir, long capacity, double falsePositiveRate, double spotCheckRate, long revalidateHours )
+    {
+        this.filterFile = new File( cacheDir, FILTER_FILE );
+        this.capacity = Math.max( 1, capacity );
+        this.spotCheckRate = spotCheckRate;
+        this.revalidateMillis = TimeUnit.HOURS.toMillis( revalidateHours );
+
+        // the usual optimum: m = -n ln p / (ln 2)^2 bits, and k = (m / n) ln 2 hashes
+        double p = Math.min( 0.5, Math.max( 1e-9, falsePositiveRate ) );
+        long m = (long) Math.ceil( -this.capacity * Math.log( p ) / ( Math.log( 2 ) * Math.log( 2 ) ) );
+        m = Math.min( m, (long) Integer.MAX_VALUE * 64 - 64 );
+        this.bits = ( ( m + 63 ) / 64 ) * 64;
+        this.hashes = Math.max( 1, (int) Math.round( (double) bits / this.capacity * Math.log( 2 ) ) );
+        this.words = new AtomicLongArray( (int) ( bits / 64 ) );
+    }
+
+    /**
+     * Whether Koji probably has no build for the artifact.
+     */
+    boolean mightContain( String key )
+    {
+        long hash = hash( key );
+        for ( int i = 1; i <= hashes; i++ )
+        {
+            long bit = bit( hash, i );
+            if ( ( words.get( (int) ( bit >>> 6 ) ) & ( 1L << bit ) ) == 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether to look up an artifact the filter has anyway, to check it. True for a random sample of them.
+     */
+    boolean spotCheck()
+    {
+        return ThreadLocalRandom.current().nextDouble() < spotCheckRate;
+    }
+
+    /**
+     * Record an artifact Koji has no build for.
+     */
+    void add( String key )
+    {
+        long hash = hash( key );
+        boolean changed = false;
+        for ( int i = 1; i <= hashes; i++ )
+        {
+            long bit = bit( hash, i );
+            int word = (int) ( bit >>> 6 );
+            long mask = 1L << bit;
+            long old;
+            do
+            {
+                old = words.get( word );
+                if ( ( old & mask ) != 0 )
+                {
+                    break;
+                }
+            }
+            while ( !words.compareAndSet( word, old, old | mask ) );
+            changed |= ( old & mask ) == 0;
+        }
+
+        if ( changed )
+        {
+            count.incrementAndGet();
+            dirty = true;
+        }
+    }
+
+    long size()
+    {
+        return count.get();
+    }
+
+    void load()
+            throws IOException
+    {
+        if ( !filterFile.exists() )
+        {
+            return;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( filterFile ) ) ))
+        {
+            if ( in.readLong() != MAGIC || in.readInt() != VERSION )
+            {
+                logger.warn( "Not a missing-artifact filter, or from another version: {}. Starting over.",
+                             filterFile );
+                return;
+            }
+
+            long created = in.readLong();
+            int fileHashes = in.readInt();
+            long fileBits = in.readLong();
+            long fileCount = in.readLong();
+            if ( fileHashes != hashes || fileBits != bits )
+            {
+                logger.info( "Missing-artifact filter {} was sized for a different capacity or false positive rate. "
+                                     + "Starting over.", filterFile );
+                return;
+            }
+
+            if ( isStale( created, fileCount ) )
+            {
+                dirty = true;
+                return;
+            }
+
+            AtomicLongArray loaded = new AtomicLongArray( (int) ( bits / 64 ) );
+            for ( int i = 0; i < loaded.length(); i++ )
+            {
+                loaded.set( i, in.readLong() );
+            }
+
+            words = loaded;
+            createdMillis = created;
+            count.set( fileCount );
+        }
+
+        logger.info( "Loaded filter of {} missing artifacts from: {}", count.get(), filterFile );
+    }
+
+    /**
+     * Start over if the filter has become too old or too full since it was loaded, as {@link #load()} would. A
+     * long-running server calls this after each job, since it only loads the filter once.
+     */
+    void revalidate()
+    {
+        if ( isStale( createdMillis, count.get() ) )
+        {
+            words = new AtomicLongArray( (int) ( bits / 64 ) );
+            count.set( 0 );
+            createdMillis = System.currentTimeMillis();
+            dirty = true;
+        }
+    }
+
+    void save()
+            throws IOException
+    {
+        if ( !dirty )
+        {
+            return;
+        }
+
+        File parent = filterFile.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+
+        File tmp = File.createTempFile( filterFile.getName(), ".tmp", parent );
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( new FileOutputStream( tmp ) ) ))
+            {
+                out.writeLong( MAGIC );
+                out.writeInt( VERSION );
+                out.writeLong( createdMillis );
+                out.writeInt( hashes );
+                out.writeLong( bits );
+                out.writeLong( count.get() );
+                for ( int i = 0; i < words.length(); i++ )
+                {
+                    out.writeLong( words.get( i ) );
+                }
+            }
+            Files.move( tmp.toPath(), filterFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Wrote filter of {} missing artifacts to: {}", count.get(), filterFile );
+    }
+
+    private boolean isStale( long created, long artifacts )
+    {
+        long age = System.currentTimeMillis() - created;
+        if ( age <= revalidateMillis && artifacts <= capacity )
+        {
+            return false;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Missing-artifact filter {} is {} hours old and holds {} artifacts. Starting over, so they are "
+                             + "all looked up again.", filterFile, TimeUnit.MILLISECONDS.toHours( age ), artifacts );
+        return true;
+    }
+
+    /**
+     * The i-th bit to probe for a key with the given hash: h1 + i * h2, from the two halves of the hash.
+     */
+    private long bit( long hash, int i )
+    {
+        long h1 = (int) hash;
+        long h2 = (int) ( hash >>> 32 );
+        return ( ( h1 + i * h2 ) & Long.MAX_VALUE ) % bits;
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 key, finished with MurmurHash3's mixer so both halves are well spread.
+     */
+    private static long hash( String key )
+    {
+        long h = 0xcbf29ce484222325L;
+        for ( byte b : key.getBytes( StandardCharsets.UTF_8 ) )
+        {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.model.xmlrpc.KojiArchiveInfo;
+import com.redhat.red.build.koji.model.xmlrpc.KojiBuildInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only index of Maven archives and the Koji builds that produced them, in a file written by {@link Writer}, for
+ * scans that can't reach the hub. The file is memory-mapped and searched in place: opening it reads only the header,
+ * and each lookup is a binary search over the sorted entry table that decodes nothing but the NVR of the build it
+ * finds.
+ * <br/>
+ * The file is big-endian:
+ * <pre>
+ * header   "KBFINDEX", version, entry count, build count   (4 x int after the magic)
+ * entries  key offset, build number, checksum offset       (3 x int each, sorted by the key's UTF-8 bytes)
+ * builds   build id, task id, NVR offset                   (3 x int each)
+ * strings  unsigned short length, then that many bytes of UTF-8, at the offsets above (-1 for none)
+ * </pre>
+ * Keys are Maven repository paths, the same form as a trimmed zip entry path and the keys of {@link ArchiveIndex}.
+ */
+final class OfflineIndex
+{
+    private static final byte[] MAGIC = "KBFINDEX".getBytes( StandardCharsets.US_ASCII );
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = MAGIC.length + 12;
+
+    private static final int RECORD_BYTES = 12;
+
+    private static final int NONE = -1;
+
+    private static final int MAX_STRING_BYTES = 0xffff;
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private final int entryCount;
+
+    private final int buildCount;
+
+    private final int buildsStart;
+
+    private final int stringsStart;
+
+    // decoded on first use; racing threads decode the same immutable result, so there's no need to lock
+    private final LookupResult[] results;
+
+    private OfflineIndex( File file, ByteBuffer buffer, int entryCount, int buildCount )
+    {
+        this.file = file;
+        this.buffer = buffer;
+        this.entryCount = entryCount;
+        this.buildCount = buildCount;
+        this.buildsStart = HEADER_BYTES + entryCount * RECORD_BYTES;
+        this.stringsStart = buildsStart + buildCount * RECORD_BYTES;
+        this.results = new LookupResult[buildCount];
+    }
+
+    static OfflineIndex open( File file )
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+        {
+            if ( channel.size() > Integer.MAX_VALUE )
+            {
+                throw new IOException( "Offline index is too large to map: " + file );
+            }
+
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            byte[] magic = new byte[MAGIC.length];
+            if ( buffer.limit() < HEADER_BYTES || !Arrays.equals( magic( buffer, magic ), MAGIC ) )
+            {
+                throw new IOException( "Not an offline index file: " + file );
+            }
+
+            int version = buffer.getInt( MAGIC.length );
+            if ( version != VERSION )
+            {
+                throw new IOException( "Unsupported offline index version " + version + " in: " + file );
+            }
+
+            int entryCount = buffer.getInt( MAGIC.length + 4 );
+            int buildCount = buffer.getInt( MAGIC.length + 8 );
+            if ( entryCount < 0 || buildCount < 0
+                    || HEADER_BYTES + ( (long) entryCount + buildCount ) * RECORD_BYTES > buffer.limit() )
+            {
+                throw new IOException( "Offline index is truncated: " + file );
+            }
+
+            return new OfflineIndex( file, buffer, entryCount, buildCount );
+        }
+    }
+
+    /**
+     * Retrieve the build that produced the artifact at the given Maven repository path, or null if the index doesn't
+     * list it.
+     */
+    LookupResult get( String path )
+    {
+        byte[] key = path.getBytes( StandardCharsets.UTF_8 );
+
+        int low = 0;
+        int high = entryCount - 1;
+        while ( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int record = HEADER_BYTES + mid * RECORD_BYTES;
+            int cmp = compare( buffer.getInt( record ), key );
+            if ( cmp < 0 )
+            {
+                low = mid + 1;
+            }
+            else if ( cmp > 0 )
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return build( buffer.getInt( record + 4 ) );
+            }
+        }
+
+        return null;
+    }
+
+    int size()
+    {
+        return entryCount;
+    }
+
+    int getBuildCount()
+    {
+        return buildCount;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    private LookupResult build( int number )
+    {
+        LookupResult result = results[number];
+        if ( result == null )
+        {
+            int record = buildsStart + number * RECORD_BYTES;
+            result = LookupResult.found( buffer.getInt( record ), string( buffer.getInt( record + 8 ) ) );
+            results[number] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Compare the string at the offset with the key, byte by byte, as unsigned values.
+     */
+    private int compare( int offset, byte[] key )
+    {
+        int start = stringsStart + offset;
+        int length = buffer.getShort( start ) & 0xffff;
+        int common = Math.min( length, key.length );
+        for ( int i = 0; i < common; i++ )
+        {
+            int cmp = ( buffer.get( start + 2 + i ) & 0xff ) - ( key[i] & 0xff );
+            if ( cmp != 0 )
+            {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private String string( int offset )
+    {
+        if ( offset == NONE )
+        {
+            return null;
+        }
+
+        int start = stringsStart + offset;
+        byte[] bytes = new byte[buffer.getShort( start ) & 0xffff];
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            bytes[i] = buffer.get( start + 2 + i );
+        }
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static byte[] magic( ByteBuffer buffer, byte[] into )
+    {
+        for ( int i = 0; i < into.length; i++ )
+        {
+            into[i] = buffer.get( i );
+        }
+        return into;
+    }
+
+    /**
+     * Collects builds and their archives (from the {@link TagPrefetcher}) and writes them out as an index file. As in
+     * lookups, the first build added with an archive is the one it maps to, so builds should be added oldest first.
+     */
+    static final class Writer
+            implements BiConsumer<KojiBuildInfo, List<KojiArchiveInfo>>
+    {
+        private final Map<String, Entry> entries = new HashMap<>();
+
+        private final List<KojiBuildInfo> builds = new ArrayList<>();
+
+        @Override
+        public void accept( KojiBuildInfo build, List<KojiArchiveInfo> archives )
+        {
+            int number = builds.size();
+            boolean used = false;
+            for ( KojiArchiveInfo archive : archives )
+            {
+                String path = ArchiveIndex.path( archive );
+                byte[] key = path == null ? null : path.getBytes( StandardCharsets.UTF_8 );
+                if ( key != null && key.length <= MAX_STRING_BYTES && !entries.containsKey( path ) )
+                {
+                    entries.put( path, new Entry( key, number, archive.getChecksum() ) );
+                    used = true;
+                }
+            }
+
+            if ( used )
+            {
+                builds.add( build );
+            }
+        }
+
+        int size()
+        {
+            return entries.size();
+        }
+
+        int getBuildCount()
+        {
+            return builds.size();
+        }
+
+        /**
+         * Write the index to a temporary file next to the target and rename it into place, so a scan never maps half
+         * of it.
+         */
+        void write( File file )
+                throws IOException
+        {
+            List<Entry> sorted = new ArrayList<>( entries.values() );
+            sorted.sort( ( a, b ) -> compareUnsigned( a.key, b.key ) );
+
+            ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            DataOutputStream stringsOut = new DataOutputStream( strings );
+            int[] entryRecords = new int[sorted.size() * 3];
+            for ( int i = 0; i < sorted.size(); i++ )
+            {
+                Entry entry = sorted.get( i );
+                entryRecords[i * 3] = writeString( stringsOut, entry.key );
+                entryRecords[i * 3 + 1] = entry.build;
+                entryRecords[i * 3 + 2] = entry.checksum == null ?
+                        NONE :
+                        writeString( stringsOut, entry.checksum.getBytes( StandardCharsets.UTF_8 ) );
+            }
+
+            int[] nvrOffsets = new int[builds.size()];
+            for ( int i = 0; i < nvrOffsets.length; i++ )
+            {
+                nvrOffsets[i] = writeString( stringsOut, builds.get( i ).getNvr().getBytes( StandardCharsets.UTF_8 ) );
+            }
+
+            // it has to fit in one mapped buffer
+            if ( HEADER_BYTES + ( sorted.size() + (long) builds.size() ) * RECORD_BYTES + strings.size()
+                    > Integer.MAX_VALUE )
+            {
+                throw new IOException( "Too many archives for one offline index: " + sorted.size() );
+            }
+
+            File dir = file.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile( file.getName(), ".tmp", dir );
+            try
+            {
+                try (DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ) ))
+                {
+                    out.write( MAGIC );
+                    out.writeInt( VERSION );
+                    out.writeInt( sorted.size() );
+                    out.writeInt( builds.size() );
+
+                    for ( int value : entryRecords )
+                    {
+                        out.writeInt( value );
+                    }
+
+                    for ( int i = 0; i < nvrOffsets.length; i++ )
+                    {
+                        KojiBuildInfo build = builds.get( i );
+                        out.writeInt( build.getId() );
+                        out.writeInt( build.getTaskId() == null ? NONE : build.getTaskId() );
+                        out.writeInt( nvrOffsets[i] );
+                    }
+
+                    strings.writeTo( out );
+                }
+
+                Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE );
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+
+        /**
+         * Append the string to the string table, and return its offset there.
+         */
+        private static int writeString( DataOutputStream out, byte[] bytes )
+                throws IOException
+        {
+            int offset = out.size();
+            out.writeShort( bytes.length );
+            out.write( bytes );
+            return offset;
+        }
+
+        private static int compareUnsigned( byte[] a, byte[] b )
+        {
+            int common = Math.min( a.length, b.length );
+            for ( int i = 0; i < common; i++ )
+            {
+                int cmp = ( a[i] & 0xff ) - ( b[i] & 0xff );
+                if ( cmp != 0 )
+                {
+                    return cmp;
+                }
+            }
+            return a.length - b.length;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final byte[] key;
+
+        private final int build;
+
+        private final String checksum;
+
+        Entry( byte[] key, int build, String checksum )
+        {
+            this.key = key;
+            this.build = build;
+            this.checksum = checksum;
+        }
+    }
+}
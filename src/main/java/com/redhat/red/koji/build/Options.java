@@ -30,7 +30,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Command-line options, plus methods for parsing args from main(), printing usage, and writing default config file.
@@ -45,6 +48,41 @@ public class Options
 
     private static final String DEFAULT_CONFIG_RESOURCE = "default.conf";
 
+    private static final long DEFAULT_CACHE_TTL_HOURS = 24 * 7;
+
+    private static final long DEFAULT_MISSING_TTL_HOURS = 24;
+
+    private static final int DEFAULT_CACHE_SIZE = 500000;
+
+    private static final long DEFAULT_MISSING_CAPACITY = 1000000;
+
+    private static final double DEFAULT_MISSING_FPP = 0.01;
+
+    private static final double DEFAULT_MISSING_SPOT_CHECK = 0.05;
+
+    private static final long DEFAULT_MISSING_REVALIDATE_HOURS = 24 * 30;
+
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    private static final long DEFAULT_BATCH_FLUSH_MILLIS = 200;
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final int DEFAULT_MAX_CONCURRENCY = 16;
+
+    private static final int DEFAULT_RETRIES = 3;
+
+    private static final List<String> DEFAULT_EXCLUDES =
+            Collections.unmodifiableList( Arrays.asList( "*.md5", "*.sha1", "*maven-metadata.xml" ) );
+
+    private static final String DEFAULT_REPORT_NAME = "buildfinder.out";
+
+    private static final File DEFAULT_PROFILE_FILE = new File( "buildfinder.profile.json" );
+
+    private static final File DEFAULT_CHECKPOINT_FILE = new File( "buildfinder.checkpoint" );
+
+    private static final int DEFAULT_JOBS = 4;
+
     @Option( name = "-h", aliases = { "--help" }, help = true, usage = "Print this help screen and exit" )
     private boolean help;
 
@@ -56,15 +94,168 @@ public class Options
              usage = "Configuration file to use (default: $HOME/.koji/buildfinder.conf)" )
     private File configFile;
 
-    @Option( name = "-p", aliases = { "--skip" }, usage = "Skip N prefix directories when parsing paths in the ZIPs" )
+    @Option( name = "-p", aliases = { "--skip" },
+             usage = "Skip N prefix directories when parsing paths in the ZIPs (or under the input directories)" )
     private int skipParts;
 
-    @Argument( multiValued = true, metaVar = "ZIP_FILES", usage = "Zip files to process" )
+    @Option( name = "--exclude", metaVar = "GLOB",
+             usage = "Skip entries whose file name matches this glob ('*' for any characters, '?' for one). May be "
+                     + "repeated, and replaces the defaults: *.md5, *.sha1 and *maven-metadata.xml" )
+    private List<String> excludes;
+
+    @Argument( multiValued = true, metaVar = "ZIP_FILES",
+               usage = "Zip files or unpacked directories to process ('-' reads a zip from stdin)" )
     private List<String> files;
 
-    @Option( name = "-t", aliases = { "--threads" }, usage = "Number of threads to use (default: 4)" )
+    @Option( name = "-t", aliases = { "--threads" },
+             usage = "Number of threads used to parse entry paths (default: 4)" )
     private int threads;
 
+    @Option( name = "-i", aliases = { "--io-threads" }, metaVar = "N",
+             usage = "Number of threads used for Koji lookups (default: the --max-concurrency limit)" )
+    private int ioThreads;
+
+    @Option( name = "--max-concurrency", metaVar = "N",
+             usage = "Most Koji calls in flight at once. The limit starts at max.connections from the config file "
+                     + "and adapts to the hub's latency and errors, up to this (default: 16)" )
+    private int maxConcurrency;
+
+    @Option( name = "--max-rps", metaVar = "N",
+             usage = "Most Koji calls started per second, whatever the concurrency limit (default: no limit)" )
+    private double maxRps;
+
+    @Option( name = "--retries", metaVar = "N",
+             usage = "Times to retry a failed Koji call, with jittered exponential backoff, before reporting its "
+                     + "entries as unresolved (default: 3)" )
+    private Integer retries;
+
+    @Option( name = "--deadline", metaVar = "MILLIS",
+             usage = "Stop waiting for a Koji call after this long and retry it (default: request.timeout.seconds "
+                     + "from the config file)" )
+    private long deadlineMillis;
+
+    @Option( name = "--hedge",
+             usage = "Send a second copy of any Koji call still running after the 95th percentile latency of its "
+                     + "method, and use whichever answers first" )
+    private boolean hedge;
+
+    @Option( name = "--queue-size", metaVar = "N",
+             usage = "Maximum number of tasks queued for each stage of the scan pipeline (default: 1000)" )
+    private int queueSize;
+
+    @Option( name = "-c", aliases = { "--cache-dir" }, metaVar = "DIR",
+             usage = "Directory for the persistent lookup cache (default: no persistent cache)" )
+    private File cacheDir;
+
+    @Option( name = "--cache-ttl", metaVar = "HOURS",
+             usage = "Hours before a cached found-build result expires (default: 168)" )
+    private long cacheTtlHours;
+
+    @Option( name = "--missing-ttl", metaVar = "HOURS",
+             usage = "Hours before a cached missing-build result expires (default: 24)" )
+    private long missingTtlHours;
+
+    @Option( name = "--cache-size", metaVar = "N",
+             usage = "Maximum number of entries kept in the lookup cache (default: 500000)" )
+    private int cacheSize;
+
+    @Option( name = "--missing-filter",
+             usage = "Also remember artifacts Koji has no build for in a Bloom filter in the cache directory, and skip "
+                     + "looking them up again until it is revalidated" )
+    private boolean missingFilter;
+
+    @Option( name = "--missing-capacity", metaVar = "N",
+             usage = "Number of missing artifacts the filter is sized for (default: 1000000)" )
+    private long missingCapacity;
+
+    @Option( name = "--missing-fpp", metaVar = "RATE",
+             usage = "False positive rate of the missing-artifact filter at capacity (default: 0.01)" )
+    private double missingFpp;
+
+    @Option( name = "--missing-spot-check", metaVar = "FRACTION",
+             usage = "Fraction of artifacts found in the missing-artifact filter that are looked up anyway "
+                     + "(default: 0.05)" )
+    private Double missingSpotCheck;
+
+    @Option( name = "--missing-revalidate", metaVar = "HOURS",
+             usage = "Hours before the missing-artifact filter is started over, so every artifact in it is looked up "
+                     + "again (default: 720)" )
+    private long missingRevalidateHours;
+
+    @Option( name = "-b", aliases = { "--batch-size" }, metaVar = "N",
+             usage = "Number of Koji lookups to send per multiCall request; 1 disables batching (default: 50)" )
+    private int batchSize;
+
+    @Option( name = "--batch-flush", metaVar = "MILLIS",
+             usage = "Maximum time to wait for a lookup batch to fill before sending it (default: 200)" )
+    private long batchFlushMillis;
+
+    @Option( name = "-n", aliases = { "--nested-depth" }, metaVar = "N",
+             usage = "Also scan entries of archives (zip, jar, war, ear) nested up to N levels deep (default: 0)" )
+    private int nestedDepth;
+
+    @Option( name = "-x", aliases = { "--expand-builds" },
+             usage = "Fetch the full archive list of each matched build, and use it to resolve other entries from that "
+                     + "build without querying Koji" )
+    private boolean expandBuilds;
+
+    @Option( name = "--tag", metaVar = "TAG",
+             usage = "Before scanning, load every Maven build in this Koji tag (with inheritance) and its archives "
+                     + "into memory, and resolve entries against them before querying Koji. May be repeated" )
+    private List<String> tags;
+
+    @Option( name = "--export-index", metaVar = "FILE", depends = { "--tag" }, forbids = { "--offline-index" },
+             usage = "Write the Maven archives of every build in the --tag tags to this offline index file, then exit" )
+    private File exportIndex;
+
+    @Option( name = "--offline-index", metaVar = "FILE",
+             usage = "Resolve entries against this offline index (written by --export-index) instead of Koji, which "
+                     + "isn't contacted. Entries it doesn't list are reported missing" )
+    private File offlineIndex;
+
+    @Option( name = "--checkpoint", metaVar = "FILE",
+             usage = "Journal each entry's result to this file as the scan goes, so it can be resumed (default: "
+                     + "buildfinder.checkpoint)" )
+    private File checkpointFile;
+
+    @Option( name = "--resume",
+             usage = "Carry on from the checkpoint journal: entries it records for an unchanged input archive are "
+                     + "reported from it instead of being looked up again" )
+    private boolean resume;
+
+    @Option( name = "--baseline", metaVar = "ZIP",
+             usage = "Earlier version of the input archive, scanned by the run that wrote the checkpoint journal. "
+                     + "Entries with the same name, size and CRC keep the result recorded for them; only the rest are "
+                     + "looked up" )
+    private File baseline;
+
+    @Option( name = "--report-format", metaVar = "FORMAT",
+             usage = "Report format: text lists the entries without a build, grouped by input, once the scan ends; "
+                     + "jsonl and csv list every entry, with its build, as it resolves (default: text)" )
+    private ReportFormat reportFormat;
+
+    @Option( name = "--report", metaVar = "FILE",
+             usage = "Where to write the report (default: buildfinder.out.txt, .jsonl or .csv, by format)" )
+    private File reportFile;
+
+    @Option( name = "--profile", metaVar = "FILE",
+             usage = "Where to write the JSON run profile: entry counts, cache hits, Koji call latencies and time per "
+                     + "pipeline stage (default: buildfinder.profile.json)" )
+    private File profileFile;
+
+    @Option( name = "--prometheus", metaVar = "FILE",
+             usage = "Also write the run's metrics to this file in Prometheus text format (default: not written)" )
+    private File prometheusFile;
+
+    @Option( name = "--serve", metaVar = "PORT", forbids = { "--export-index", "--resume", "--baseline" },
+             usage = "Instead of scanning FILES, keep the Koji session and caches warm and take scan jobs over HTTP on "
+                     + "this port of the loopback interface, until stopped" )
+    private int servePort;
+
+    @Option( name = "--jobs", metaVar = "N",
+             usage = "Scan jobs the server runs at once; others wait their turn (default: 4)" )
+    private int jobs;
+
     public boolean parseArgs( final String[] args )
             throws CmdLineException
     {
@@ -188,6 +379,85 @@ public class Options
         this.threads = threads;
     }
 
+    /**
+     * Number of Koji I/O threads, or 0 if not set (in which case the maximum concurrency should be used).
+     */
+    public int getIoThreads()
+    {
+        return ioThreads < 1 ? 0 : ioThreads;
+    }
+
+    public void setIoThreads( int ioThreads )
+    {
+        this.ioThreads = ioThreads;
+    }
+
+    public int getMaxConcurrency()
+    {
+        return maxConcurrency < 1 ? DEFAULT_MAX_CONCURRENCY : maxConcurrency;
+    }
+
+    public void setMaxConcurrency( int maxConcurrency )
+    {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Ceiling on Koji calls started per second, or 0 if there is none.
+     */
+    public double getMaxRps()
+    {
+        return maxRps > 0 ? maxRps : 0;
+    }
+
+    public void setMaxRps( double maxRps )
+    {
+        this.maxRps = maxRps;
+    }
+
+    public int getRetries()
+    {
+        return retries == null || retries < 0 ? DEFAULT_RETRIES : retries;
+    }
+
+    public void setRetries( Integer retries )
+    {
+        this.retries = retries;
+    }
+
+    /**
+     * Per-call deadline for Koji calls, or 0 if not set (in which case only the client's request timeout applies).
+     */
+    public long getDeadlineMillis()
+    {
+        return deadlineMillis < 1 ? 0 : deadlineMillis;
+    }
+
+    public void setDeadlineMillis( long deadlineMillis )
+    {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public boolean isHedge()
+    {
+        return hedge;
+    }
+
+    public void setHedge( boolean hedge )
+    {
+        this.hedge = hedge;
+    }
+
+    public int getQueueSize()
+    {
+        return queueSize < 1 ? DEFAULT_QUEUE_SIZE : queueSize;
+    }
+
+    public void setQueueSize( int queueSize )
+    {
+        this.queueSize = queueSize;
+    }
+
     public boolean isWriteConfig()
     {
         return writeConfig;
@@ -207,4 +477,278 @@ public class Options
     {
         this.skipParts = skipParts;
     }
+
+    public List<String> getExcludes()
+    {
+        return excludes == null ? DEFAULT_EXCLUDES : excludes;
+    }
+
+    public void setExcludes( List<String> excludes )
+    {
+        this.excludes = excludes;
+    }
+
+    public File getCacheDir()
+    {
+        return cacheDir;
+    }
+
+    public void setCacheDir( File cacheDir )
+    {
+        this.cacheDir = cacheDir;
+    }
+
+    public long getCacheTtlHours()
+    {
+        return cacheTtlHours < 1 ? DEFAULT_CACHE_TTL_HOURS : cacheTtlHours;
+    }
+
+    public void setCacheTtlHours( long cacheTtlHours )
+    {
+        this.cacheTtlHours = cacheTtlHours;
+    }
+
+    public long getMissingTtlHours()
+    {
+        return missingTtlHours < 1 ? DEFAULT_MISSING_TTL_HOURS : missingTtlHours;
+    }
+
+    public void setMissingTtlHours( long missingTtlHours )
+    {
+        this.missingTtlHours = missingTtlHours;
+    }
+
+    public int getCacheSize()
+    {
+        return cacheSize < 1 ? DEFAULT_CACHE_SIZE : cacheSize;
+    }
+
+    public boolean isMissingFilter()
+    {
+        return missingFilter;
+    }
+
+    public void setMissingFilter( boolean missingFilter )
+    {
+        this.missingFilter = missingFilter;
+    }
+
+    public long getMissingCapacity()
+    {
+        return missingCapacity < 1 ? DEFAULT_MISSING_CAPACITY : missingCapacity;
+    }
+
+    public void setMissingCapacity( long missingCapacity )
+    {
+        this.missingCapacity = missingCapacity;
+    }
+
+    public double getMissingFpp()
+    {
+        return missingFpp <= 0 || missingFpp >= 1 ? DEFAULT_MISSING_FPP : missingFpp;
+    }
+
+    public void setMissingFpp( double missingFpp )
+    {
+        this.missingFpp = missingFpp;
+    }
+
+    public double getMissingSpotCheck()
+    {
+        return missingSpotCheck == null ? DEFAULT_MISSING_SPOT_CHECK : missingSpotCheck;
+    }
+
+    public void setMissingSpotCheck( Double missingSpotCheck )
+    {
+        this.missingSpotCheck = missingSpotCheck;
+    }
+
+    public long getMissingRevalidateHours()
+    {
+        return missingRevalidateHours < 1 ? DEFAULT_MISSING_REVALIDATE_HOURS : missingRevalidateHours;
+    }
+
+    public void setMissingRevalidateHours( long missingRevalidateHours )
+    {
+        this.missingRevalidateHours = missingRevalidateHours;
+    }
+
+    public void setCacheSize( int cacheSize )
+    {
+        this.cacheSize = cacheSize;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize < 1 ? DEFAULT_BATCH_SIZE : batchSize;
+    }
+
+    public void setBatchSize( int batchSize )
+    {
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchFlushMillis()
+    {
+        return batchFlushMillis < 1 ? DEFAULT_BATCH_FLUSH_MILLIS : batchFlushMillis;
+    }
+
+    public void setBatchFlushMillis( long batchFlushMillis )
+    {
+        this.batchFlushMillis = batchFlushMillis;
+    }
+
+    public int getNestedDepth()
+    {
+        return nestedDepth < 0 ? 0 : nestedDepth;
+    }
+
+    public void setNestedDepth( int nestedDepth )
+    {
+        this.nestedDepth = nestedDepth;
+    }
+
+    public boolean isExpandBuilds()
+    {
+        return expandBuilds;
+    }
+
+    public void setExpandBuilds( boolean expandBuilds )
+    {
+        this.expandBuilds = expandBuilds;
+    }
+
+    public List<String> getTags()
+    {
+        return tags == null ? Collections.emptyList() : tags;
+    }
+
+    public void setTags( List<String> tags )
+    {
+        this.tags = tags;
+    }
+
+    public File getExportIndex()
+    {
+        return exportIndex;
+    }
+
+    public void setExportIndex( File exportIndex )
+    {
+        this.exportIndex = exportIndex;
+    }
+
+    public File getOfflineIndex()
+    {
+        return offlineIndex;
+    }
+
+    public void setOfflineIndex( File offlineIndex )
+    {
+        this.offlineIndex = offlineIndex;
+    }
+
+    public File getCheckpointFile()
+    {
+        return checkpointFile == null ? DEFAULT_CHECKPOINT_FILE : checkpointFile;
+    }
+
+    public void setCheckpointFile( File checkpointFile )
+    {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public boolean isResume()
+    {
+        return resume;
+    }
+
+    public void setResume( boolean resume )
+    {
+        this.resume = resume;
+    }
+
+    public File getBaseline()
+    {
+        return baseline;
+    }
+
+    public void setBaseline( File baseline )
+    {
+        this.baseline = baseline;
+    }
+
+    public ReportFormat getReportFormat()
+    {
+        return reportFormat == null ? ReportFormat.TEXT : reportFormat;
+    }
+
+    public void setReportFormat( ReportFormat reportFormat )
+    {
+        this.reportFormat = reportFormat;
+    }
+
+    public File getReportFile()
+    {
+        if ( reportFile != null )
+        {
+            return reportFile;
+        }
+        return new File( DEFAULT_REPORT_NAME + "." + ( getReportFormat() == ReportFormat.TEXT ?
+                "txt" :
+                getReportFormat().name().toLowerCase( Locale.ROOT ) ) );
+    }
+
+    public void setReportFile( File reportFile )
+    {
+        this.reportFile = reportFile;
+    }
+
+    public File getProfileFile()
+    {
+        return profileFile == null ? DEFAULT_PROFILE_FILE : profileFile;
+    }
+
+    public void setProfileFile( File profileFile )
+    {
+        this.profileFile = profileFile;
+    }
+
+    public File getPrometheusFile()
+    {
+        return prometheusFile;
+    }
+
+    public void setPrometheusFile( File prometheusFile )
+    {
+        this.prometheusFile = prometheusFile;
+    }
+
+    public int getServePort()
+    {
+        return servePort;
+    }
+
+    public void setServePort( int servePort )
+    {
+        this.servePort = servePort;
+    }
+
+    public int getJobs()
+    {
+        return jobs < 1 ? DEFAULT_JOBS : jobs;
+    }
+
+    public void setJobs( int jobs )
+    {
+        this.jobs = jobs;
+    }
+
+    /**
+     * Formats the report can be written in; see {@link ReportSink}.
+     */
+    public enum ReportFormat
+    {
+        TEXT, JSONL, CSV
+    }
 }
@@ -0,0 +1,380 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact set of slash-separated paths, each identified by a small int id that callers can use to index their own
+ * arrays of per-path state. A million archive entries mostly share the same few thousand directories, so rather than
+ * holding a String per path, each distinct path segment is stored once as bytes in a segment dictionary, and each path
+ * is a node of a trie: its parent directory's node id and its last segment's id. A file name that starts with the
+ * names of its two parent directories (as Maven's <code>artifactId-version[-classifier].type</code> does) is stored as
+ * the rest of it, which most files share. Both tables are open-addressing hash tables of primitives, so a path costs
+ * the few dozen bytes of its node, and finding one (which allocates nothing for ASCII paths) is a hash probe per
+ * segment.
+ * <br/>
+ * Not thread-safe; callers synchronize.
+ */
+final class PathStore
+{
+    static final int NONE = -1;
+
+    private static final int ROOT = 0;
+
+    // marks a file name stored as the rest of it after its artifactId and version; see suffix()
+    private static final int DERIVED = 1 << 30;
+
+    // segment dictionary: the bytes of segment i are bytes[segmentStarts[i]] up to bytes[segmentStarts[i + 1]]
+    private byte[] bytes = new byte[1 << 12];
+
+    private int[] segmentStarts = new int[1 << 8];
+
+    private int segmentCount;
+
+    private int[] segmentTable = filled( new int[1 << 8] );
+
+    // trie: node i is segment nodeSegments[i] in directory nodeParents[i]; node 0 is the root
+    private int[] nodeParents = new int[1 << 8];
+
+    private int[] nodeSegments = new int[1 << 8];
+
+    private int nodeCount = 1;
+
+    // node ids, by hash of (parent, segment); the node arrays hold the key, so each slot is just an int
+    private int[] childTable = filled( new int[1 << 8] );
+
+    /**
+     * Add the path if it isn't there yet, and return its id.
+     */
+    int add( String path )
+    {
+        return walk( path, true );
+    }
+
+    /**
+     * The id of the path, or {@link #NONE} if it was never added.
+     */
+    int find( String path )
+    {
+        return walk( path, false );
+    }
+
+    /**
+     * The path with the given id.
+     */
+    String get( int id )
+    {
+        int depth = 0;
+        for ( int node = id; node != ROOT; node = nodeParents[node] )
+        {
+            depth++;
+        }
+
+        int[] segments = new int[depth];
+        for ( int node = id; node != ROOT; node = nodeParents[node] )
+        {
+            segments[--depth] = nodeSegments[node];
+        }
+
+        ByteArrayOutputStream path = new ByteArrayOutputStream();
+        for ( int i = 0; i < segments.length; i++ )
+        {
+            if ( i > 0 )
+            {
+                path.write( '/' );
+            }
+
+            int segment = segments[i];
+            if ( ( segment & DERIVED ) != 0 )
+            {
+                // only ever the last segment, so the two before it are stored as they are
+                write( path, segments[i - 2] );
+                path.write( '-' );
+                write( path, segments[i - 1] );
+                segment &= ~DERIVED;
+            }
+            write( path, segment );
+        }
+        return new String( path.toByteArray(), StandardCharsets.UTF_8 );
+    }
+
+    private void write( ByteArrayOutputStream out, int segment )
+    {
+        int start = segmentStarts[segment];
+        out.write( bytes, start, segmentStarts[segment + 1] - start );
+    }
+
+    /**
+     * Every id handed out so far is below this. Ids of directories are in the same range, so a caller's arrays indexed
+     * by id may be a little larger than the number of paths it added.
+     */
+    int limit()
+    {
+        return nodeCount;
+    }
+
+    private int walk( String path, boolean add )
+    {
+        int node = ROOT;
+        int start = 0;
+        // bounds of the last two directory names
+        int artifactStart = NONE;
+        int artifactEnd = NONE;
+        int versionStart = NONE;
+        int versionEnd = NONE;
+        while ( true )
+        {
+            // find the end of the segment, hashing it on the way
+            int end = start;
+            int hash = 0;
+            boolean ascii = true;
+            for ( ; end < path.length(); end++ )
+            {
+                char c = path.charAt( end );
+                if ( c == '/' )
+                {
+                    break;
+                }
+                hash = 31 * hash + c;
+                ascii &= c < 0x80;
+            }
+
+            int segment;
+            int suffix = end == path.length() && artifactStart != NONE ?
+                    suffix( path, start, artifactStart, artifactEnd, versionStart, versionEnd ) :
+                    NONE;
+            if ( suffix != NONE )
+            {
+                segment = segment( path, suffix, end, hash( path, suffix, end ), ascii, add );
+                segment = segment == NONE ? NONE : segment | DERIVED;
+            }
+            else
+            {
+                segment = segment( path, start, end, hash, ascii, add );
+            }
+
+            node = segment == NONE ? NONE : child( node, segment, add );
+            if ( node == NONE || end == path.length() )
+            {
+                return node;
+            }
+
+            artifactStart = versionStart;
+            artifactEnd = versionEnd;
+            versionStart = start;
+            versionEnd = end;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Where the rest of a file name starts, if it begins with the names of the two directories it's in, as a Maven
+     * file name begins with its artifactId and version: e.g. the <code>-sources.jar</code> of
+     * <code>foo/1.0/foo-1.0-sources.jar</code>. Otherwise NONE.
+     */
+    private static int suffix( String path, int start, int artifactStart, int artifactEnd, int versionStart,
+                               int versionEnd )
+    {
+        int artifactLength = artifactEnd - artifactStart;
+        int versionLength = versionEnd - versionStart;
+        int dash = start + artifactLength;
+        if ( dash + 1 + versionLength <= path.length() && path.charAt( dash ) == '-'
+                && path.regionMatches( start, path, artifactStart, artifactLength )
+                && path.regionMatches( dash + 1, path, versionStart, versionLength ) )
+        {
+            return dash + 1 + versionLength;
+        }
+        return NONE;
+    }
+
+    /**
+     * Find or add the segment spelled by the chars of the path from start to end, given their hash.
+     */
+    private int segment( String path, int start, int end, int hash, boolean ascii, boolean add )
+    {
+        if ( !ascii )
+        {
+            // stored as UTF-8; spelling that out a char per byte keeps a single way of hashing and comparing
+            String utf8 = new String( path.substring( start, end ).getBytes( StandardCharsets.UTF_8 ),
+                                      StandardCharsets.ISO_8859_1 );
+            return segment( utf8, 0, utf8.length(), hash( utf8, 0, utf8.length() ), true, add );
+        }
+
+        int mask = segmentTable.length - 1;
+        for ( int slot = mix( hash ) & mask; ; slot = ( slot + 1 ) & mask )
+        {
+            int segment = segmentTable[slot];
+            if ( segment == NONE )
+            {
+                if ( !add )
+                {
+                    return NONE;
+                }
+                segment = addSegment( path, start, end );
+                segmentTable[slot] = segment;
+                if ( segmentCount * 4 > segmentTable.length * 3 )
+                {
+                    rehashSegments();
+                }
+                return segment;
+            }
+            if ( matches( segment, path, start, end ) )
+            {
+                return segment;
+            }
+        }
+    }
+
+    private boolean matches( int segment, String path, int start, int end )
+    {
+        int from = segmentStarts[segment];
+        if ( segmentStarts[segment + 1] - from != end - start )
+        {
+            return false;
+        }
+        for ( int i = start; i < end; i++ )
+        {
+            if ( bytes[from++] != (byte) path.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int addSegment( String path, int start, int end )
+    {
+        int from = segmentStarts[segmentCount];
+        int to = from + end - start;
+        if ( to > bytes.length )
+        {
+            bytes = Arrays.copyOf( bytes, Math.max( to, bytes.length * 2 ) );
+        }
+        for ( int i = start; i < end; i++ )
+        {
+            bytes[from++] = (byte) path.charAt( i );
+        }
+
+        if ( segmentCount + 2 > segmentStarts.length )
+        {
+            segmentStarts = Arrays.copyOf( segmentStarts, segmentStarts.length * 2 );
+        }
+        segmentStarts[++segmentCount] = to;
+        return segmentCount - 1;
+    }
+
+    private void rehashSegments()
+    {
+        int[] table = filled( new int[segmentTable.length * 2] );
+        int mask = table.length - 1;
+        for ( int segment = 0; segment < segmentCount; segment++ )
+        {
+            int hash = 0;
+            for ( int i = segmentStarts[segment]; i < segmentStarts[segment + 1]; i++ )
+            {
+                hash = 31 * hash + ( bytes[i] & 0xff );
+            }
+
+            int slot = mix( hash ) & mask;
+            while ( table[slot] != NONE )
+            {
+                slot = ( slot + 1 ) & mask;
+            }
+            table[slot] = segment;
+        }
+        segmentTable = table;
+    }
+
+    private int child( int parent, int segment, boolean add )
+    {
+        int mask = childTable.length - 1;
+        for ( int slot = mix( (long) parent << 32 | segment ) & mask; ; slot = ( slot + 1 ) & mask )
+        {
+            int node = childTable[slot];
+            if ( node == NONE )
+            {
+                if ( !add )
+                {
+                    return NONE;
+                }
+
+                if ( nodeCount == nodeParents.length )
+                {
+                    nodeParents = Arrays.copyOf( nodeParents, nodeCount * 2 );
+                    nodeSegments = Arrays.copyOf( nodeSegments, nodeCount * 2 );
+                }
+                node = nodeCount++;
+                nodeParents[node] = parent;
+                nodeSegments[node] = segment;
+
+                childTable[slot] = node;
+                if ( nodeCount * 4 > childTable.length * 3 )
+                {
+                    rehashChildren();
+                }
+                return node;
+            }
+            if ( nodeParents[node] == parent && nodeSegments[node] == segment )
+            {
+                return node;
+            }
+        }
+    }
+
+    private void rehashChildren()
+    {
+        int[] table = filled( new int[childTable.length * 2] );
+        int mask = table.length - 1;
+        for ( int node = 1; node < nodeCount; node++ )
+        {
+            int slot = mix( (long) nodeParents[node] << 32 | nodeSegments[node] ) & mask;
+            while ( table[slot] != NONE )
+            {
+                slot = ( slot + 1 ) & mask;
+            }
+            table[slot] = node;
+        }
+        childTable = table;
+    }
+
+    private static int hash( String path, int start, int end )
+    {
+        int hash = 0;
+        for ( int i = start; i < end; i++ )
+        {
+            hash = 31 * hash + path.charAt( i );
+        }
+        return hash;
+    }
+
+    private static int mix( long key )
+    {
+        // MurmurHash3's finalizer, so keys differing only in their high bits still spread over the table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static int[] filled( int[] table )
+    {
+        Arrays.fill( table, NONE );
+        return table;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * Where the outcome of each scanned entry goes, as soon as it is known: the build it came from, no build, or that its
+ * lookups failed. Called from any thread of the scan pipeline. Closing it finishes the report.
+ */
+interface ReportSink
+        extends Closeable
+{
+    void resolved( String source, String entryName, LookupResult result );
+
+    void unresolved( String source, String entryName );
+
+    /**
+     * The file the report went to, or null if nothing was written.
+     */
+    File getFile();
+}
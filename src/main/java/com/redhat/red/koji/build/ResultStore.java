@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Record of what we know about each trimmed artifact path. A path is unknown until a worker {@link #claim(String)}s it
+ * (pending), and pending until that worker {@link #resolve(String, LookupResult)}s it as found or missing. Other
+ * workers that hit the same path meanwhile get the pending future and can attach to it instead of querying Koji again.
+ * <br/>
+ * A scan of a million entries keeps a result for every one of them, so paths are held in {@link PathStore}s and results
+ * as an int per path (0 for unknown, 1 for missing, or 2 plus the index of the build), and only pending paths have a
+ * future. The paths are spread over {@link #SHARDS} shards by directory, each with its own lock, so workers rarely
+ * wait for each other.
+ */
+class ResultStore
+{
+    private static final int SHARDS = 64;
+
+    private static final int UNKNOWN = 0;
+
+    private static final int MISSING = 1;
+
+    private static final int FOUND = 2;
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    ResultStore()
+    {
+        for ( int i = 0; i < shards.length; i++ )
+        {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Try to take ownership of the path. Returns null if the caller now owns it (and must resolve or fail it);
+     * otherwise returns the existing future, which may already be complete.
+     */
+    CompletableFuture<LookupResult> claim( String path )
+    {
+        Shard shard = shard( path );
+        synchronized ( shard )
+        {
+            int id = shard.paths.add( path );
+            LookupResult known = shard.result( id );
+            if ( known != null )
+            {
+                return CompletableFuture.completedFuture( known );
+            }
+
+            CompletableFuture<LookupResult> pending = shard.pending.get( id );
+            if ( pending == null )
+            {
+                shard.pending.put( id, new CompletableFuture<>() );
+            }
+            return pending;
+        }
+    }
+
+    void resolve( String path, LookupResult result )
+    {
+        Shard shard = shard( path );
+        CompletableFuture<LookupResult> pending;
+        synchronized ( shard )
+        {
+            int id = shard.paths.add( path );
+            if ( shard.result( id ) == null )
+            {
+                shard.set( id, result );
+            }
+            pending = shard.pending.remove( id );
+        }
+
+        // outside the lock, since whoever is waiting carries on in this thread
+        if ( pending != null )
+        {
+            pending.complete( result );
+        }
+    }
+
+    /**
+     * Give up on a pending path. Anyone waiting on it sees the error, and the path returns to unknown so a later scan
+     * can try again. Returns false if the path wasn't pending (e.g. it was resolved before the failure).
+     */
+    boolean fail( String path, Throwable error )
+    {
+        Shard shard = shard( path );
+        CompletableFuture<LookupResult> pending;
+        synchronized ( shard )
+        {
+            int id = shard.paths.find( path );
+            pending = id == PathStore.NONE ? null : shard.pending.remove( id );
+        }
+
+        return pending != null && pending.completeExceptionally( error );
+    }
+
+    /**
+     * The result for the path, or null if it is unknown or still pending.
+     */
+    LookupResult get( String path )
+    {
+        Shard shard = shard( path );
+        synchronized ( shard )
+        {
+            int id = shard.paths.find( path );
+            return id == PathStore.NONE ? null : shard.result( id );
+        }
+    }
+
+    int size()
+    {
+        int size = 0;
+        for ( Shard shard : shards )
+        {
+            synchronized ( shard )
+            {
+                size += shard.resolved + shard.pending.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The shard of the path's directory, so files in the same directory share its nodes in one {@link PathStore}.
+     */
+    private Shard shard( String path )
+    {
+        int hash = 0;
+        for ( int i = path.lastIndexOf( '/' ) - 1; i >= 0; i-- )
+        {
+            hash = 31 * hash + path.charAt( i );
+        }
+        return shards[( hash ^ hash >>> 16 ) & ( SHARDS - 1 )];
+    }
+
+    private static final class Shard
+    {
+        private final PathStore paths = new PathStore();
+
+        private int[] states = new int[1 << 8];
+
+        private int resolved;
+
+        // the distinct builds results point to, and where each is in the list
+        private final List<LookupResult> builds = new ArrayList<>();
+
+        private final Map<Integer, Integer> buildIndexes = new HashMap<>();
+
+        private final Map<Integer, CompletableFuture<LookupResult>> pending = new HashMap<>();
+
+        LookupResult result( int id )
+        {
+            int state = id < states.length ? states[id] : UNKNOWN;
+            if ( state == UNKNOWN )
+            {
+                return null;
+            }
+            return state == MISSING ? LookupResult.missing() : builds.get( state - FOUND );
+        }
+
+        void set( int id, LookupResult result )
+        {
+            if ( id >= states.length )
+            {
+                states = Arrays.copyOf( states, Math.max( id + 1, states.length * 2 ) );
+            }
+
+            if ( result.isFound() )
+            {
+                Integer index = buildIndexes.get( result.getBuildId() );
+                if ( index == null )
+                {
+                    index = builds.size();
+                    builds.add( result );
+                    buildIndexes.put( result.getBuildId(), index );
+                }
+                states[id] = FOUND + index;
+            }
+            else
+            {
+                states[id] = MISSING;
+            }
+            resolved++;
+        }
+    }
+}
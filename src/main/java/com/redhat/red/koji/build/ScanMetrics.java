@@ -0,0 +1,657 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms for one run, written out at the end as a JSON profile and optionally as a
+ * Prometheus text-format file (for the node_exporter textfile collector), so runs can be compared over time.
+ * <br/>
+ * Everything is updated lock-free from the pipeline threads: entry classification counts, lookup cache hits and
+ * misses, the latency of each Koji call by method (in fixed buckets, so percentiles are estimates), the number of Koji
+ * calls in flight and its peak, and the time each pipeline stage spent running tasks.
+ */
+class ScanMetrics
+{
+    /**
+     * Upper bounds of the latency histogram buckets, in milliseconds. Anything slower goes in a last, unbounded bucket.
+     */
+    private static final long[] BUCKET_MILLIS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    private final long startMillis = System.currentTimeMillis();
+
+    private final long startNanos = System.nanoTime();
+
+    private volatile long finishNanos;
+
+    private final LongAdder entriesScanned = new LongAdder();
+
+    private final LongAdder entriesSkipped = new LongAdder();
+
+    private final LongAdder entriesIgnored = new LongAdder();
+
+    private final LongAdder entriesDeduplicated = new LongAdder();
+
+    private final LongAdder entriesResumed = new LongAdder();
+
+    private final LongAdder entriesCarried = new LongAdder();
+
+    private final LongAdder cacheHits = new LongAdder();
+
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private final LongAdder indexHits = new LongAdder();
+
+    private final LongAdder missingFilterHits = new LongAdder();
+
+    private final LongAdder missingFilterSpotChecks = new LongAdder();
+
+    private final LongAdder missingFilterWrong = new LongAdder();
+
+    private final LongAdder artifactsFound = new LongAdder();
+
+    private final LongAdder artifactsMissing = new LongAdder();
+
+    private final LongAdder artifactsUnresolved = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder hedges = new LongAdder();
+
+    private final LongAdder hedgeWins = new LongAdder();
+
+    private final LongAdder deadlinesExceeded = new LongAdder();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger inFlightPeak = new AtomicInteger();
+
+    private final AtomicInteger limit = new AtomicInteger();
+
+    private final AtomicInteger limitMin = new AtomicInteger( Integer.MAX_VALUE );
+
+    private final AtomicInteger limitMax = new AtomicInteger();
+
+    private final Map<String, CallStats> calls = new ConcurrentHashMap<>();
+
+    private final Map<String, StageStats> stages = new ConcurrentHashMap<>();
+
+    /**
+     * An entry was handed to the parse stage.
+     */
+    void entryScanned()
+    {
+        entriesScanned.increment();
+    }
+
+    /**
+     * An entry was skipped as matching an --exclude pattern (checksum and metadata files, by default).
+     */
+    void entrySkipped()
+    {
+        entriesSkipped.increment();
+    }
+
+    /**
+     * An entry didn't parse to a Maven artifact path.
+     */
+    void entryIgnored()
+    {
+        entriesIgnored.increment();
+    }
+
+    /**
+     * An entry's path was already resolved, or being resolved, for another entry.
+     */
+    void entryDeduplicated()
+    {
+        entriesDeduplicated.increment();
+    }
+
+    /**
+     * An entry was already resolved by an earlier run, according to the checkpoint journal.
+     */
+    void entryResumed()
+    {
+        entriesResumed.increment();
+    }
+
+    /**
+     * An entry was unchanged since the baseline archive, and kept the result recorded for it there.
+     */
+    void entryCarried()
+    {
+        entriesCarried.increment();
+    }
+
+    void cacheHit()
+    {
+        cacheHits.increment();
+    }
+
+    void cacheMiss()
+    {
+        cacheMisses.increment();
+    }
+
+    /**
+     * An artifact was resolved from the archive list of an expanded build.
+     */
+    void indexHit()
+    {
+        indexHits.increment();
+    }
+
+    /**
+     * An artifact was reported missing because the missing-artifact filter has it, without asking Koji.
+     */
+    void missingFilterHit()
+    {
+        missingFilterHits.increment();
+    }
+
+    /**
+     * An artifact the missing-artifact filter has was looked up anyway, to check the filter.
+     */
+    void missingFilterSpotCheck()
+    {
+        missingFilterSpotChecks.increment();
+    }
+
+    /**
+     * Koji has a build for an artifact the missing-artifact filter has: a false positive, or it was built since.
+     */
+    void missingFilterWrong()
+    {
+        missingFilterWrong.increment();
+    }
+
+    void resolved( LookupResult result )
+    {
+        ( result.isFound() ? artifactsFound : artifactsMissing ).increment();
+    }
+
+    /**
+     * An artifact's lookup failed for good, so it is neither found nor missing.
+     */
+    void unresolved()
+    {
+        artifactsUnresolved.increment();
+    }
+
+    void retried()
+    {
+        retries.increment();
+    }
+
+    void hedged()
+    {
+        hedges.increment();
+    }
+
+    /**
+     * A hedged request answered before the call it was hedging.
+     */
+    void hedgeWon()
+    {
+        hedgeWins.increment();
+    }
+
+    void deadlineExceeded()
+    {
+        deadlinesExceeded.increment();
+    }
+
+    /**
+     * Number of Koji calls of the method made so far.
+     */
+    long callCount( String method )
+    {
+        CallStats stats = calls.get( method );
+        return stats == null ? 0 : stats.count.sum();
+    }
+
+    /**
+     * Estimated latency percentile of the Koji calls of the method made so far, or 0 if there are none.
+     */
+    double percentileMillis( String method, double percentile )
+    {
+        CallStats stats = calls.get( method );
+        return stats == null ? 0 : stats.percentileMillis( percentile );
+    }
+
+    /**
+     * Run a Koji call, counting it in the in-flight gauge while it runs and recording its latency under the method.
+     */
+    <T> T kojiCall( String method, LookupCoalescer.Query<T> call )
+            throws KojiClientException
+    {
+        CallStats stats = calls.computeIfAbsent( method, ( m ) -> new CallStats() );
+        inFlightPeak.accumulateAndGet( inFlight.incrementAndGet(), Math::max );
+        long start = System.nanoTime();
+        boolean failed = true;
+        try
+        {
+            T result = call.call();
+            failed = false;
+            return result;
+        }
+        finally
+        {
+            inFlight.decrementAndGet();
+            stats.record( System.nanoTime() - start, failed );
+        }
+    }
+
+    /**
+     * The adaptive limit on Koji calls in flight is now the given value.
+     */
+    void concurrencyLimit( int current )
+    {
+        limit.set( current );
+        limitMin.accumulateAndGet( current, Math::min );
+        limitMax.accumulateAndGet( current, Math::max );
+    }
+
+    StageStats stage( String name )
+    {
+        return stages.computeIfAbsent( name, ( n ) -> new StageStats() );
+    }
+
+    /**
+     * Stop the run clock. Profiles written afterward report the run as ending here.
+     */
+    void finish()
+    {
+        finishNanos = System.nanoTime();
+    }
+
+    String summary()
+    {
+        long kojiCalls = calls.values().stream().mapToLong( ( c ) -> c.count.sum() ).sum();
+        return String.format( "%d entries scanned (%d skipped, %d not artifacts, %d duplicates, %d resumed, %d "
+                                      + "carried forward) in %.1fs; %d cache hits, %d misses, %d known missing; %d "
+                                      + "Koji calls (%d retries, %d hedged), peak %d in flight, final limit %d; %d "
+                                      + "unresolved",
+                              entriesScanned.sum(), entriesSkipped.sum(), entriesIgnored.sum(),
+                              entriesDeduplicated.sum(), entriesResumed.sum(), entriesCarried.sum(),
+                              wallNanos() / 1e9, cacheHits.sum(), cacheMisses.sum(), missingFilterHits.sum(),
+                              kojiCalls, retries.sum(), hedges.sum(), inFlightPeak.get(), limit.get(),
+                              artifactsUnresolved.sum() );
+    }
+
+    void writeJson( File file )
+            throws IOException
+    {
+        writeAtomically( file, ( pw ) -> {
+            pw.println( "{" );
+            pw.printf( "  \"startTime\": %d,%n", startMillis );
+            pw.printf( "  \"wallMillis\": %d,%n", TimeUnit.NANOSECONDS.toMillis( wallNanos() ) );
+            pw.println( "  \"entries\": {" );
+            pw.printf( "    \"scanned\": %d,%n", entriesScanned.sum() );
+            pw.printf( "    \"skipped\": %d,%n", entriesSkipped.sum() );
+            pw.printf( "    \"notArtifacts\": %d,%n", entriesIgnored.sum() );
+            pw.printf( "    \"duplicates\": %d,%n", entriesDeduplicated.sum() );
+            pw.printf( "    \"resumed\": %d,%n", entriesResumed.sum() );
+            pw.printf( "    \"carriedForward\": %d%n", entriesCarried.sum() );
+            pw.println( "  }," );
+            pw.println( "  \"artifacts\": {" );
+            pw.printf( "    \"found\": %d,%n", artifactsFound.sum() );
+            pw.printf( "    \"missing\": %d,%n", artifactsMissing.sum() );
+            pw.printf( "    \"unresolved\": %d,%n", artifactsUnresolved.sum() );
+            pw.printf( "    \"cacheHits\": %d,%n", cacheHits.sum() );
+            pw.printf( "    \"cacheMisses\": %d,%n", cacheMisses.sum() );
+            pw.printf( "    \"expandedBuildHits\": %d,%n", indexHits.sum() );
+            pw.printf( "    \"missingFilterHits\": %d,%n", missingFilterHits.sum() );
+            pw.printf( "    \"missingFilterSpotChecks\": %d,%n", missingFilterSpotChecks.sum() );
+            pw.printf( "    \"missingFilterWrong\": %d%n", missingFilterWrong.sum() );
+            pw.println( "  }," );
+            pw.println( "  \"koji\": {" );
+            pw.printf( "    \"inFlightPeak\": %d,%n", inFlightPeak.get() );
+            pw.printf( "    \"concurrencyLimit\": { \"final\": %d, \"min\": %d, \"max\": %d },%n", limit.get(),
+                       limit.get() == 0 ? 0 : limitMin.get(), limitMax.get() );
+            pw.printf( "    \"retries\": %d,%n", retries.sum() );
+            pw.printf( "    \"hedges\": %d,%n", hedges.sum() );
+            pw.printf( "    \"hedgeWins\": %d,%n", hedgeWins.sum() );
+            pw.printf( "    \"deadlinesExceeded\": %d,%n", deadlinesExceeded.sum() );
+            pw.println( "    \"calls\": {" );
+            String callSep = "";
+            for ( Map.Entry<String, CallStats> e : new TreeMap<>( calls ).entrySet() )
+            {
+                CallStats stats = e.getValue();
+                pw.printf( "%s      %s: {%n", callSep, quote( e.getKey() ) );
+                pw.printf( "        \"count\": %d,%n", stats.count.sum() );
+                pw.printf( "        \"errors\": %d,%n", stats.errors.sum() );
+                pw.printf( "        \"totalMillis\": %d,%n", TimeUnit.NANOSECONDS.toMillis( stats.nanos.sum() ) );
+                // JSON numbers need a '.' whatever the default locale says
+                pw.printf( Locale.ROOT, "        \"p50Millis\": %.1f,%n", stats.percentileMillis( 50 ) );
+                pw.printf( Locale.ROOT, "        \"p90Millis\": %.1f,%n", stats.percentileMillis( 90 ) );
+                pw.printf( Locale.ROOT, "        \"p99Millis\": %.1f,%n", stats.percentileMillis( 99 ) );
+                pw.print( "        \"buckets\": {" );
+                for ( int i = 0; i <= BUCKET_MILLIS.length; i++ )
+                {
+                    pw.printf( "%s\"%s\": %d", i == 0 ? "" : ", ", bucketLabel( i ), stats.buckets.get( i ) );
+                }
+                pw.printf( "}%n      }" );
+                callSep = String.format( ",%n" );
+            }
+            pw.printf( "%n    }%n" );
+            pw.println( "  }," );
+            pw.println( "  \"stages\": {" );
+            String stageSep = "";
+            for ( Map.Entry<String, StageStats> e : new TreeMap<>( stages ).entrySet() )
+            {
+                StageStats stats = e.getValue();
+                pw.printf( "%s    %s: { \"tasks\": %d, \"callerRuns\": %d, \"waitsForRoom\": %d, \"busyMillis\": %d }",
+                           stageSep, quote( e.getKey() ), stats.tasks.sum(), stats.callerRuns.sum(),
+                           stats.waitsForRoom.sum(), TimeUnit.NANOSECONDS.toMillis( stats.busyNanos.sum() ) );
+                stageSep = String.format( ",%n" );
+            }
+            pw.printf( "%n  }%n" );
+            pw.println( "}" );
+        } );
+    }
+
+    void writePrometheus( File file )
+            throws IOException
+    {
+        writeAtomically( file, this::prometheus );
+    }
+
+    /**
+     * The metrics in Prometheus text format, as {@link #writePrometheus(File)} writes them.
+     */
+    String prometheus()
+    {
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter( out ))
+        {
+            prometheus( pw );
+        }
+        return out.toString();
+    }
+
+    private void prometheus( PrintWriter pw )
+    {
+        gauge( pw, "buildfinder_run_start_time_seconds", "Start of the run, in seconds since the epoch",
+               startMillis / 1000.0 );
+        gauge( pw, "buildfinder_run_duration_seconds", "Wall time of the run", wallNanos() / 1e9 );
+
+        pw.println( "# HELP buildfinder_entries_total Archive entries by how they were classified" );
+        pw.println( "# TYPE buildfinder_entries_total counter" );
+        pw.printf( "buildfinder_entries_total{kind=\"scanned\"} %d%n", entriesScanned.sum() );
+        pw.printf( "buildfinder_entries_total{kind=\"skipped\"} %d%n", entriesSkipped.sum() );
+        pw.printf( "buildfinder_entries_total{kind=\"not_artifact\"} %d%n", entriesIgnored.sum() );
+        pw.printf( "buildfinder_entries_total{kind=\"duplicate\"} %d%n", entriesDeduplicated.sum() );
+        pw.printf( "buildfinder_entries_total{kind=\"resumed\"} %d%n", entriesResumed.sum() );
+        pw.printf( "buildfinder_entries_total{kind=\"carried_forward\"} %d%n", entriesCarried.sum() );
+
+        pw.println( "# HELP buildfinder_artifacts_total Artifacts resolved, by result" );
+        pw.println( "# TYPE buildfinder_artifacts_total counter" );
+        pw.printf( "buildfinder_artifacts_total{result=\"found\"} %d%n", artifactsFound.sum() );
+        pw.printf( "buildfinder_artifacts_total{result=\"missing\"} %d%n", artifactsMissing.sum() );
+        pw.printf( "buildfinder_artifacts_total{result=\"unresolved\"} %d%n", artifactsUnresolved.sum() );
+
+        pw.println( "# HELP buildfinder_lookup_cache_total Lookup cache checks, by outcome" );
+        pw.println( "# TYPE buildfinder_lookup_cache_total counter" );
+        pw.printf( "buildfinder_lookup_cache_total{outcome=\"hit\"} %d%n", cacheHits.sum() );
+        pw.printf( "buildfinder_lookup_cache_total{outcome=\"miss\"} %d%n", cacheMisses.sum() );
+
+        pw.println( "# HELP buildfinder_missing_filter_total Missing-artifact filter checks, by outcome" );
+        pw.println( "# TYPE buildfinder_missing_filter_total counter" );
+        pw.printf( "buildfinder_missing_filter_total{outcome=\"hit\"} %d%n", missingFilterHits.sum() );
+        pw.printf( "buildfinder_missing_filter_total{outcome=\"spot_check\"} %d%n",
+                   missingFilterSpotChecks.sum() );
+        pw.printf( "buildfinder_missing_filter_total{outcome=\"wrong\"} %d%n", missingFilterWrong.sum() );
+
+        gauge( pw, "buildfinder_koji_in_flight_peak", "Most Koji calls in flight at once", inFlightPeak.get() );
+        gauge( pw, "buildfinder_koji_concurrency_limit", "Limit on Koji calls in flight at the end of the run",
+               limit.get() );
+
+        pw.println( "# HELP buildfinder_koji_attempts_total Extra Koji call attempts, by reason" );
+        pw.println( "# TYPE buildfinder_koji_attempts_total counter" );
+        pw.printf( "buildfinder_koji_attempts_total{reason=\"retry\"} %d%n", retries.sum() );
+        pw.printf( "buildfinder_koji_attempts_total{reason=\"hedge\"} %d%n", hedges.sum() );
+
+        pw.println( "# HELP buildfinder_koji_hedge_wins_total Hedged Koji calls that answered first" );
+        pw.println( "# TYPE buildfinder_koji_hedge_wins_total counter" );
+        pw.printf( "buildfinder_koji_hedge_wins_total %d%n", hedgeWins.sum() );
+
+        pw.println( "# HELP buildfinder_koji_deadlines_exceeded_total Koji call attempts past their deadline" );
+        pw.println( "# TYPE buildfinder_koji_deadlines_exceeded_total counter" );
+        pw.printf( "buildfinder_koji_deadlines_exceeded_total %d%n", deadlinesExceeded.sum() );
+
+        pw.println( "# HELP buildfinder_koji_call_errors_total Koji calls that failed, by method" );
+        pw.println( "# TYPE buildfinder_koji_call_errors_total counter" );
+        Map<String, CallStats> sorted = new TreeMap<>( calls );
+        sorted.forEach( ( method, stats ) -> pw.printf( "buildfinder_koji_call_errors_total{method=\"%s\"} %d%n",
+                                                        method, stats.errors.sum() ) );
+
+        pw.println( "# HELP buildfinder_koji_call_duration_seconds Latency of Koji calls, by method" );
+        pw.println( "# TYPE buildfinder_koji_call_duration_seconds histogram" );
+        sorted.forEach( ( method, stats ) -> {
+            long cumulative = 0;
+            for ( int i = 0; i <= BUCKET_MILLIS.length; i++ )
+            {
+                cumulative += stats.buckets.get( i );
+                String le = i < BUCKET_MILLIS.length ? Double.toString( BUCKET_MILLIS[i] / 1000.0 ) : "+Inf";
+                pw.printf( "buildfinder_koji_call_duration_seconds_bucket{method=\"%s\",le=\"%s\"} %d%n", method,
+                           le, cumulative );
+            }
+            pw.printf( "buildfinder_koji_call_duration_seconds_sum{method=\"%s\"} %s%n", method,
+                       stats.nanos.sum() / 1e9 );
+            pw.printf( "buildfinder_koji_call_duration_seconds_count{method=\"%s\"} %d%n", method,
+                       stats.count.sum() );
+        } );
+
+        pw.println( "# HELP buildfinder_stage_busy_seconds_total Time pipeline stages spent running tasks" );
+        pw.println( "# TYPE buildfinder_stage_busy_seconds_total counter" );
+        Map<String, StageStats> sortedStages = new TreeMap<>( stages );
+        sortedStages.forEach( ( stage, stats ) -> pw.printf(
+                "buildfinder_stage_busy_seconds_total{stage=\"%s\"} %s%n", stage, stats.busyNanos.sum() / 1e9 ) );
+
+        pw.println( "# HELP buildfinder_stage_tasks_total Tasks run by pipeline stages" );
+        pw.println( "# TYPE buildfinder_stage_tasks_total counter" );
+        sortedStages.forEach( ( stage, stats ) -> pw.printf( "buildfinder_stage_tasks_total{stage=\"%s\"} %d%n",
+                                                             stage, stats.tasks.sum() ) );
+
+        pw.println( "# HELP buildfinder_stage_caller_runs_total Tasks run by the submitter on a full queue" );
+        pw.println( "# TYPE buildfinder_stage_caller_runs_total counter" );
+        sortedStages.forEach( ( stage, stats ) -> pw.printf(
+                "buildfinder_stage_caller_runs_total{stage=\"%s\"} %d%n", stage, stats.callerRuns.sum() ) );
+
+        pw.println( "# HELP buildfinder_stage_waits_for_room_total Submissions that waited for room in a full queue" );
+        pw.println( "# TYPE buildfinder_stage_waits_for_room_total counter" );
+        sortedStages.forEach( ( stage, stats ) -> pw.printf(
+                "buildfinder_stage_waits_for_room_total{stage=\"%s\"} %d%n", stage, stats.waitsForRoom.sum() ) );
+    }
+
+    private long wallNanos()
+    {
+        return ( finishNanos == 0 ? System.nanoTime() : finishNanos ) - startNanos;
+    }
+
+    private static void gauge( PrintWriter pw, String name, String help, double value )
+    {
+        pw.printf( "# HELP %s %s%n# TYPE %s gauge%n%s %s%n", name, help, name, name, value );
+    }
+
+    private static String bucketLabel( int i )
+    {
+        return i < BUCKET_MILLIS.length ? "le" + BUCKET_MILLIS[i] + "ms" : "inf";
+    }
+
+    static String quote( String s )
+    {
+        StringBuilder sb = new StringBuilder( "\"" );
+        for ( char c : s.toCharArray() )
+        {
+            if ( c == '"' || c == '\\' )
+            {
+                sb.append( '\\' ).append( c );
+            }
+            else if ( c < 0x20 )
+            {
+                sb.append( String.format( "\\u%04x", (int) c ) );
+            }
+            else
+            {
+                sb.append( c );
+            }
+        }
+        return sb.append( '"' ).toString();
+    }
+
+    /**
+     * Write to a temporary file next to the target and rename it into place, so readers (like a metrics collector
+     * polling the file) never see half of it.
+     */
+    private static void writeAtomically( File file, Writer writer )
+            throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile( file.getName(), ".tmp", dir );
+        try
+        {
+            try (PrintWriter pw = new PrintWriter( tmp, "UTF-8" ))
+            {
+                writer.write( pw );
+            }
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            tmp.delete();
+        }
+    }
+
+    private interface Writer
+    {
+        void write( PrintWriter pw );
+    }
+
+    private static final class CallStats
+    {
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LongAdder nanos = new LongAdder();
+
+        private final AtomicLongArray buckets = new AtomicLongArray( BUCKET_MILLIS.length + 1 );
+
+        private void record( long elapsed, boolean failed )
+        {
+            count.increment();
+            nanos.add( elapsed );
+            if ( failed )
+            {
+                errors.increment();
+            }
+
+            long millis = TimeUnit.NANOSECONDS.toMillis( elapsed );
+            int bucket = 0;
+            while ( bucket < BUCKET_MILLIS.length && millis >= BUCKET_MILLIS[bucket] )
+            {
+                bucket++;
+            }
+            buckets.incrementAndGet( bucket );
+        }
+
+        /**
+         * Estimate a percentile by interpolating inside the bucket it falls in. Anything in the last bucket is reported
+         * as the largest bucket bound.
+         */
+        private double percentileMillis( double percentile )
+        {
+            long total = 0;
+            long[] counts = new long[buckets.length()];
+            for ( int i = 0; i < counts.length; i++ )
+            {
+                counts[i] = buckets.get( i );
+                total += counts[i];
+            }
+
+            if ( total == 0 )
+            {
+                return 0;
+            }
+
+            double rank = percentile / 100 * total;
+            long seen = 0;
+            for ( int i = 0; i < BUCKET_MILLIS.length; i++ )
+            {
+                if ( counts[i] > 0 && seen + counts[i] >= rank )
+                {
+                    long lower = i == 0 ? 0 : BUCKET_MILLIS[i - 1];
+                    return lower + ( BUCKET_MILLIS[i] - lower ) * ( rank - seen ) / counts[i];
+                }
+                seen += counts[i];
+            }
+
+            return BUCKET_MILLIS[BUCKET_MILLIS.length - 1];
+        }
+    }
+
+    /**
+     * Work done by one pipeline stage: tasks run, how many of them the submitting thread ran itself because the
+     * stage's queue was full, how many submissions waited for room in it instead, and the total time spent running
+     * them.
+     */
+    static final class StageStats
+    {
+        private final LongAdder tasks = new LongAdder();
+
+        private final LongAdder callerRuns = new LongAdder();
+
+        private final LongAdder waitsForRoom = new LongAdder();
+
+        private final LongAdder busyNanos = new LongAdder();
+
+        void ran( long nanos )
+        {
+            tasks.increment();
+            busyNanos.add( nanos );
+        }
+
+        void callerRan()
+        {
+            callerRuns.increment();
+        }
+
+        void waitedForRoom()
+        {
+            waitsForRoom.increment();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executors for the stages of a scan, each with its own thread count and bounded queue:
+ * <ul>
+ *     <li>enumeration of archive entries, on the thread that calls {@link BuildFinder}</li>
+ *     <li>parsing: classifying and trimming entry paths, parsing them to artifacts, and checking known results
+ *     (CPU-bound, sized by <code>--threads</code>)</li>
+ *     <li>Koji I/O: GAV lookups and build expansion (sized by <code>--io-threads</code>, which defaults to the
+ *     <code>max.connections</code> configured for the Koji client)</li>
+ *     <li>aggregation: recording results in the result store, lookup cache and per-file report (one thread of its
+ *     own)</li>
+ * </ul>
+ * When the parse or aggregation queue is full, the submitting thread runs the task itself, which slows the previous
+ * stage down to the rate the next stage can handle. So parse tasks can also run on the enumerating thread, and
+ * aggregation tasks on any thread of the scan, and everything they touch has to be thread-safe.
+ * <br/>
+ * Koji I/O tasks only ever run on Koji I/O threads, so no more than <code>--io-threads</code> Koji calls are made at
+ * once. When that queue is full, other threads wait for room in it; a Koji I/O thread that submits a follow-up task
+ * runs it itself, as waiting on its own stage's queue could leave every one of them stuck.
+ * <br/>
+ * Once the pipeline is closed, new tasks are rejected with a {@link RejectedExecutionException} rather than dropped,
+ * so nobody waits for a task that will never run. Task counts, busy time, caller-run counts and waits for room are
+ * kept per stage in the {@link ScanMetrics}.
+ */
+class ScanPipeline
+        implements Closeable
+{
+    // the stage each pipeline thread belongs to
+    private static final ThreadLocal<Object> STAGE = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor parseExecutor;
+
+    private final ThreadPoolExecutor ioExecutor;
+
+    private final ThreadPoolExecutor aggregateExecutor;
+
+    ScanPipeline( int parseThreads, int ioThreads, int queueSize, ScanMetrics metrics )
+    {
+        parseExecutor = bounded( "parse", parseThreads, queueSize, false, metrics );
+        ioExecutor = bounded( "koji-io", ioThreads, queueSize, true, metrics );
+        aggregateExecutor = bounded( "aggregate", 1, queueSize, false, metrics );
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Scan pipeline: {} parse threads, {} Koji I/O threads, queue size {}", parseThreads, ioThreads,
+                     queueSize );
+    }
+
+    /**
+     * Start a new group of parse tasks, which can be waited on separately from those of other scans.
+     */
+    TaskGroup parseTasks()
+    {
+        return new TaskGroup( parseExecutor );
+    }
+
+    /**
+     * Start a new group of aggregation tasks, which can be waited on separately from those of other scans.
+     */
+    TaskGroup aggregateTasks()
+    {
+        return new TaskGroup( aggregateExecutor );
+    }
+
+    ExecutorService getIoExecutor()
+    {
+        return ioExecutor;
+    }
+
+    @Override
+    public void close()
+    {
+        parseExecutor.shutdown();
+        ioExecutor.shutdown();
+        aggregateExecutor.shutdown();
+    }
+
+    /**
+     * A stage's executor. When its queue is full, the submitting thread runs the task itself, unless the stage is
+     * exclusive: then only the stage's own threads do, and any other thread waits for room in the queue.
+     */
+    private static ThreadPoolExecutor bounded( String name, int threads, int queueSize, boolean exclusive,
+                                               ScanMetrics metrics )
+    {
+        ScanMetrics.StageStats stats = metrics.stage( name );
+        AtomicInteger count = new AtomicInteger();
+        Object stage = new Object();
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor( threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>( queueSize ),
+                                        ( r ) -> {
+                                            Thread t = new Thread( () -> {
+                                                STAGE.set( stage );
+                                                r.run();
+                                            }, name + "-" + count.incrementAndGet() );
+                                            t.setDaemon( true );
+                                            return t;
+                                        }, ( r, pool ) -> {
+                    // same as CallerRunsPolicy, but counted, and never silently drops a task
+                    if ( pool.isShutdown() )
+                    {
+                        throw new RejectedExecutionException( "Scan pipeline stage is closed: " + name );
+                    }
+
+                    if ( exclusive && STAGE.get() != stage )
+                    {
+                        stats.waitedForRoom();
+                        put( pool, r, name );
+                        return;
+                    }
+
+                    stats.callerRan();
+                    r.run();
+                } )
+                {
+                    @Override
+                    public void execute( Runnable task )
+                    {
+                        super.execute( () -> {
+                            long start = System.nanoTime();
+                            try
+                            {
+                                task.run();
+                            }
+                            finally
+                            {
+                                stats.ran( System.nanoTime() - start );
+                            }
+                        } );
+                    }
+                };
+
+        executor.allowCoreThreadTimeOut( true );
+        return executor;
+    }
+
+    /**
+     * Wait for room in the stage's queue, and add the task to it.
+     */
+    private static void put( ThreadPoolExecutor pool, Runnable task, String name )
+    {
+        try
+        {
+            pool.getQueue().put( task );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException( "Interrupted while waiting to submit to: " + name, e );
+        }
+
+        // closed while we waited; take the task back, unless a worker has already taken it
+        if ( pool.isShutdown() && pool.getQueue().remove( task ) )
+        {
+            throw new RejectedExecutionException( "Scan pipeline stage is closed: " + name );
+        }
+
+        // the queue was full, so there should be workers to drain it, but make sure
+        pool.prestartCoreThread();
+    }
+
+    /**
+     * Tasks submitted to one stage on behalf of one caller. Keeps a count of unfinished tasks, so the caller can wait
+     * for its own work to drain without shutting the shared executor down, and keeps the first error a task threw.
+     */
+    static final class TaskGroup
+    {
+        private final Executor executor;
+
+        private final AtomicLong pending = new AtomicLong();
+
+        private final AtomicReference<RuntimeException> error = new AtomicReference<>();
+
+        private TaskGroup( Executor executor )
+        {
+            this.executor = executor;
+        }
+
+        void execute( Runnable task )
+        {
+            pending.incrementAndGet();
+            try
+            {
+                executor.execute( () -> {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch ( RuntimeException e )
+                    {
+                        error.compareAndSet( null, e );
+                    }
+                    finally
+                    {
+                        done();
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                done();
+                throw e;
+            }
+        }
+
+        /**
+         * Wait until every task submitted so far has finished, then rethrow the first error any of them threw.
+         */
+        void await()
+        {
+            synchronized ( this )
+            {
+                while ( pending.get() > 0 )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException( "Interrupted while waiting for pipeline tasks", e );
+                    }
+                }
+            }
+
+            RuntimeException failure = error.get();
+            if ( failure != null )
+            {
+                throw failure;
+            }
+        }
+
+        private void done()
+        {
+            if ( pending.decrementAndGet() == 0 )
+            {
+                synchronized ( this )
+                {
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.util.Map;
+
+/**
+ * Outcome of a scan, by input name: how many entries had no Koji build, and how many we couldn't tell about because
+ * their Koji lookups kept failing. The entries themselves went to the {@link ReportSink}. Inputs are in the order they
+ * were scanned; every input has a (maybe zero) count in both maps. It also tells whether any lookup failed because the
+ * hub turned down the Koji session, so a caller that shares the session knows to log in again.
+ */
+class ScanResult
+{
+    private final Map<String, Integer> missing;
+
+    private final Map<String, Integer> unresolved;
+
+    private final boolean sessionRejected;
+
+    ScanResult( Map<String, Integer> missing, Map<String, Integer> unresolved, boolean sessionRejected )
+    {
+        this.missing = missing;
+        this.unresolved = unresolved;
+        this.sessionRejected = sessionRejected;
+    }
+
+    Map<String, Integer> getMissing()
+    {
+        return missing;
+    }
+
+    Map<String, Integer> getUnresolved()
+    {
+        return unresolved;
+    }
+
+    boolean isSessionRejected()
+    {
+        return sessionRejected;
+    }
+}
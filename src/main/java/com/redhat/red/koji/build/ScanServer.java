@@ -0,0 +1,662 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClient;
+import com.redhat.red.build.koji.KojiClientException;
+import com.redhat.red.build.koji.model.xmlrpc.KojiSessionInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Long-running mode: takes scan jobs over HTTP on a loopback port, while the Koji client (with its SSL setup and
+ * connection pool), a logged-in Koji session, the lookup cache, the missing-artifact filter and the archive index stay
+ * warm between them. A job then costs none of the JVM startup, PEM loading and login that a fresh run pays for.
+ * <ul>
+ *     <li><code>POST /scan?path=FILE</code> (repeatable) scans archives or directories on this machine</li>
+ *     <li><code>POST /scan?name=NAME</code>, with a ZIP as the request body, scans that as it arrives</li>
+ *     <li><code>GET /metrics</code> gives the metrics of every job so far, in Prometheus text format</li>
+ *     <li><code>GET /health</code> answers <code>ok</code></li>
+ * </ul>
+ * A scan also takes <code>skip</code>, <code>nested-depth</code> and (repeatable) <code>exclude</code> parameters,
+ * which default to the server's own options. Its response is a JSON object, streamed as the scan goes: an
+ * <code>entries</code> array with an object per entry, as in the JSON Lines report, then the missing and unresolved
+ * counts of each input, the job's wall time, and the error that ended it early, if any.
+ * <br/>
+ * Each job has its own {@link BuildFinder}, so jobs only see each other's results through the shared caches and index.
+ * Up to <code>--jobs</code> of them run at once, sharing the {@link ScanPipeline} and the Koji session. If the hub
+ * turns the session down during a job (it expired, say), the session is dropped and the next job logs in again; the
+ * dropped session is logged out once the last job using it is done. Other failures, like timeouts, keep the session.
+ */
+class ScanServer
+{
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private static final String TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final List<String> SCAN_PARAMS = Arrays.asList( "path", "name", "skip", "nested-depth", "exclude" );
+
+    private static final String DEFAULT_UPLOAD_NAME = "upload";
+
+    private static final long STOP_DELAY_SECONDS = 60;
+
+    private final Options opts;
+
+    private final KojiClient client;
+
+    private final ScanPipeline pipeline;
+
+    private final ScanMetrics metrics;
+
+    private final Supplier<BuildFinder> finders;
+
+    private final Runnable saveCache;
+
+    private final Semaphore running;
+
+    private final AtomicInteger jobIds = new AtomicInteger();
+
+    private final AtomicBoolean saving = new AtomicBoolean();
+
+    private final CountDownLatch stopped = new CountDownLatch( 1 );
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    // null until the first job logs in, or after the hub turns it down
+    private KojiSessionInfo session;
+
+    // jobs using each session, this one or dropped ones, so a dropped session is logged out after its last job
+    private final Map<KojiSessionInfo, Integer> sessionJobs = new IdentityHashMap<>();
+
+    private volatile boolean stopping;
+
+    /**
+     * The client is null if entries are resolved against an offline index. Jobs get their finders from the supplier,
+     * and the cache saver is run after each job (which also keeps the lookup cache and missing-artifact filter within
+     * their limits).
+     */
+    ScanServer( Options opts, KojiClient client, ScanPipeline pipeline, ScanMetrics metrics,
+                Supplier<BuildFinder> finders, Runnable saveCache )
+    {
+        this.opts = opts;
+        this.client = client;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+        this.finders = finders;
+        this.saveCache = saveCache;
+        this.running = new Semaphore( opts.getJobs(), true );
+    }
+
+    void start()
+            throws IOException
+    {
+        InetSocketAddress address = new InetSocketAddress( InetAddress.getLoopbackAddress(), opts.getServePort() );
+        server = HttpServer.create( address, 0 );
+        server.createContext( "/scan", this::scan );
+        server.createContext( "/metrics", this::metrics );
+        server.createContext( "/health", this::health );
+
+        // a thread per connection, so metrics and health checks answer while jobs wait their turn
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newCachedThreadPool( ( r ) -> {
+            Thread t = new Thread( r, "server-" + count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        } );
+        server.setExecutor( executor );
+        server.start();
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Taking scan jobs at: http://{}:{}/scan ({} at once)", server.getAddress().getHostString(),
+                     server.getAddress().getPort(), opts.getJobs() );
+    }
+
+    /**
+     * Wait until the server is stopped.
+     */
+    void await()
+            throws InterruptedException
+    {
+        stopped.await();
+    }
+
+    /**
+     * Stop taking jobs, give those running (or already waiting) some time to finish, and log out of Koji.
+     */
+    void stop()
+    {
+        synchronized ( this )
+        {
+            if ( stopping )
+            {
+                return;
+            }
+            stopping = true;
+        }
+
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        logger.info( "Stopping server. Waiting up to {}s for running jobs", STOP_DELAY_SECONDS );
+        try
+        {
+            if ( !running.tryAcquire( opts.getJobs(), STOP_DELAY_SECONDS, TimeUnit.SECONDS ) )
+            {
+                logger.warn( "Jobs are still running after {}s. Stopping anyway", STOP_DELAY_SECONDS );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        server.stop( 0 );
+        executor.shutdown();
+        logout();
+        stopped.countDown();
+    }
+
+    private void scan( HttpExchange exchange )
+            throws IOException
+    {
+        try
+        {
+            if ( !"POST".equals( exchange.getRequestMethod() ) )
+            {
+                respond( exchange, 405, JSON, error( "Scans are started with POST" ) );
+                return;
+            }
+
+            Map<String, List<String>> params = params( exchange.getRequestURI() );
+            List<EntrySource> inputs;
+            EntryClassifier classifier;
+            try
+            {
+                inputs = inputs( exchange, params );
+                classifier = new EntryClassifier( intParam( params, "skip", opts.getSkipParts() ),
+                                                  params.getOrDefault( "exclude", opts.getExcludes() ) );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                respond( exchange, 400, JSON, error( e.getMessage() ) );
+                return;
+            }
+
+            run( exchange, inputs, classifier );
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The inputs a job names, or the request body if it names none.
+     */
+    private List<EntrySource> inputs( HttpExchange exchange, Map<String, List<String>> params )
+    {
+        for ( String param : params.keySet() )
+        {
+            if ( !SCAN_PARAMS.contains( param ) )
+            {
+                throw new IllegalArgumentException( "Unknown parameter: " + param + ". Scans take: " + SCAN_PARAMS );
+            }
+        }
+
+        int nestedDepth = intParam( params, "nested-depth", opts.getNestedDepth() );
+        List<String> paths = params.getOrDefault( "path", Collections.emptyList() );
+        if ( paths.isEmpty() )
+        {
+            String length = exchange.getRequestHeaders().getFirst( "Content-Length" );
+            if ( ( length == null || "0".equals( length ) )
+                    && exchange.getRequestHeaders().getFirst( "Transfer-Encoding" ) == null )
+            {
+                throw new IllegalArgumentException( "Give path parameters, or a ZIP as the request body" );
+            }
+
+            String name = params.getOrDefault( "name", Collections.singletonList( DEFAULT_UPLOAD_NAME ) ).get( 0 );
+            return Collections.singletonList( new ZipStreamSource( name, exchange.getRequestBody(), nestedDepth ) );
+        }
+
+        List<EntrySource> inputs = new ArrayList<>( paths.size() );
+        for ( String path : paths )
+        {
+            EntrySource input = ZipStreamSource.STDIN.equals( path ) ?
+                    null :
+                    EntrySource.open( path, nestedDepth, pipeline );
+            if ( input == null )
+            {
+                throw new IllegalArgumentException( "Cannot find ZIP archive or directory at: " + path );
+            }
+            inputs.add( input );
+        }
+        return inputs;
+    }
+
+    private void run( HttpExchange exchange, List<EntrySource> inputs, EntryClassifier classifier )
+            throws IOException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        int id = jobIds.incrementAndGet();
+        if ( stopping )
+        {
+            respond( exchange, 503, JSON, error( "Server is stopping" ) );
+            return;
+        }
+
+        try
+        {
+            running.acquire();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            respond( exchange, 503, JSON, error( "Server is stopping" ) );
+            return;
+        }
+
+        // the job keeps its slot until the caches are saved, so stop() knows when they are
+        try
+        {
+            KojiSessionInfo jobSession;
+            try
+            {
+                jobSession = session();
+            }
+            catch ( KojiClientException e )
+            {
+                logger.error( "Job " + id + ": failed to login to Koji", e );
+                respond( exchange, 502, JSON, error( "Failed to login to Koji: " + e.getMessage() ) );
+                return;
+            }
+
+            logger.info( "Job {}: scanning {} inputs", id, inputs.size() );
+            long start = System.nanoTime();
+            exchange.getResponseHeaders().set( "Content-Type", JSON );
+            exchange.sendResponseHeaders( 200, 0 );
+            JobReport report = new JobReport( exchange.getResponseBody() );
+            ScanResult result = null;
+            String failure = null;
+            boolean rejected = false;
+            try
+            {
+                result = finders.get().findMissingBuilds( inputs, classifier, report, jobSession );
+                rejected = result.isSessionRejected();
+            }
+            catch ( IOException | KojiClientException | RuntimeException e )
+            {
+                logger.error( "Job " + id + " failed", e );
+                failure = e.getMessage() == null ? e.toString() : e.getMessage();
+                rejected = BuildFinder.isAuthFault( e );
+            }
+
+            if ( jobSession != null )
+            {
+                releaseSession( jobSession, rejected );
+            }
+
+            long millis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+            report.finish( result, failure, millis );
+            logger.info( "Job {}: finished in {}ms{}", id, millis, failure == null ? "" : " with error: " + failure );
+
+            // the client has its answer; now keep what was learned
+            save();
+        }
+        finally
+        {
+            running.release();
+        }
+    }
+
+    private void metrics( HttpExchange exchange )
+            throws IOException
+    {
+        try
+        {
+            respond( exchange, 200, TEXT, metrics.prometheus() );
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void health( HttpExchange exchange )
+            throws IOException
+    {
+        try
+        {
+            respond( exchange, 200, TEXT, "ok\n" );
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The session for a job to use, logged in if there isn't one. Null with an offline index. The job must give it
+     * back with {@link #releaseSession(KojiSessionInfo, boolean)}.
+     */
+    private synchronized KojiSessionInfo session()
+            throws KojiClientException
+    {
+        if ( client != null && session == null )
+        {
+            session = client.login();
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.info( "Logged in to Koji" );
+        }
+
+        if ( session != null )
+        {
+            sessionJobs.merge( session, 1, Integer::sum );
+        }
+        return session;
+    }
+
+    /**
+     * A job is done with its session. If the hub turned it down, it's dropped so the next job logs in again. A dropped
+     * session is logged out when no job is left using it; until then, jobs still running with it keep it.
+     */
+    private void releaseSession( KojiSessionInfo used, boolean rejected )
+    {
+        synchronized ( this )
+        {
+            Integer jobs = sessionJobs.get( used );
+            if ( jobs == null )
+            {
+                // already logged out by stop()
+                return;
+            }
+
+            if ( rejected && session == used )
+            {
+                Logger logger = LoggerFactory.getLogger( getClass() );
+                logger.info( "Koji turned down the session. The next job logs in again" );
+                session = null;
+            }
+
+            if ( jobs > 1 )
+            {
+                sessionJobs.put( used, jobs - 1 );
+                return;
+            }
+
+            sessionJobs.remove( used );
+            if ( session == used )
+            {
+                return;
+            }
+        }
+
+        // the hub may refuse the logout of a session it already turned down; the client only logs that
+        client.logout( used );
+    }
+
+    /**
+     * Log out the session, and any dropped ones that jobs still running after the stop delay are using.
+     */
+    private void logout()
+    {
+        List<KojiSessionInfo> sessions;
+        synchronized ( this )
+        {
+            sessions = new ArrayList<>( sessionJobs.keySet() );
+            if ( session != null && !sessionJobs.containsKey( session ) )
+            {
+                sessions.add( session );
+            }
+            sessionJobs.clear();
+            session = null;
+        }
+        sessions.forEach( client::logout );
+    }
+
+    private void save()
+    {
+        // a job that ends while another's save is under way leaves its results to the next save
+        if ( saving.compareAndSet( false, true ) )
+        {
+            try
+            {
+                saveCache.run();
+            }
+            finally
+            {
+                saving.set( false );
+            }
+        }
+    }
+
+    private static Map<String, List<String>> params( URI uri )
+            throws UnsupportedEncodingException
+    {
+        Map<String, List<String>> params = new HashMap<>();
+        String query = uri.getRawQuery();
+        if ( query == null )
+        {
+            return params;
+        }
+
+        for ( String param : query.split( "&" ) )
+        {
+            if ( param.isEmpty() )
+            {
+                continue;
+            }
+
+            int eq = param.indexOf( '=' );
+            String name = URLDecoder.decode( eq < 0 ? param : param.substring( 0, eq ), "UTF-8" );
+            String value = eq < 0 ? "" : URLDecoder.decode( param.substring( eq + 1 ), "UTF-8" );
+            params.computeIfAbsent( name, ( n ) -> new ArrayList<>() ).add( value );
+        }
+        return params;
+    }
+
+    private static int intParam( Map<String, List<String>> params, String name, int defaultValue )
+    {
+        List<String> values = params.get( name );
+        if ( values == null )
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            int value = Integer.parseInt( values.get( 0 ) );
+            if ( value >= 0 )
+            {
+                return value;
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            // reported below
+        }
+        throw new IllegalArgumentException( "Not a count: " + name + "=" + values.get( 0 ) );
+    }
+
+    private static String error( String message )
+    {
+        return "{\"error\":" + ScanMetrics.quote( message ) + "}\n";
+    }
+
+    private static void respond( HttpExchange exchange, int status, String contentType, String body )
+            throws IOException
+    {
+        byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type", contentType );
+        exchange.sendResponseHeaders( status, bytes.length );
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write( bytes );
+        }
+    }
+
+    /**
+     * The response to a job: its entries are written as they resolve, like the lines of a {@link StreamingReportSink},
+     * and are flushed at most a second apart; the totals follow once the scan ends. If the client goes away, the scan
+     * carries on (its results still reach the caches), but nothing more is written.
+     */
+    private static final class JobReport
+            implements ReportSink
+    {
+        private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+        private final Writer writer;
+
+        private boolean first = true;
+
+        private long flushedNanos = System.nanoTime();
+
+        private boolean failed;
+
+        private JobReport( OutputStream out )
+        {
+            this.writer = new BufferedWriter( new OutputStreamWriter( out, StandardCharsets.UTF_8 ) );
+            write( "{\"entries\":[" );
+        }
+
+        @Override
+        public void resolved( String source, String entryName, LookupResult result )
+        {
+            entry( JsonLinesReportSink.json( source, entryName, result.isFound() ?
+                    StreamingReportSink.FOUND :
+                    StreamingReportSink.MISSING, result ) );
+        }
+
+        @Override
+        public void unresolved( String source, String entryName )
+        {
+            entry( JsonLinesReportSink.json( source, entryName, StreamingReportSink.UNRESOLVED, null ) );
+        }
+
+        @Override
+        public File getFile()
+        {
+            return null;
+        }
+
+        /**
+         * End the entries, add the totals (of which there are none if the scan failed) and complete the response.
+         */
+        synchronized void finish( ScanResult result, String failure, long millis )
+        {
+            StringBuilder sb = new StringBuilder( "\n],\"inputs\":[" );
+            if ( result != null )
+            {
+                String separator = "";
+                for ( Map.Entry<String, Integer> missing : result.getMissing().entrySet() )
+                {
+                    sb.append( separator ).append( "\n{\"input\":" ).append( ScanMetrics.quote( missing.getKey() ) );
+                    sb.append( ",\"missing\":" ).append( missing.getValue() );
+                    sb.append( ",\"unresolved\":" ).append( result.getUnresolved().get( missing.getKey() ) );
+                    sb.append( '}' );
+                    separator = ",";
+                }
+            }
+            sb.append( "\n],\"millis\":" ).append( millis );
+            if ( failure != null )
+            {
+                sb.append( ",\"error\":" ).append( ScanMetrics.quote( failure ) );
+            }
+            write( sb.append( "}\n" ).toString() );
+            close();
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            try
+            {
+                writer.close();
+            }
+            catch ( IOException e )
+            {
+                failed = true;
+            }
+        }
+
+        private synchronized void entry( String json )
+        {
+            write( first ? "\n" + json : ",\n" + json );
+            first = false;
+
+            long now = System.nanoTime();
+            if ( !failed && now - flushedNanos > FLUSH_INTERVAL_NANOS )
+            {
+                try
+                {
+                    writer.flush();
+                }
+                catch ( IOException e )
+                {
+                    failed = true;
+                }
+                flushedNanos = now;
+            }
+        }
+
+        private synchronized void write( String text )
+        {
+            if ( failed )
+            {
+                return;
+            }
+
+            try
+            {
+                writer.write( text );
+            }
+            catch ( IOException e )
+            {
+                // the client went away
+                failed = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Report with one line per entry, found or not, written as entries resolve. Lines are buffered and written out at most
+ * a second apart, so tools can follow the file while the scan runs (as with the {@link Checkpoint} journal). Lines are
+ * in the order entries resolved, not the order they appear in their inputs.
+ */
+abstract class StreamingReportSink
+        implements ReportSink
+{
+    static final String FOUND = "found";
+
+    static final String MISSING = "missing";
+
+    static final String UNRESOLVED = "unresolved";
+
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+    private final File file;
+
+    private final PrintWriter writer;
+
+    private long flushedNanos = System.nanoTime();
+
+    StreamingReportSink( File file )
+            throws IOException
+    {
+        this.file = file;
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if ( parent != null )
+        {
+            parent.mkdirs();
+        }
+        this.writer = new PrintWriter( new BufferedWriter(
+                new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ) ) );
+
+        String header = header();
+        if ( header != null )
+        {
+            write( header );
+        }
+    }
+
+    /**
+     * The first line of the report, or null for none.
+     */
+    abstract String header();
+
+    /**
+     * The line for one entry, without a line terminator. The result is null if the entry is unresolved.
+     */
+    abstract String line( String source, String entryName, String status, LookupResult result );
+
+    @Override
+    public void resolved( String source, String entryName, LookupResult result )
+    {
+        write( line( source, entryName, result.isFound() ? FOUND : MISSING, result ) );
+    }
+
+    @Override
+    public void unresolved( String source, String entryName )
+    {
+        write( line( source, entryName, UNRESOLVED, null ) );
+    }
+
+    @Override
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        writer.close();
+        if ( writer.checkError() )
+        {
+            throw new IOException( "Failed to write report: " + file );
+        }
+    }
+
+    private synchronized void write( String line )
+    {
+        writer.append( line ).append( '\n' );
+
+        long now = System.nanoTime();
+        if ( now - flushedNanos > FLUSH_INTERVAL_NANOS )
+        {
+            writer.flush();
+            flushedNanos = now;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+import com.redhat.red.build.koji.model.xmlrpc.KojiArchiveInfo;
+import com.redhat.red.build.koji.model.xmlrpc.KojiBuildInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+
+/**
+ * Loads every Maven build in a set of Koji tags, and the archives of those builds, into an {@link ArchiveIndex} before
+ * the scan starts, so entries that came from those tags resolve without a query of their own (or into an
+ * {@link OfflineIndex.Writer}, to export them for scans without the hub). kojiji has no call for
+ * <code>listTagged</code>, so this goes through {@link KojiMultiCall}: one multiCall lists the builds of every tag
+ * (with inheritance), then their archives are listed in multiCalls of <code>batchSize</code> builds, several at a time.
+ * <br/>
+ * As in the per-artifact lookups, builds without a task (binary imports) don't count, and when several builds contain
+ * the same archive the earliest one wins.
+ */
+class TagPrefetcher
+{
+    /**
+     * Smallest multiCall of archive listings. Prefetching always goes through multiCall, so even when entry lookups
+     * aren't batched (<code>-b 1</code>) it doesn't list archives a build at a time.
+     */
+    private static final int MIN_BATCH_SIZE = 10;
+
+    private final KojiMultiCall multiCall;
+
+    private final ExecutorService executor;
+
+    private final int batchSize;
+
+    TagPrefetcher( KojiMultiCall multiCall, ExecutorService executor, int batchSize )
+    {
+        this.multiCall = multiCall;
+        this.executor = executor;
+        this.batchSize = Math.max( MIN_BATCH_SIZE, batchSize );
+    }
+
+    void prefetch( List<String> tags, ArchiveIndex index )
+            throws KojiClientException
+    {
+        prefetch( tags, ( build, archives ) -> {
+            if ( index.claim( build.getId() ) )
+            {
+                index.add( LookupResult.found( build.getId(), build.getNvr() ), archives );
+            }
+        } );
+    }
+
+    /**
+     * List the builds in the tags and their archives, and hand each build with its archives to the sink, oldest build
+     * first, on the calling thread.
+     */
+    void prefetch( List<String> tags, BiConsumer<KojiBuildInfo, List<KojiArchiveInfo>> sink )
+            throws KojiClientException
+    {
+        Logger logger = LoggerFactory.getLogger( getClass() );
+        long start = System.nanoTime();
+
+        List<KojiMultiCall.Call> tagCalls = new ArrayList<>( tags.size() );
+        tags.forEach( ( tag ) -> tagCalls.add( listTaggedCall( tag ) ) );
+
+        // tags may share builds (e.g. through inheritance); keep one of each
+        Map<Integer, KojiBuildInfo> builds = new LinkedHashMap<>();
+        List<Object> tagResults = multiCall.callRetryingFaults( tagCalls );
+        for ( int i = 0; i < tags.size(); i++ )
+        {
+            Object result = tagResults.get( i );
+            if ( result instanceof KojiClientException )
+            {
+                throw new KojiClientException( "Failed to list builds in tag: %s", (Throwable) result, tags.get( i ) );
+            }
+
+            int tagged = 0;
+            for ( Object build : result instanceof List ? (List<?>) result : Collections.emptyList() )
+            {
+                if ( build instanceof Map && ( (Map<?, ?>) build ).get( "task_id" ) instanceof Integer )
+                {
+                    KojiBuildInfo info = LookupBatcher.toBuildInfo( (Map<?, ?>) build );
+                    builds.putIfAbsent( info.getId(), info );
+                    tagged++;
+                }
+            }
+            logger.info( "Tag {} has {} Maven builds", tags.get( i ), tagged );
+        }
+
+        List<KojiBuildInfo> sorted = new ArrayList<>( builds.values() );
+        sorted.sort( Comparator.comparing( KojiBuildInfo::getCreationTime,
+                                           Comparator.nullsLast( Comparator.naturalOrder() ) ) );
+
+        List<CompletableFuture<List<Object>>> batches = new ArrayList<>();
+        for ( int i = 0; i < sorted.size(); i += batchSize )
+        {
+            List<KojiMultiCall.Call> archiveCalls = new ArrayList<>( batchSize );
+            sorted.subList( i, Math.min( sorted.size(), i + batchSize ) )
+                  .forEach( ( build ) -> archiveCalls.add( listArchivesCall( build.getId() ) ) );
+
+            batches.add( CompletableFuture.supplyAsync( () -> {
+                try
+                {
+                    return multiCall.callRetryingFaults( archiveCalls );
+                }
+                catch ( KojiClientException e )
+                {
+                    throw new CompletionException( e );
+                }
+            }, executor ) );
+        }
+
+        // hand builds over in order of creation, so the earliest build of an archive is the one indexed
+        int archives = 0;
+        for ( int b = 0; b < batches.size(); b++ )
+        {
+            List<Object> results = join( batches.get( b ) );
+            for ( int j = 0; j < results.size(); j++ )
+            {
+                KojiBuildInfo build = sorted.get( b * batchSize + j );
+                Object result = results.get( j );
+                if ( result instanceof KojiClientException )
+                {
+                    throw new KojiClientException( "Failed to list archives of build: %s", (Throwable) result,
+                                                   build.getNvr() );
+                }
+
+                List<KojiArchiveInfo> buildArchives = new ArrayList<>();
+                for ( Object archive : result instanceof List ? (List<?>) result : Collections.emptyList() )
+                {
+                    if ( archive instanceof Map )
+                    {
+                        buildArchives.add( toArchiveInfo( (Map<?, ?>) archive ) );
+                    }
+                }
+
+                sink.accept( build, buildArchives );
+                archives += buildArchives.size();
+            }
+        }
+
+        logger.info( "Prefetched {} archives of {} builds from tags {} in {}ms", archives, sorted.size(), tags,
+                     ( System.nanoTime() - start ) / 1000000 );
+    }
+
+    private static List<Object> join( CompletableFuture<List<Object>> batch )
+            throws KojiClientException
+    {
+        try
+        {
+            return batch.join();
+        }
+        catch ( CompletionException e )
+        {
+            if ( e.getCause() instanceof KojiClientException )
+            {
+                throw (KojiClientException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static KojiMultiCall.Call listTaggedCall( String tag )
+    {
+        Map<String, Object> options = new LinkedHashMap<>();
+        options.put( "__starstar", Boolean.TRUE );
+        options.put( "inherit", Boolean.TRUE );
+        options.put( "type", "maven" );
+
+        return new KojiMultiCall.Call( "listTagged", Arrays.asList( tag, options ) );
+    }
+
+    private static KojiMultiCall.Call listArchivesCall( int buildId )
+    {
+        Map<String, Object> query = new LinkedHashMap<>();
+        query.put( "__starstar", Boolean.TRUE );
+        query.put( "buildID", buildId );
+        query.put( "type", "maven" );
+
+        return new KojiMultiCall.Call( "listArchives", Collections.singletonList( query ) );
+    }
+
+    private static KojiArchiveInfo toArchiveInfo( Map<?, ?> struct )
+    {
+        KojiArchiveInfo archive = new KojiArchiveInfo();
+        archive.setBuildId( (Integer) struct.get( "build_id" ) );
+        archive.setGroupId( (String) struct.get( "group_id" ) );
+        archive.setArtifactId( (String) struct.get( "artifact_id" ) );
+        archive.setVersion( (String) struct.get( "version" ) );
+        archive.setFilename( (String) struct.get( "filename" ) );
+        archive.setChecksum( (String) struct.get( "checksum" ) );
+        return archive;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The original plain text report: the entries without a Koji build, grouped by input, then those whose lookups failed.
+ * Grouping needs every entry, so they are held until the scan ends and written then, and the file is only written if
+ * there is something to report. Found entries aren't listed, and the others are held in a {@link PathStore}, as ids.
+ * Entries are listed by name within each input.
+ */
+class TextReportSink
+        implements ReportSink
+{
+    private static final String LINE =
+            "----------------------------------------------------------------------------------------";
+
+    private final File file;
+
+    private final PathStore entryNames = new PathStore();
+
+    private final Map<String, Entries> missing = new LinkedHashMap<>();
+
+    private final Map<String, Entries> unresolved = new LinkedHashMap<>();
+
+    private boolean written;
+
+    TextReportSink( File file, List<String> inputs )
+    {
+        this.file = file;
+
+        // filled in up front, in input order, so workers only ever read the maps
+        inputs.forEach( ( input ) -> {
+            missing.put( input, new Entries() );
+            unresolved.put( input, new Entries() );
+        } );
+    }
+
+    @Override
+    public void resolved( String source, String entryName, LookupResult result )
+    {
+        if ( !result.isFound() )
+        {
+            add( missing.get( source ), entryName );
+        }
+    }
+
+    @Override
+    public void unresolved( String source, String entryName )
+    {
+        add( unresolved.get( source ), entryName );
+    }
+
+    private synchronized void add( Entries entries, String entryName )
+    {
+        entries.add( entryNames.add( entryName ) );
+    }
+
+    @Override
+    public File getFile()
+    {
+        return written ? file : null;
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        boolean anyMissing = missing.values().stream().anyMatch( ( entries ) -> entries.size > 0 );
+        boolean anyUnresolved = unresolved.values().stream().anyMatch( ( entries ) -> entries.size > 0 );
+        if ( !anyMissing && !anyUnresolved )
+        {
+            Logger logger = LoggerFactory.getLogger( getClass() );
+            logger.info( "Nothing to report! All files have a corresponding Koji build!" );
+            return;
+        }
+
+        try (PrintWriter pw = new PrintWriter( new FileWriter( file ) ))
+        {
+            missing.forEach( ( input, entries ) -> write( pw, input, entries ) );
+
+            if ( anyUnresolved )
+            {
+                pw.write( String.format( "UNRESOLVED (Koji lookups failed; run again to retry them)\n%s\n\n", LINE ) );
+                unresolved.forEach( ( input, entries ) -> write( pw, input, entries ) );
+            }
+        }
+        written = true;
+    }
+
+    private void write( PrintWriter pw, String input, Entries entries )
+    {
+        if ( entries.size == 0 )
+        {
+            return;
+        }
+
+        String[] names = new String[entries.size];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            names[i] = entryNames.get( entries.ids[i] );
+        }
+        Arrays.sort( names );
+
+        pw.write( String.format( "%s:\n%s\n", input, LINE ) );
+        for ( int i = 0; i < names.length; i++ )
+        {
+            // a zip may hold the same name twice; list it once
+            if ( i == 0 || !names[i].equals( names[i - 1] ) )
+            {
+                pw.write( "  " + names[i] + "\n" );
+            }
+        }
+        pw.write( "\n" );
+    }
+
+    /**
+     * Ids of the entries of one input in one section. Repeats are dropped when writing, so this needn't be a set.
+     */
+    private static final class Entries
+    {
+        private int[] ids = new int[16];
+
+        private int size;
+
+        void add( int id )
+        {
+            if ( size == ids.length )
+            {
+                ids = Arrays.copyOf( ids, size * 2 );
+            }
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Lists entries of a zip archive on local disk from its central directory, using {@link ZipFile}. Nested archives are
+ * read with {@link ZipStreamSource}, down to the configured depth.
+ */
+class ZipFileSource
+        implements EntrySource
+{
+    private final File file;
+
+    private final int nestedDepth;
+
+    ZipFileSource( File file, int nestedDepth )
+    {
+        this.file = file;
+        this.nestedDepth = nestedDepth;
+    }
+
+    @Override
+    public String getName()
+    {
+        return file.getPath();
+    }
+
+    @Override
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public void scan( Consumer<String> handler )
+            throws IOException
+    {
+        try (ZipFile zf = new ZipFile( file ))
+        {
+            Enumeration<? extends ZipEntry> entries = zf.entries();
+            while ( entries.hasMoreElements() )
+            {
+                ZipEntry entry = entries.nextElement();
+                if ( entry.isDirectory() )
+                {
+                    continue;
+                }
+
+                String entryName = entry.getName();
+                handler.accept( entryName );
+
+                if ( nestedDepth > 0 && ZipStreamSource.isArchive( entryName ) )
+                {
+                    try (InputStream in = new BufferedInputStream( zf.getInputStream( entry ) ))
+                    {
+                        ZipStreamSource.scanNested( in, entryName, nestedDepth - 1, handler );
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads a zip archive front to back with {@link ZipInputStream}, so it works on stdin and pipes, and entries are handed
+ * out while the rest of the archive is still arriving. Nested archives (zip, jar, war, ear) are read in place, down to
+ * the configured depth.
+ */
+class ZipStreamSource
+        implements EntrySource
+{
+    static final String STDIN = "-";
+
+    private static final String[] ARCHIVE_SUFFIXES = { ".zip", ".jar", ".war", ".ear" };
+
+    private final String name;
+
+    private final File file;
+
+    private final InputStream stream;
+
+    private final int nestedDepth;
+
+    /**
+     * Read the given file.
+     */
+    ZipStreamSource( String name, File file, int nestedDepth )
+    {
+        this.name = name;
+        this.file = file;
+        this.stream = null;
+        this.nestedDepth = nestedDepth;
+    }
+
+    /**
+     * Read the given stream, such as stdin or the body of a request to the {@link ScanServer}. It is left open.
+     */
+    ZipStreamSource( String name, InputStream stream, int nestedDepth )
+    {
+        this.name = name;
+        this.file = null;
+        this.stream = stream;
+        this.nestedDepth = nestedDepth;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public void scan( Consumer<String> handler )
+            throws IOException
+    {
+        if ( file == null )
+        {
+            // don't close the stream; it's the caller's
+            scan( new BufferedInputStream( stream ), "", nestedDepth, handler );
+        }
+        else
+        {
+            try (InputStream in = new BufferedInputStream( new FileInputStream( file ) ))
+            {
+                scan( in, "", nestedDepth, handler );
+            }
+        }
+    }
+
+    /**
+     * Pass each file entry of the zip stream to the handler, prefixing entry names with the given prefix. Entries that
+     * are archives themselves are descended into while depth allows, with names of the form
+     * <code>outer-entry!/inner-entry</code>. The stream isn't closed, so this can read an entry of an enclosing
+     * archive.
+     */
+    static void scan( InputStream in, String prefix, int depth, Consumer<String> handler )
+            throws IOException
+    {
+        ZipInputStream zin = new ZipInputStream( in );
+        ZipEntry entry;
+        while ( ( entry = zin.getNextEntry() ) != null )
+        {
+            if ( entry.isDirectory() )
+            {
+                continue;
+            }
+
+            String entryName = prefix + entry.getName();
+            handler.accept( entryName );
+
+            if ( depth > 0 && isArchive( entryName ) )
+            {
+                scanNested( zin, entryName, depth - 1, handler );
+            }
+        }
+    }
+
+    /**
+     * Read the archive in the current entry of an enclosing archive. A nested archive we can't read is skipped, but
+     * doesn't stop the scan of the enclosing one.
+     */
+    static void scanNested( InputStream in, String entryName, int depth, Consumer<String> handler )
+            throws IOException
+    {
+        try
+        {
+            scan( in, entryName + "!/", depth, handler );
+        }
+        catch ( ZipException e )
+        {
+            Logger logger = LoggerFactory.getLogger( ZipStreamSource.class );
+            logger.warn( "Cannot read nested archive: {} ({})", entryName, e.getMessage() );
+        }
+    }
+
+    static boolean isArchive( String entryName )
+    {
+        for ( String suffix : ARCHIVE_SUFFIXES )
+        {
+            if ( entryName.endsWith( suffix ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
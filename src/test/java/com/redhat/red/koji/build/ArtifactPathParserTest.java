@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.commonjava.maven.atlas.ident.util.ArtifactPathInfo;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Checks {@link ArtifactPathParser} against the {@link ArtifactPathInfo#parse(String)} it stands in for.
+ */
+public class ArtifactPathParserTest
+{
+    @Test
+    public void releases()
+    {
+        assertSameAsOriginal( "org/example/foo/1.0/foo-1.0.jar", "org/example/foo/1.0/foo-1.0.pom",
+                              "org/example/foo/1.0/foo-1.0.tar.gz", "foo/1.0/foo-1.0.jar",
+                              "org/example/foo/1.0.Final-redhat-1/foo-1.0.Final-redhat-1.jar" );
+    }
+
+    @Test
+    public void classifiers()
+    {
+        assertSameAsOriginal( "org/example/foo/1.0/foo-1.0-sources.jar", "org/example/foo/1.0/foo-1.0-tests.tar.gz",
+                              "org/example/foo/1.0/foo-1.0-jdk-8.jar", "org/example/foo/1.0/foo-1.0-.jar",
+                              "org/example/foo/1.0/foo-1.0-sources", "org/example/foo/1.0/foo-1.0-sources.",
+                              "org/example/foo/1.0/foo-1.0-1.0.jar" );
+    }
+
+    @Test
+    public void snapshots()
+    {
+        assertSameAsOriginal( "org/example/foo/1.0-SNAPSHOT/foo-1.0-SNAPSHOT.jar",
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-SNAPSHOT-sources.jar",
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-20160907.154400-12.jar",
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-20160907.154400-12-sources.jar",
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-20160907.154400-12.tar.gz",
+                              // the pattern's '.' between date and time matches any character
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-20160907_154400-3.jar",
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-20160907.154400-.jar",
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-2016090.154400-1.jar",
+                              "org/example/foo/1.0-SNAPSHOT/foo-1.0-SNAPSHOT-20160907.154400-1.jar",
+                              "org/example/foo/1.0/foo-1.0-20160907.154400-12.jar",
+                              "org/example/foo/-SNAPSHOT/foo--SNAPSHOT.jar" );
+    }
+
+    @Test
+    public void versionsContainingTheArtifactId()
+    {
+        assertSameAsOriginal( "org/example/foo/foo-1.0/foo-foo-1.0.jar", "org/example/foo-1/1.0/foo-1-1.0.jar",
+                              "org/example/foo/foo/foo-foo.jar", "org/example/foo/foo-foo/foo-foo-foo-sources.jar",
+                              "org/example/foo/1.0-foo/foo-1.0-foo-foo.jar",
+                              "org/example/foo-1.0/1.0/foo-1.0-1.0-1.0.jar" );
+    }
+
+    @Test
+    public void filesOfOtherArtifactsOrVersions()
+    {
+        assertSameAsOriginal( "org/example/foo/1.0/bar-1.0.jar", "org/example/foo/1.0/foo-1.1.jar",
+                              "org/example/foo/1.0/foo-1.0", "org/example/foo/1.0/foobar-1.0.jar",
+                              "org/example/foo/1.0/foo.jar", "org/example/foo/1.0/foo-1.0jar" );
+    }
+
+    @Test
+    public void nonMavenPaths()
+    {
+        assertSameAsOriginal( "README", "foo.jar", "lib/foo.jar", "lib/ext/foo-1.0.jar", "META-INF/MANIFEST.MF",
+                              "/org/example/foo/1.0/foo-1.0.jar", "org//foo/1.0/foo-1.0.jar",
+                              "org/example/foo/1.0/", "org/example/foo/1.0/foo-1.0.jar/",
+                              "org\\example\\foo\\1.0\\foo-1.0.jar", "org/example/foo/1.0\\foo-1.0.jar", "",
+                              "/foo/1.0/foo-1.0.jar", "org/example/foo/1.0/foo-1.0.j\nar" );
+    }
+
+    @Test
+    public void generatedCombinations()
+    {
+        List<String> paths = new ArrayList<>();
+        for ( String artifactId : Arrays.asList( "foo", "foo-bar", "1", "foo.bar" ) )
+        {
+            for ( String version : Arrays.asList( "1.0", "1.0-SNAPSHOT", artifactId + "-2", "1.0-" + artifactId ) )
+            {
+                String base = version.endsWith( "-SNAPSHOT" ) ? version.substring( 0, version.length() - 9 ) : version;
+                for ( String fileVersion : Arrays.asList( version, base + "-20160907.154400-1", base, "9" ) )
+                {
+                    for ( String tail : Arrays.asList( ".jar", "-sources.jar", "-x.y.z", "-", ".", "-a-b.tar.gz" ) )
+                    {
+                        paths.add( "com/example/" + artifactId + "/" + version + "/" + artifactId + "-" + fileVersion
+                                           + tail );
+                    }
+                }
+            }
+        }
+
+        assertSameAsOriginal( paths.toArray( new String[paths.size()] ) );
+    }
+
+    @Test
+    public void directoriesSharingACacheSlot()
+    {
+        // "Aa" and "BB" have the same hash, so these directories have the same length and take the same cache slot
+        String first = "org/Aa/foo/1.0/foo-1.0.jar";
+        String second = "org/BB/foo/1.0/foo-1.0-sources.jar";
+        assertThat( first.substring( 0, first.lastIndexOf( '/' ) ).hashCode(),
+                    equalTo( second.substring( 0, second.lastIndexOf( '/' ) ).hashCode() ) );
+
+        ArtifactPathParser parser = new ArtifactPathParser();
+        for ( int i = 0; i < 3; i++ )
+        {
+            ArtifactPath a = parser.parse( first );
+            ArtifactPath b = parser.parse( second );
+            assertThat( a.getGroupId(), equalTo( "org.Aa" ) );
+            assertThat( b.getGroupId(), equalTo( "org.BB" ) );
+            assertThat( b.getClassifier(), equalTo( "sources" ) );
+        }
+    }
+
+    @Test
+    public void directoriesOfManyGavs()
+    {
+        // far more directories than the cache has slots, visited over and over, so slots are taken over many times
+        List<String> paths = new ArrayList<>();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            paths.add( "org/example/g" + i % 37 + "/a" + i + "/1." + i % 7 + "/a" + i + "-1." + i % 7 + ".jar" );
+        }
+
+        ArtifactPathParser parser = new ArtifactPathParser();
+        for ( int round = 0; round < 3; round++ )
+        {
+            for ( int i = round; i < paths.size(); i += 3 )
+            {
+                assertSameAsOriginal( parser, paths.get( i ) );
+            }
+        }
+    }
+
+    private static void assertSameAsOriginal( String... paths )
+    {
+        // once on a cold cache, and again with every directory cached
+        ArtifactPathParser parser = new ArtifactPathParser();
+        for ( int round = 0; round < 2; round++ )
+        {
+            for ( String path : paths )
+            {
+                assertSameAsOriginal( parser, path );
+            }
+        }
+    }
+
+    private static void assertSameAsOriginal( ArtifactPathParser parser, String path )
+    {
+        ArtifactPathInfo expected = ArtifactPathInfo.parse( path );
+        ArtifactPath actual = parser.parse( path );
+        if ( expected == null )
+        {
+            assertThat( path, actual, nullValue() );
+            return;
+        }
+
+        assertThat( path, actual, notNullValue() );
+        assertThat( path, actual.getGroupId(), equalTo( expected.getGroupId() ) );
+        assertThat( path, actual.getArtifactId(), equalTo( expected.getArtifactId() ) );
+        assertThat( path, actual.getVersion(), equalTo( expected.getVersion() ) );
+        assertThat( path, actual.getClassifier(), equalTo( expected.getClassifier() ) );
+        assertThat( path, actual.getType(), equalTo( expected.getType() ) );
+        assertThat( path, actual.getFile(), equalTo( expected.getFile() ) );
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import com.redhat.red.build.koji.KojiClientException;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletionException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BuildFinderTest
+{
+    @Test
+    public void authFaultsAreFoundAmongTheCauses()
+    {
+        KojiClientException fault = new KojiClientException( "multiCall of %d calls failed: %s", 2,
+                                                              "<class 'koji.AuthExpired'>: session expired" );
+        assertThat( BuildFinder.isAuthFault( fault ), equalTo( true ) );
+        assertThat( BuildFinder.isAuthFault( new CompletionException( fault ) ), equalTo( true ) );
+        assertThat( BuildFinder.isAuthFault( new KojiClientException( "Failed: %s", new IllegalStateException(
+                "koji.AuthError: invalid session id" ) ) ), equalTo( true ) );
+        assertThat( BuildFinder.isAuthFault( new KojiClientException( "koji.AuthLockError: session locked" ) ),
+                    equalTo( true ) );
+    }
+
+    @Test
+    public void otherFailuresKeepTheSession()
+    {
+        assertThat( BuildFinder.isAuthFault( null ), equalTo( false ) );
+        assertThat( BuildFinder.isAuthFault( new CompletionException( new KojiClientException(
+                "listArchives failed: %s", new SocketTimeoutException( "Read timed out" ), "Read timed out" ) ) ),
+                    equalTo( false ) );
+        assertThat( BuildFinder.isAuthFault( new KojiClientException( "koji.GenericError: no such build" ) ),
+                    equalTo( false ) );
+        assertThat( BuildFinder.isAuthFault( new RuntimeException( (String) null ) ), equalTo( false ) );
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class CentralDirectorySourceTest
+{
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ScanPipeline pipeline;
+
+    @Before
+    public void setUp()
+    {
+        pipeline = new ScanPipeline( 4, 1, 16, new ScanMetrics() );
+    }
+
+    @After
+    public void tearDown()
+    {
+        pipeline.close();
+    }
+
+    @Test
+    public void readsSmallArchive()
+            throws IOException
+    {
+        File zip = zip( "small.zip", 10 );
+
+        assertThat( scan( zip ), equalTo( zipFileNames( zip ) ) );
+    }
+
+    @Test
+    public void decodesRangesInParallel()
+            throws IOException
+    {
+        File zip = zip( "ranges.zip", 3 * CentralDirectorySource.RANGE_ENTRIES + 17 );
+
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<String> names = scan( zip, threads );
+
+        assertThat( names, equalTo( zipFileNames( zip ) ) );
+        assertThat( threads.size(), greaterThan( 1 ) );
+    }
+
+    @Test
+    public void readsArchiveWithPrependedData()
+            throws IOException
+    {
+        File zip = zip( "plain.zip", CentralDirectorySource.RANGE_ENTRIES + 1 );
+        File prepended = prepend( zip, "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n" );
+
+        assertThat( scan( prepended ), equalTo( zipFileNames( zip ) ) );
+    }
+
+    @Test
+    public void findsZip64EndRecord()
+            throws IOException
+    {
+        // more than 0xFFFF entries makes ZipOutputStream write the ZIP64 end records
+        File zip = zip( "zip64.zip", 0x10000 + 100 );
+        List<String> expected = zipFileNames( zip );
+
+        assertThat( scan( zip ), equalTo( expected ) );
+
+        // java.util.zip can't read this one, so it is checked against the names of the original
+        File prepended = prepend( zip, "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n" );
+        assertThat( scan( prepended ), equalTo( expected ) );
+    }
+
+    @Test
+    public void readsChecksums()
+            throws IOException
+    {
+        File zip = zip( "checksums.zip", 100 );
+
+        Map<String, Long> expected = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile( zip ))
+        {
+            for ( Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); )
+            {
+                ZipEntry entry = e.nextElement();
+                if ( !entry.isDirectory() )
+                {
+                    expected.put( entry.getName(), entry.getCrc() << 32 | entry.getSize() );
+                }
+            }
+        }
+
+        assertThat( new CentralDirectorySource( zip, pipeline ).readChecksums(), equalTo( expected ) );
+    }
+
+    private List<String> scan( File zip )
+            throws IOException
+    {
+        return scan( zip, ConcurrentHashMap.newKeySet() );
+    }
+
+    private List<String> scan( File zip, Set<String> threads )
+            throws IOException
+    {
+        ConcurrentLinkedQueue<String> names = new ConcurrentLinkedQueue<>();
+        new CentralDirectorySource( zip, pipeline ).scan( ( name ) -> {
+            threads.add( Thread.currentThread().getName() );
+            names.add( name );
+        } );
+
+        List<String> sorted = new ArrayList<>( names );
+        Collections.sort( sorted );
+        return sorted;
+    }
+
+    private static List<String> zipFileNames( File zip )
+            throws IOException
+    {
+        List<String> names = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile( zip ))
+        {
+            for ( Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); )
+            {
+                ZipEntry entry = e.nextElement();
+                if ( !entry.isDirectory() )
+                {
+                    names.add( entry.getName() );
+                }
+            }
+        }
+
+        Collections.sort( names );
+        return names;
+    }
+
+    /**
+     * An archive of a directory every 100 entries and small files in between, some with non-ASCII names.
+     */
+    private File zip( String name, int entries )
+            throws IOException
+    {
+        File file = temp.newFile( name );
+        try (ZipOutputStream zip = new ZipOutputStream( new FileOutputStream( file ) ))
+        {
+            for ( int i = 0; i < entries; i++ )
+            {
+                String dir = "org/example/group" + i / 100 + "/";
+                if ( i % 100 == 0 )
+                {
+                    zip.putNextEntry( new ZipEntry( dir ) );
+                }
+                else
+                {
+                    String artifact = ( i % 7 == 0 ? "\u00e4rtifact-\u00fc-" : "artifact-" ) + i + ".jar";
+                    zip.putNextEntry( new ZipEntry( dir + artifact ) );
+                    zip.write( Integer.toString( i ).getBytes( StandardCharsets.US_ASCII ) );
+                }
+                zip.closeEntry();
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * A copy of the archive with a launcher script in front of it, as in a self-extracting archive. The offsets
+     * recorded in the archive are left as they were.
+     */
+    private File prepend( File zip, String stub )
+            throws IOException
+    {
+        File file = temp.newFile( "prepended-" + zip.getName() );
+        try (OutputStream out = new FileOutputStream( file ))
+        {
+            out.write( stub.getBytes( StandardCharsets.US_ASCII ) );
+            Files.copy( zip.toPath(), out );
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class CheckpointTest
+{
+    private static final long MODIFIED = 1473263040000L;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void resumesRecordedEntries()
+            throws IOException
+    {
+        File archive = zip( "foo-1.0.jar", "bar-1.0.jar" );
+        List<EntrySource> sources = sources( archive );
+        File journal = new File( temp.getRoot(), "buildfinder.checkpoint" );
+
+        Checkpoint first = new Checkpoint( journal );
+        first.open( sources, false );
+        first.record( archive.getPath(), "foo-1.0.jar", LookupResult.found( 42, "foo-1.0-1" ) );
+        first.record( archive.getPath(), "bar-1.0.jar", LookupResult.missing() );
+        first.close();
+
+        Checkpoint resumed = new Checkpoint( journal );
+        resumed.open( sources, true );
+        resumed.close();
+
+        assertFound( resumed.resumed( archive.getPath(), "foo-1.0.jar" ), 42, "foo-1.0-1" );
+        assertThat( resumed.resumed( archive.getPath(), "bar-1.0.jar" ).isFound(), equalTo( false ) );
+        assertThat( resumed.resumed( archive.getPath(), "baz-1.0.jar" ), nullValue() );
+    }
+
+    @Test
+    public void skipsRecordCutShortAndCarriesOn()
+            throws IOException
+    {
+        File archive = zip( "foo-1.0.jar", "bar-1.0.jar" );
+        List<EntrySource> sources = sources( archive );
+        File journal = new File( temp.getRoot(), "buildfinder.checkpoint" );
+
+        Checkpoint first = new Checkpoint( journal );
+        first.open( sources, false );
+        first.record( archive.getPath(), "foo-1.0.jar", LookupResult.found( 42, "foo-1.0-1" ) );
+        first.record( archive.getPath(), "bar-1.0.jar", LookupResult.found( 43, "bar-1.0-1" ) );
+        first.close();
+
+        // as if the run died while writing the last record: only its input id and part of the build id made it
+        String written = new String( Files.readAllBytes( journal.toPath() ), StandardCharsets.UTF_8 );
+        int lastRecord = written.lastIndexOf( '\n', written.length() - 2 ) + 1;
+        Files.write( journal.toPath(), written.substring( 0, lastRecord + 3 ).getBytes( StandardCharsets.UTF_8 ) );
+
+        Checkpoint second = new Checkpoint( journal );
+        second.open( sources, true );
+        assertFound( second.resumed( archive.getPath(), "foo-1.0.jar" ), 42, "foo-1.0-1" );
+        assertThat( second.resumed( archive.getPath(), "bar-1.0.jar" ), nullValue() );
+
+        // looked up again, and recorded after the broken line rather than run on from it
+        second.record( archive.getPath(), "bar-1.0.jar", LookupResult.found( 43, "bar-1.0-1" ) );
+        second.close();
+
+        Checkpoint third = new Checkpoint( journal );
+        third.open( sources, true );
+        third.close();
+        assertFound( third.resumed( archive.getPath(), "foo-1.0.jar" ), 42, "foo-1.0-1" );
+        assertFound( third.resumed( archive.getPath(), "bar-1.0.jar" ), 43, "bar-1.0-1" );
+    }
+
+    @Test
+    public void changedArchiveIsScannedAgain()
+            throws IOException
+    {
+        File archive = zip( "foo-1.0.jar", "bar-1.0.jar" );
+        List<EntrySource> sources = sources( archive );
+        File journal = new File( temp.getRoot(), "buildfinder.checkpoint" );
+
+        Checkpoint first = new Checkpoint( journal );
+        first.open( sources, false );
+        first.record( archive.getPath(), "foo-1.0.jar", LookupResult.found( 42, "foo-1.0-1" ) );
+        first.close();
+
+        // written again as it was, it still matches
+        zip( "foo-1.0.jar", "bar-1.0.jar" );
+        Map<String, LookupResult> recorded = new Checkpoint( journal ).recorded( archive );
+        assertFound( recorded.get( "foo-1.0.jar" ), 42, "foo-1.0-1" );
+
+        // one entry renamed: same size and modification time, but a different central directory
+        long size = archive.length();
+        zip( "foo-1.0.jar", "baz-1.0.jar" );
+        assertThat( archive.length(), equalTo( size ) );
+        assertThat( new Checkpoint( journal ).recorded( archive ), equalTo( Collections.emptyMap() ) );
+
+        Checkpoint resumed = new Checkpoint( journal );
+        resumed.open( sources, true );
+        resumed.close();
+        assertThat( resumed.resumed( archive.getPath(), "foo-1.0.jar" ), nullValue() );
+    }
+
+    private static List<EntrySource> sources( File archive )
+    {
+        return Collections.singletonList( new CentralDirectorySource( archive, null ) );
+    }
+
+    /**
+     * The same archive file each time, with the given entries, fixed timestamps and the same contents.
+     */
+    private File zip( String... entries )
+            throws IOException
+    {
+        File file = new File( temp.getRoot(), "input.zip" );
+        try (ZipOutputStream zip = new ZipOutputStream( new FileOutputStream( file ) ))
+        {
+            for ( String name : Arrays.asList( entries ) )
+            {
+                ZipEntry entry = new ZipEntry( name );
+                entry.setTime( MODIFIED );
+                zip.putNextEntry( entry );
+                zip.write( "content".getBytes( StandardCharsets.US_ASCII ) );
+                zip.closeEntry();
+            }
+        }
+        file.setLastModified( MODIFIED );
+        return file;
+    }
+
+    private static void assertFound( LookupResult result, int buildId, String nvr )
+    {
+        assertThat( result.isFound(), equalTo( true ) );
+        assertThat( result.getBuildId(), equalTo( buildId ) );
+        assertThat( result.getNvr(), equalTo( nvr ) );
+    }
+}
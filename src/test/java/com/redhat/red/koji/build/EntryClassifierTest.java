@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class EntryClassifierTest
+{
+    @Test
+    public void defaultExclusions()
+    {
+        EntryClassifier classifier = new EntryClassifier( 0, new Options().getExcludes() );
+
+        assertThat( classifier.isExcluded( "org/example/foo/1.0/foo-1.0.jar.md5" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "org/example/foo/1.0/foo-1.0.pom.sha1" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "org/example/foo/maven-metadata.xml" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "org/example/foo/1.0/foo-1.0.jar" ), equalTo( false ) );
+        assertThat( classifier.isExcluded( "org/example/foo/1.0/foo-1.0.jar.sha256" ), equalTo( false ) );
+    }
+
+    @Test
+    public void givenExclusionsReplaceTheDefaults()
+    {
+        Options opts = new Options();
+        opts.setExcludes( Collections.singletonList( "*.asc" ) );
+        EntryClassifier classifier = new EntryClassifier( 0, opts.getExcludes() );
+
+        assertThat( classifier.isExcluded( "org/example/foo/1.0/foo-1.0.jar.asc" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "org/example/foo/1.0/foo-1.0.jar.md5" ), equalTo( false ) );
+        assertThat( classifier.isExcluded( "org/example/foo/maven-metadata.xml" ), equalTo( false ) );
+    }
+
+    @Test
+    public void suffixPatternsMatchTheEndOfTheFileName()
+    {
+        EntryClassifier classifier = new EntryClassifier( 0, Arrays.asList( "*-sources.jar", "*b/c.md5" ) );
+
+        assertThat( classifier.isExcluded( "org/foo-1.0-sources.jar" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "-sources.jar" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "org/foo-1.0-sources.jar.md5" ), equalTo( false ) );
+        // only the file name is matched, so a suffix can't reach into its directories
+        assertThat( classifier.isExcluded( "a/b/c.md5" ), equalTo( false ) );
+    }
+
+    @Test
+    public void globsMatchTheWholeFileName()
+    {
+        EntryClassifier classifier = new EntryClassifier( 0, Arrays.asList( "foo-*.jar", "?.txt", "*.jar.*" ) );
+
+        assertThat( classifier.isExcluded( "lib/foo-1.0.jar" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "lib/foo-.jar" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "lib/afoo-1.0.jar" ), equalTo( false ) );
+        assertThat( classifier.isExcluded( "lib/foo-1.0.jar.md5" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "foo-1/bar.jar" ), equalTo( false ) );
+        assertThat( classifier.isExcluded( "docs/a.txt" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "docs/ab.txt" ), equalTo( false ) );
+        assertThat( classifier.isExcluded( "docs/.txt" ), equalTo( false ) );
+        assertThat( classifier.isExcluded( "a.b/c.jar" ), equalTo( false ) );
+    }
+
+    @Test
+    public void starAloneMatchesEverything()
+    {
+        EntryClassifier classifier = new EntryClassifier( 0, Collections.singletonList( "*" ) );
+
+        assertThat( classifier.isExcluded( "org/foo-1.0.jar" ), equalTo( true ) );
+        assertThat( classifier.isExcluded( "org/" ), equalTo( true ) );
+    }
+
+    @Test
+    public void noExclusions()
+    {
+        EntryClassifier classifier = new EntryClassifier( 0, Collections.emptyList() );
+
+        assertThat( classifier.isExcluded( "org/example/foo/1.0/foo-1.0.jar.md5" ), equalTo( false ) );
+    }
+
+    @Test
+    public void skipsPrefixDirectories()
+    {
+        assertThat( new EntryClassifier( 0, Collections.emptyList() ).path( "a/b/c.jar" ), equalTo( "a/b/c.jar" ) );
+        assertThat( new EntryClassifier( 1, Collections.emptyList() ).path( "a/b/c.jar" ), equalTo( "b/c.jar" ) );
+        assertThat( new EntryClassifier( 2, Collections.emptyList() ).path( "a/b/c.jar" ), equalTo( "c.jar" ) );
+    }
+
+    @Test
+    public void skipBeyondThePathDepth()
+    {
+        EntryClassifier classifier = new EntryClassifier( 3, Collections.emptyList() );
+
+        assertThat( classifier.path( "a/b/c.jar" ), nullValue() );
+        assertThat( classifier.path( "c.jar" ), nullValue() );
+        assertThat( classifier.path( "" ), nullValue() );
+        assertThat( classifier.path( "a/b/c/" ), nullValue() );
+    }
+
+    @Test
+    public void directories()
+    {
+        EntryClassifier classifier = new EntryClassifier( 1, Collections.emptyList() );
+
+        assertThat( classifier.path( "a/b/" ), equalTo( "b" ) );
+        assertThat( classifier.path( "a/b//" ), equalTo( "b" ) );
+        assertThat( classifier.path( "a/" ), nullValue() );
+        assertThat( new EntryClassifier( 0, Collections.emptyList() ).path( "/" ), nullValue() );
+    }
+
+    @Test
+    public void nestedEntriesAreTrimmedInsideTheInnermostArchive()
+    {
+        EntryClassifier classifier = new EntryClassifier( 1, Collections.emptyList() );
+
+        assertThat( classifier.path( "outer/lib/inner.zip!/maven/org/foo.jar" ), equalTo( "org/foo.jar" ) );
+        assertThat( classifier.path( "a.zip!/b.zip!/maven/org/foo.jar" ), equalTo( "org/foo.jar" ) );
+        assertThat( classifier.path( "a.zip!/foo.jar" ), nullValue() );
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PathStoreTest
+{
+    @Test
+    public void addFindAndGetRoundTrip()
+    {
+        PathStore store = new PathStore();
+        int id = store.add( "org/example/foo/1.0/foo-1.0.jar" );
+
+        assertThat( store.add( "org/example/foo/1.0/foo-1.0.jar" ), equalTo( id ) );
+        assertThat( store.find( "org/example/foo/1.0/foo-1.0.jar" ), equalTo( id ) );
+        assertThat( store.get( id ), equalTo( "org/example/foo/1.0/foo-1.0.jar" ) );
+    }
+
+    @Test
+    public void findsNothingThatWasNotAdded()
+    {
+        PathStore store = new PathStore();
+        store.add( "org/example/foo/1.0/foo-1.0.jar" );
+
+        assertThat( store.find( "org/example/foo/1.0/foo-1.1.jar" ), equalTo( PathStore.NONE ) );
+        assertThat( store.find( "org/example/bar/1.0/bar-1.0.jar" ), equalTo( PathStore.NONE ) );
+        assertThat( store.find( "org/example/foo/1.0/foo-1.0.jar/more" ), equalTo( PathStore.NONE ) );
+    }
+
+    @Test
+    public void directoriesAreDistinctFromFiles()
+    {
+        PathStore store = new PathStore();
+        int file = store.add( "org/example/foo/1.0/foo-1.0.jar" );
+        int dir = store.find( "org/example/foo/1.0" );
+
+        assertThat( dir, not( equalTo( PathStore.NONE ) ) );
+        assertThat( dir, not( equalTo( file ) ) );
+        assertThat( store.get( dir ), equalTo( "org/example/foo/1.0" ) );
+    }
+
+    @Test
+    public void derivedAndLiteralFileNamesAreDistinct()
+    {
+        // both end in a segment stored as the bytes "-x.jar"; only the first is derived from its directories
+        PathStore store = new PathStore();
+        int derived = store.add( "foo/1.0/foo-1.0-x.jar" );
+        int literal = store.add( "foo/1.0/-x.jar" );
+
+        assertThat( literal, not( equalTo( derived ) ) );
+        assertThat( store.get( derived ), equalTo( "foo/1.0/foo-1.0-x.jar" ) );
+        assertThat( store.get( literal ), equalTo( "foo/1.0/-x.jar" ) );
+        assertThat( store.find( "foo/1.0/foo-1.0-x.jar" ), equalTo( derived ) );
+        assertThat( store.find( "foo/1.0/-x.jar" ), equalTo( literal ) );
+    }
+
+    @Test
+    public void derivedFileNameNeedsBothDirectories()
+    {
+        PathStore store = new PathStore();
+        int id = store.add( "foo/1.0/foo-1.1.jar" );
+
+        assertThat( store.get( id ), equalTo( "foo/1.0/foo-1.1.jar" ) );
+        assertThat( store.find( "foo/1.0/foo-1.0.jar" ), equalTo( PathStore.NONE ) );
+        assertThat( store.get( store.add( "foo/1.0/foo-1.0" ) ), equalTo( "foo/1.0/foo-1.0" ) );
+    }
+
+    @Test
+    public void nonAsciiSegments()
+    {
+        String dir = "org/ex\u00e4mple/f\u00f6\u00f6/1.0/";
+        String latin = dir + "f\u00f6\u00f6-1.0-\u00df.jar";
+        String cjk = dir + "f\u00f6\u00f6-1.0-\u4e2d\u6587.jar";
+
+        PathStore store = new PathStore();
+        int id = store.add( latin );
+        int other = store.add( cjk );
+
+        assertThat( store.get( id ), equalTo( latin ) );
+        assertThat( store.get( other ), equalTo( cjk ) );
+        assertThat( store.find( latin ), equalTo( id ) );
+        assertThat( store.find( dir + "f\u00f6\u00f6-1.0-s.jar" ), equalTo( PathStore.NONE ) );
+
+        // the UTF-8 bytes of a non-ASCII segment must not match a segment whose chars spell out the same bytes
+        assertThat( store.find( latin.replace( "ex\u00e4mple", "ex\u00c3\u00a4mple" ) ), equalTo( PathStore.NONE ) );
+    }
+
+    @Test
+    public void growsAcrossRehashes()
+    {
+        // well past the initial 256 slots of both tables and the 4k of segment bytes, many times over
+        PathStore store = new PathStore();
+        List<String> paths = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        for ( int i = 0; i < 20000; i++ )
+        {
+            String path = "org/example/g" + i % 97 + "/a" + i + "/1." + i % 13 + "/a" + i + "-1." + i % 13
+                    + ( i % 3 == 0 ? "-sources.jar" : ".jar" );
+            paths.add( path );
+            ids.add( store.add( path ) );
+        }
+
+        for ( int i = 0; i < paths.size(); i++ )
+        {
+            assertThat( store.find( paths.get( i ) ), equalTo( ids.get( i ) ) );
+            assertThat( store.get( ids.get( i ) ), equalTo( paths.get( i ) ) );
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2016 Red Hat, Inc. (jcasey@redhat.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.red.koji.build;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ResultStoreTest
+{
+    private static final String PATH = "org/example/foo/1.0/foo-1.0.jar";
+
+    @Test
+    public void firstClaimOwnsThePath()
+    {
+        ResultStore store = new ResultStore();
+
+        assertThat( store.claim( PATH ), nullValue() );
+        assertThat( store.get( PATH ), nullValue() );
+        assertThat( store.size(), equalTo( 1 ) );
+    }
+
+    @Test
+    public void laterClaimsShareThePendingFuture()
+    {
+        ResultStore store = new ResultStore();
+        store.claim( PATH );
+
+        CompletableFuture<LookupResult> pending = store.claim( PATH );
+        assertThat( pending, notNullValue() );
+        assertThat( pending.isDone(), equalTo( false ) );
+        assertThat( store.claim( PATH ), sameInstance( pending ) );
+    }
+
+    @Test
+    public void resolveCompletesThePendingFuture()
+            throws Exception
+    {
+        ResultStore store = new ResultStore();
+        store.claim( PATH );
+        CompletableFuture<LookupResult> pending = store.claim( PATH );
+
+        store.resolve( PATH, LookupResult.found( 42, "foo-1.0-1" ) );
+
+        assertFound( pending.get(), 42, "foo-1.0-1" );
+        assertFound( store.get( PATH ), 42, "foo-1.0-1" );
+        assertFound( store.claim( PATH ).get(), 42, "foo-1.0-1" );
+        assertThat( store.size(), equalTo( 1 ) );
+    }
+
+    @Test
+    public void resolveMissing()
+    {
+        ResultStore store = new ResultStore();
+        store.claim( PATH );
+
+        store.resolve( PATH, LookupResult.missing() );
+
+        assertThat( store.get( PATH ).isFound(), equalTo( false ) );
+    }
+
+    @Test
+    public void firstResolutionWins()
+    {
+        ResultStore store = new ResultStore();
+        store.claim( PATH );
+
+        store.resolve( PATH, LookupResult.found( 42, "foo-1.0-1" ) );
+        store.resolve( PATH, LookupResult.missing() );
+
+        assertFound( store.get( PATH ), 42, "foo-1.0-1" );
+    }
+
+    @Test
+    public void resultsShareBuilds()
+    {
+        ResultStore store = new ResultStore();
+        String other = "org/example/foo/1.0/foo-1.0-sources.jar";
+        String elsewhere = "org/example/bar/2.0/bar-2.0.jar";
+
+        store.resolve( PATH, LookupResult.found( 42, "foo-1.0-1" ) );
+        store.resolve( other, LookupResult.found( 42, "foo-1.0-1" ) );
+        store.resolve( elsewhere, LookupResult.found( 7, "bar-2.0-1" ) );
+
+        assertFound( store.get( PATH ), 42, "foo-1.0-1" );
+        assertFound( store.get( other ), 42, "foo-1.0-1" );
+        assertFound( store.get( elsewhere ), 7, "bar-2.0-1" );
+    }
+
+    @Test
+    public void failReleasesThePendingPath()
+            throws Exception
+    {
+        ResultStore store = new ResultStore();
+        store.claim( PATH );
+        CompletableFuture<LookupResult> pending = store.claim( PATH );
+        IOException error = new IOException( "Koji is down" );
+
+        assertThat( store.fail( PATH, error ), equalTo( true ) );
+
+        try
+        {
+            pending.get();
+            fail( "Waiters should see the failure" );
+        }
+        catch ( ExecutionException e )
+        {
+            assertThat( e.getCause(), instanceOf( IOException.class ) );
+        }
+
+        // back to unknown, so it can be claimed again
+        assertThat( store.get( PATH ), nullValue() );
+        assertThat( store.claim( PATH ), nullValue() );
+    }
+
+    @Test
+    public void failLeavesResolvedPathAlone()
+    {
+        ResultStore store = new ResultStore();
+        store.claim( PATH );
+        store.resolve( PATH, LookupResult.missing() );
+
+        assertThat( store.fail( PATH, new IOException( "too late" ) ), equalTo( false ) );
+        assertThat( store.get( PATH ).isFound(), equalTo( false ) );
+    }
+
+    @Test
+    public void failIgnoresUnknownPath()
+    {
+        ResultStore store = new ResultStore();
+
+        assertThat( store.fail( PATH, new IOException( "never claimed" ) ), equalTo( false ) );
+        assertThat( store.size(), equalTo( 0 ) );
+    }
+
+    private static void assertFound( LookupResult result, int buildId, String nvr )
+    {
+        assertThat( result.isFound(), equalTo( true ) );
+        assertThat( result.getBuildId(), equalTo( buildId ) );
+        assertThat( result.getNvr(), equalTo( nvr ) );
+    }
+}